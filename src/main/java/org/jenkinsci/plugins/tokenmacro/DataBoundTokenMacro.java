@@ -27,24 +27,17 @@ import static java.lang.annotation.ElementType.*;
 import static java.lang.annotation.RetentionPolicy.*;
 
 import com.google.common.collect.ListMultimap;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.FilePath;
 import hudson.model.AbstractBuild;
 import hudson.model.Run;
 import hudson.model.TaskListener;
-import java.beans.Introspector;
 import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.Target;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.text.MessageFormat;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
-import org.apache.commons.beanutils.ConvertUtils;
 import org.apache.commons.text.StringEscapeUtils;
-import org.apache.commons.lang3.StringUtils;
 
 /**
  * Convenient base class for implementing {@link TokenMacro} that does parameter databinding to fields.
@@ -57,6 +50,13 @@ import org.apache.commons.lang3.StringUtils;
  * <p>
  * In this way, you simplify the parameter parsing and type conversion overhead.
  *
+ * <p>
+ * Macros that don't keep any state in their fields can instead override
+ * {@link #evaluate(Run, FilePath, TaskListener, String, MacroParameters)}, which receives the converted parameters
+ * as an immutable {@link MacroParameters}. These are evaluated on the registered instance, without creating a
+ * new one for each token. So are macros whose only parameter is {@link #escapeHtml}, unless they write their result
+ * piece by piece; they shouldn't keep any state in their fields either.
+ *
  * @author Kohsuke Kawaguchi
  */
 public abstract class DataBoundTokenMacro extends TokenMacro {
@@ -69,136 +69,117 @@ public abstract class DataBoundTokenMacro extends TokenMacro {
         String alias() default "";
     }
 
-    private interface Setter {
-        /**
-         * Type of the value this field or the setter method expects.
-         */
-        Class<?> getType();
+    /**
+     * Whether a class overrides {@link #evaluate(Run, FilePath, TaskListener, String, MacroParameters)}, and doesn't
+     * override the other <code>evaluate</code> methods again further down, which the parameters would need to be
+     * bound for. Classes without parameters besides {@link #escapeHtml} don't need to override it, as long as they
+     * don't stream their result.
+     */
+    private static final ClassValue<Boolean> STATELESS = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                Class<?> declaring = type.getMethod(
+                                "evaluate",
+                                Run.class,
+                                FilePath.class,
+                                TaskListener.class,
+                                String.class,
+                                MacroParameters.class)
+                        .getDeclaringClass();
+                if (declaring == DataBoundTokenMacro.class) {
+                    return !ParameterBinder.of(type.asSubclass(DataBoundTokenMacro.class))
+                                    .hasParameters()
+                            && isInherited(type, Run.class, FilePath.class, TaskListener.class, String.class,
+                                    Appendable.class);
+                }
+                return type.getMethod("evaluate", AbstractBuild.class, TaskListener.class, String.class)
+                                .getDeclaringClass()
+                                .isAssignableFrom(declaring)
+                        && type.getMethod("evaluate", Run.class, FilePath.class, TaskListener.class, String.class)
+                                .getDeclaringClass()
+                                .isAssignableFrom(declaring);
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
 
-        /**
-         * Adds a new value to this field or setter.
-         */
-        void set(Object target, Object value);
+    /**
+     * Whether a class leaves the <code>evaluate</code> methods inherited from {@link TokenMacro} as they are.
+     */
+    private static final ClassValue<Boolean> PREPARED = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                return isInherited(type, AbstractBuild.class, TaskListener.class, String.class, Map.class,
+                                ListMultimap.class)
+                        && isInherited(type, Run.class, FilePath.class, TaskListener.class, String.class, Map.class,
+                                ListMultimap.class)
+                        && isInherited(type, Run.class, FilePath.class, TaskListener.class, String.class, Map.class,
+                                ListMultimap.class, Appendable.class);
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
 
-        boolean required();
+    private static boolean isInherited(Class<?> type, Class<?>... parameterTypes) throws NoSuchMethodException {
+        return type.getMethod("evaluate", parameterTypes).getDeclaringClass() == DataBoundTokenMacro.class;
     }
 
-    private Map<String, Setter> setters;
-
     @Parameter
     public boolean escapeHtml = false;
 
     public DataBoundTokenMacro() {
-        buildMap();
+        // the parameters are looked up on first use, see ParameterBinder
     }
 
     /**
-     * Builds up the {@link #setters} map that encapsulates where/how to set the value.
+     * Describes the {@link Parameter}s of this macro, sorted by name.
+     *
+     * @return a read-only list, shared by all instances of the class
      */
-    private void buildMap() {
-        if (setters != null) return;
-
-        setters = new ConcurrentHashMap<>();
-        for (final Field f : getClass().getFields()) {
-            final Parameter p = f.getAnnotation(Parameter.class);
-            if (p != null) {
-                String name = f.getName();
-                if (StringUtils.isNotEmpty(p.alias())) {
-                    name = p.alias();
-                }
-
-                setters.put(name, new Setter() {
-                    public Class<?> getType() {
-                        return f.getType();
-                    }
-
-                    public void set(Object target, Object value) {
-                        try {
-                            f.set(target, value);
-                        } catch (IllegalAccessException e) {
-                            throw (IllegalAccessError) new IllegalAccessError(e.getMessage()).initCause(e);
-                        }
-                    }
-
-                    public boolean required() {
-                        return p.required();
-                    }
-                });
-            }
-        }
-
-        for (final Method m : getClass().getMethods()) {
-            final Parameter p = m.getAnnotation(Parameter.class);
-            if (p != null) {
-                final Class<?>[] pt = m.getParameterTypes();
-                if (pt.length != 1)
-                    throw new IllegalArgumentException(
-                            "Expecting one-arg method for @Parameter but found " + m + " instead");
-
-                String name = m.getName();
-                if (name.startsWith("set")) {
-                    name = Introspector.decapitalize(name.substring(3));
-                }
-
-                if (StringUtils.isNotEmpty(p.alias())) {
-                    name = p.alias();
-                }
-
-                setters.put(name, new Setter() {
-                    public Class<?> getType() {
-                        return pt[0];
-                    }
-
-                    public void set(Object target, Object value) {
-                        try {
-                            m.invoke(target, value);
-                        } catch (IllegalAccessException e) {
-                            throw (IllegalAccessError) new IllegalAccessError(e.getMessage()).initCause(e);
-                        } catch (InvocationTargetException e) {
-                            throw new Error(e);
-                        }
-                    }
-
-                    public boolean required() {
-                        return p.required();
-                    }
-                });
-            }
-        }
+    public List<MacroParameter> getParameters() {
+        return ParameterBinder.of(getClass()).getParameters();
     }
 
-    private DataBoundTokenMacro prepare(
+    /**
+     * Checks the arguments of a token and converts them to the types of the parameters of this macro class.
+     * The result can be reused for all evaluations of the same token by instances of the same class.
+     */
+    MacroParameters prepare(
             String macroName, Map<String, String> arguments, ListMultimap<String, String> argumentMultimap)
             throws MacroEvaluationException {
-        DataBoundTokenMacro copy;
-        try {
-            copy = getClass().newInstance();
+        return ParameterBinder.of(getClass()).parameters(macroName, arguments, argumentMultimap);
+    }
 
-            for (Entry<String, String> e : argumentMultimap.entries()) {
-                Setter s = setters.get(e.getKey());
-                if (s == null)
-                    throw new MacroEvaluationException(
-                            MessageFormat.format("Undefined parameter {0} in token {1}", e.getKey(), macroName));
+    private DataBoundTokenMacro bind(
+            String macroName, Map<String, String> arguments, ListMultimap<String, String> argumentMultimap)
+            throws MacroEvaluationException {
+        return ParameterBinder.of(getClass()).bind(macroName, arguments, argumentMultimap);
+    }
 
-                Object v;
-                if (s.getType() == boolean.class && e.getValue() == null) v = true;
-                else v = ConvertUtils.convert(e.getValue(), s.getType());
+    /**
+     * Whether the <code>evaluate</code> methods of {@link TokenMacro} aren't overridden, so the evaluation can start
+     * from already prepared parameters.
+     */
+    static boolean acceptsPrepared(TokenMacro tm) {
+        return tm instanceof DataBoundTokenMacro && PREPARED.get(tm.getClass());
+    }
 
-                s.set(copy, v);
-            }
+    private boolean isStateless() {
+        return STATELESS.get(getClass());
+    }
 
-            for (Entry<String, Setter> e : setters.entrySet()) {
-                if (!arguments.containsKey(e.getKey()) && e.getValue().required())
-                    throw new MacroEvaluationException(MessageFormat.format(
-                            "Parameter {0} in token {1} is required but was not specfified", e.getKey(), macroName));
-            }
-        } catch (InstantiationException e) {
-            throw new Error(e);
-        } catch (IllegalAccessException e) {
-            throw new Error(e);
+    private String evaluateStateless(
+            Run<?, ?> run, FilePath workspace, TaskListener listener, MacroParameters parameters)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        String res = evaluate(run, workspace, listener, parameters.getMacroName(), parameters);
+        if (parameters.getBoolean("escapeHtml") && !handlesHtmlEscapeInternally()) {
+            res = StringEscapeUtils.escapeHtml4(res);
         }
-
-        return copy;
+        return res;
     }
 
     @Override
@@ -209,7 +190,25 @@ public abstract class DataBoundTokenMacro extends TokenMacro {
             Map<String, String> arguments,
             ListMultimap<String, String> argumentMultimap)
             throws MacroEvaluationException, IOException, InterruptedException {
-        DataBoundTokenMacro copy = prepare(macroName, arguments, argumentMultimap);
+        if (isStateless()) {
+            return evaluateStateless(build, null, listener, prepare(macroName, arguments, argumentMultimap));
+        }
+        // binding the strings directly is cheaper when the prepared parameters aren't kept
+        return evaluateCopy(bind(macroName, arguments, argumentMultimap), build, listener, macroName);
+    }
+
+    String evaluatePrepared(AbstractBuild<?, ?> build, TaskListener listener, MacroParameters parameters)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        if (isStateless()) {
+            return evaluateStateless(build, null, listener, parameters);
+        }
+        return evaluateCopy(
+                ParameterBinder.of(getClass()).bind(parameters), build, listener, parameters.getMacroName());
+    }
+
+    private static String evaluateCopy(
+            DataBoundTokenMacro copy, AbstractBuild<?, ?> build, TaskListener listener, String macroName)
+            throws MacroEvaluationException, IOException, InterruptedException {
         String res = copy.evaluate(build, listener, macroName);
         if (copy.escapeHtml && !copy.handlesHtmlEscapeInternally()) {
             res = StringEscapeUtils.escapeHtml4(res);
@@ -226,7 +225,24 @@ public abstract class DataBoundTokenMacro extends TokenMacro {
             Map<String, String> arguments,
             ListMultimap<String, String> argumentMultimap)
             throws MacroEvaluationException, IOException, InterruptedException {
-        DataBoundTokenMacro copy = prepare(macroName, arguments, argumentMultimap);
+        if (isStateless()) {
+            return evaluateStateless(run, workspace, listener, prepare(macroName, arguments, argumentMultimap));
+        }
+        return evaluateCopy(bind(macroName, arguments, argumentMultimap), run, workspace, listener, macroName);
+    }
+
+    String evaluatePrepared(Run<?, ?> run, FilePath workspace, TaskListener listener, MacroParameters parameters)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        if (isStateless()) {
+            return evaluateStateless(run, workspace, listener, parameters);
+        }
+        return evaluateCopy(
+                ParameterBinder.of(getClass()).bind(parameters), run, workspace, listener, parameters.getMacroName());
+    }
+
+    private static String evaluateCopy(
+            DataBoundTokenMacro copy, Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName)
+            throws MacroEvaluationException, IOException, InterruptedException {
         String res = copy.evaluate(run, workspace, listener, macroName);
         if (copy.escapeHtml && !copy.handlesHtmlEscapeInternally()) {
             res = StringEscapeUtils.escapeHtml4(res);
@@ -234,6 +250,116 @@ public abstract class DataBoundTokenMacro extends TokenMacro {
         return res;
     }
 
+    @Override
+    public void evaluate(
+            Run<?, ?> run,
+            FilePath workspace,
+            TaskListener listener,
+            String macroName,
+            Map<String, String> arguments,
+            ListMultimap<String, String> argumentMultimap,
+            Appendable out)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        if (isStateless()) {
+            evaluatePrepared(run, workspace, listener, prepare(macroName, arguments, argumentMultimap), out);
+        } else {
+            evaluateCopy(bind(macroName, arguments, argumentMultimap), run, workspace, listener, macroName, out);
+        }
+    }
+
+    void evaluatePrepared(
+            Run<?, ?> run, FilePath workspace, TaskListener listener, MacroParameters parameters, Appendable out)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        if (isStateless()) {
+            String res = evaluateStateless(run, run instanceof AbstractBuild ? null : workspace, listener, parameters);
+            if (res != null) {
+                out.append(res);
+            }
+            return;
+        }
+        evaluateCopy(
+                ParameterBinder.of(getClass()).bind(parameters),
+                run,
+                workspace,
+                listener,
+                parameters.getMacroName(),
+                out);
+    }
+
+    private static void evaluateCopy(
+            DataBoundTokenMacro copy,
+            Run<?, ?> run,
+            FilePath workspace,
+            TaskListener listener,
+            String macroName,
+            Appendable out)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        if (copy.escapeHtml && !copy.handlesHtmlEscapeInternally()) {
+            // the result needs to be escaped as a whole
+            String res = run instanceof AbstractBuild
+                    ? copy.evaluate((AbstractBuild<?, ?>) run, listener, macroName)
+                    : copy.evaluate(run, workspace, listener, macroName);
+            if (res != null) {
+                out.append(StringEscapeUtils.escapeHtml4(res));
+            }
+        } else {
+            copy.evaluate(run, workspace, listener, macroName, out);
+        }
+    }
+
+    @Override
+    public LogScanner.Consumer createLogConsumer(
+            Run<?, ?> run,
+            TaskListener listener,
+            String macroName,
+            Map<String, String> arguments,
+            ListMultimap<String, String> argumentMultimap)
+            throws MacroEvaluationException {
+        return createLogConsumer(bind(macroName, arguments, argumentMultimap), run, listener, macroName);
+    }
+
+    LogScanner.Consumer createLogConsumer(Run<?, ?> run, TaskListener listener, MacroParameters parameters)
+            throws MacroEvaluationException {
+        return createLogConsumer(
+                ParameterBinder.of(getClass()).bind(parameters), run, listener, parameters.getMacroName());
+    }
+
+    @CheckForNull
+    private static LogScanner.Consumer createLogConsumer(
+            DataBoundTokenMacro copy, Run<?, ?> run, TaskListener listener, String macroName)
+            throws MacroEvaluationException {
+        LogScanner.Consumer consumer = copy.createLogConsumer(run, listener, macroName);
+        if (consumer == null || !copy.escapeHtml || copy.handlesHtmlEscapeInternally()) {
+            return consumer;
+        }
+        return new LogScanner.Consumer() {
+            @Override
+            public boolean accept(LogScanner.Line line) throws IOException {
+                return consumer.accept(line);
+            }
+
+            @Override
+            public String getResult() {
+                String res = consumer.getResult();
+                return res != null ? StringEscapeUtils.escapeHtml4(res) : null;
+            }
+        };
+    }
+
+    /**
+     * Creates a consumer that computes the result of the macro from the lines of the build log, once the parameters
+     * are bound. {@link #escapeHtml} only needs to be handled here if {@link #handlesHtmlEscapeInternally()} returns
+     * true.
+     *
+     * @return null if the macro doesn't read the log line by line, which is the default
+     * @see TokenMacro#createLogConsumer(Run, TaskListener, String, Map, ListMultimap)
+     */
+    @CheckForNull
+    public LogScanner.Consumer createLogConsumer(Run<?, ?> run, TaskListener listener, String macroName)
+            throws MacroEvaluationException {
+        return null;
+    }
+
     /**
      * Indicates whether this macro handles {@link #escapeHtml} on its own inside the <code>evaluate</code> methods.
      *
@@ -257,6 +383,59 @@ public abstract class DataBoundTokenMacro extends TokenMacro {
         return macroName + " is not supported in this context";
     }
 
+    /**
+     * Evaluates the macro and writes the result to the given output, once the parameters are bound.
+     *
+     * <p>
+     * Override this for macros that produce large values and can write them out piece by piece. The default
+     * implementation appends the result of {@link #evaluate(AbstractBuild, TaskListener, String)} or
+     * {@link #evaluate(Run, FilePath, TaskListener, String)}, depending on the type of the run.
+     * {@link #escapeHtml} only needs to be handled here if {@link #handlesHtmlEscapeInternally()} returns true.
+     *
+     * @see TokenMacro#evaluate(Run, FilePath, TaskListener, String, Map, ListMultimap, Appendable)
+     */
+    public void evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName, Appendable out)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        String res = run instanceof AbstractBuild
+                ? evaluate((AbstractBuild<?, ?>) run, listener, macroName)
+                : evaluate(run, workspace, listener, macroName);
+        if (res != null) {
+            out.append(res);
+        }
+    }
+
+    /**
+     * Evaluates the macro with the given parameters, without binding them to the fields of this instance.
+     *
+     * <p>
+     * Override this for macros that only read their parameters from the {@link MacroParameters}, so the registered
+     * instance can be used for all evaluations, concurrent ones included. {@link #escapeHtml} is applied to the result
+     * by the caller, unless {@link #handlesHtmlEscapeInternally()} returns true. Macros overriding this method still
+     * need to implement the other <code>evaluate</code> methods, for callers that bind the parameters to fields.
+     *
+     * <p>
+     * The default implementation binds the parameters to a new instance, and calls
+     * {@link #evaluate(AbstractBuild, TaskListener, String)} or {@link #evaluate(Run, FilePath, TaskListener, String)}
+     * on it, depending on the type of the run. If {@link #escapeHtml} is the only parameter, they are called on this
+     * instance instead.
+     *
+     * @param workspace
+     *      the workspace, null when the macro is evaluated for an {@link AbstractBuild} without one being given
+     */
+    public String evaluate(
+            Run<?, ?> run,
+            @CheckForNull FilePath workspace,
+            TaskListener listener,
+            String macroName,
+            MacroParameters parameters)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        ParameterBinder binder = ParameterBinder.of(getClass());
+        DataBoundTokenMacro macro = binder.hasParameters() ? binder.bind(parameters) : this;
+        return run instanceof AbstractBuild
+                ? macro.evaluate((AbstractBuild<?, ?>) run, listener, macroName)
+                : macro.evaluate(run, workspace, listener, macroName);
+    }
+
     @Override
     public boolean hasNestedContent() {
         return false;
@@ -0,0 +1,179 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.Run;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The log of a completed run split into chunks of whole lines, so that the chunks can be scanned separately, e.g. in
+ * parallel, each by its own {@link LogScanner}.
+ *
+ * <p>
+ * The chunks end right after a line feed, so the lines of the chunks, one after the other, are the lines of the whole
+ * log, with the same text. Only logs kept in a plain file, in a charset whose lines and console notes can be found in
+ * the bytes, are split, see {@link LogLineReader#supports(Charset)}. The chunks are read from the same open file, and
+ * can be scanned from several threads at once.
+ */
+public final class LogChunks implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final FileChannel channel;
+    private final Charset charset;
+    /**
+     * Where each chunk starts in the log, followed by the length of the log.
+     */
+    private final long[] starts;
+
+    private LogChunks(FileChannel channel, Charset charset, long[] starts) {
+        this.channel = channel;
+        this.charset = charset;
+        this.starts = starts;
+    }
+
+    /**
+     * Whether {@link #open(Run, long)} can split the log of the run.
+     */
+    public static boolean isSupported(Run<?, ?> run) {
+        return !run.isLogUpdated() && supports(run.getCharset()) && LogTailReader.plainLogFile(run) != null;
+    }
+
+    /**
+     * Whether logs in the given charset can be split, see {@link LogLineReader#supports(Charset)}.
+     */
+    public static boolean supports(@CheckForNull Charset charset) {
+        return LogLineReader.supports(charset);
+    }
+
+    /**
+     * Splits the log of the run into chunks of at least the given size, except for the last one.
+     *
+     * @return null if the log can't be split, see {@link #isSupported(Run)}
+     */
+    @CheckForNull
+    public static LogChunks open(Run<?, ?> run, long chunkSize) throws IOException {
+        if (run.isLogUpdated() || !supports(run.getCharset())) {
+            return null;
+        }
+        File logFile = LogTailReader.plainLogFile(run);
+        return logFile != null ? open(logFile, run.getCharset(), chunkSize) : null;
+    }
+
+    /**
+     * Splits the log file of a completed run, found with {@link LogTailReader#plainLogFile(Run)}, into chunks of at
+     * least the given size, except for the last one. The charset must be {@linkplain #supports(Charset) supported}.
+     */
+    @NonNull
+    public static LogChunks open(@NonNull File logFile, @NonNull Charset charset, long chunkSize) throws IOException {
+        FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ);
+        try {
+            long length = channel.size();
+            long[] starts = new long[8];
+            int count = 1;
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            for (long pos = chunkSize; pos < length; ) {
+                long next = nextLine(channel, pos, length, buffer);
+                if (next >= length) {
+                    break;
+                }
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = next;
+                pos = next + chunkSize;
+            }
+            starts = Arrays.copyOf(starts, count + 1);
+            starts[count] = length;
+            return new LogChunks(channel, charset, starts);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Where the first line starting at or after the given offset starts, the length of the log if none does.
+     */
+    private static long nextLine(FileChannel channel, long pos, long length, ByteBuffer buffer) throws IOException {
+        // the line feed ending the line before the offset may be right before it
+        for (long at = pos - 1; at < length; ) {
+            buffer.clear();
+            int n = channel.read(buffer, at);
+            if (n <= 0) {
+                break;
+            }
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') {
+                    return at + i + 1;
+                }
+            }
+            at += n;
+        }
+        return length;
+    }
+
+    /**
+     * The number of chunks.
+     */
+    public int size() {
+        return starts.length - 1;
+    }
+
+    /**
+     * Reads the lines of a chunk once for all the given consumers, the same way {@link LogScanner#scan(Run,
+     * Collection)} reads the lines of the whole log.
+     */
+    public void scan(int chunk, Collection<? extends LogScanner.Consumer> consumers) throws IOException {
+        InputStream in = new ChunkInputStream(starts[chunk], starts[chunk + 1]);
+        LogScanner.scan(new LogLineReader(in, charset), consumers);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Reads the bytes of a chunk at their position in the file, which leaves the position of the channel alone.
+     */
+    private final class ChunkInputStream extends InputStream {
+        private long pos;
+        private final long end;
+
+        ChunkInputStream(long start, long end) {
+            this.pos = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (pos >= end) {
+                return -1;
+            }
+            int n = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - pos)), pos);
+            if (n == -1) {
+                // the log was cut short since it was split
+                pos = end;
+                return -1;
+            }
+            pos += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.console.ConsoleNote;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Splits a log into lines working on its bytes, and only decodes the parts of the lines that are actually used.
+ *
+ * <p>
+ * Line terminators and {@link ConsoleNote}s are looked for in the bytes, which works for the charsets that encode
+ * US-ASCII characters as themselves and never use those bytes for anything else, see {@link #supports(Charset)}.
+ * The notes are dropped from a copy of the line bytes, and only the bytes left are decoded. The text of the lines is
+ * handed out as {@link CharSequence}s that are reused for the following lines, so reading a line allocates nothing
+ * unless a consumer turns it into a {@link String}.
+ *
+ * <p>
+ * Lines end the way {@link java.io.BufferedReader#readLine()} ends them, and the text is the same as when decoding the
+ * whole log with an {@link java.io.InputStreamReader} and removing the notes with
+ * {@link ConsoleNote#removeNotes(String)}.
+ */
+final class LogLineReader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static final byte ESC = 0x1b;
+
+    static final byte[] PREAMBLE = ConsoleNote.PREAMBLE_STR.getBytes(StandardCharsets.US_ASCII);
+    static final byte[] POSTAMBLE = ConsoleNote.POSTAMBLE_STR.getBytes(StandardCharsets.US_ASCII);
+
+    private final InputStream in;
+    private final CharsetDecoder decoder;
+
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private ByteBuffer bytes = ByteBuffer.wrap(buf);
+    /**
+     * The bytes of {@link #buf} read from the log and not handed out yet are from {@link #pos} to {@link #limit}.
+     */
+    private int pos;
+    private int limit;
+    private boolean eof;
+
+    /**
+     * The bytes of the current line, without its terminator, are from {@link #lineStart} to {@link #lineEnd} in
+     * {@link #buf}.
+     */
+    private int lineStart;
+    private int lineEnd;
+    private String terminator;
+    /**
+     * Whether the current line has an escape character, without which it can't have any console note.
+     */
+    private boolean lineHasEscape;
+
+    private final Chars rawText = new Chars();
+    private boolean rawTextDecoded;
+    private final Chars text = new Chars();
+    private boolean textDecoded;
+
+    /**
+     * The bytes of the current line with the console notes dropped, and where the notes were, as the bytes on both
+     * sides of a note were never next to each other in the log and must be decoded separately.
+     */
+    private byte[] stripped = new byte[256];
+    private ByteBuffer strippedBytes = ByteBuffer.wrap(stripped);
+    private int[] cuts = new int[8];
+
+    LogLineReader(InputStream in, Charset charset) {
+        this.in = in;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Whether the lines and the console notes of a log in the charset can be found in its bytes: that is the case for
+     * UTF-8, and for the single byte charsets that are a superset of US-ASCII.
+     */
+    static boolean supports(@CheckForNull Charset charset) {
+        if (charset == null || !charset.canEncode()) {
+            return false;
+        }
+        if (charset.equals(StandardCharsets.UTF_8)
+                || charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1)) {
+            return true;
+        }
+        if (charset.newEncoder().maxBytesPerChar() != 1) {
+            return false;
+        }
+        byte[] all = new byte[256];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = (byte) i;
+        }
+        String decoded = new String(all, charset);
+        if (decoded.length() != all.length) {
+            return false;
+        }
+        for (int i = 0; i < all.length; i++) {
+            char c = decoded.charAt(i);
+            if (i < 0x80 ? c != i : c == '\n' || c == '\r' || c == ESC) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the next line of the log.
+     *
+     * @return false once the end of the log is reached
+     */
+    boolean readLine() throws IOException {
+        rawTextDecoded = false;
+        textDecoded = false;
+        lineHasEscape = false;
+        int i = pos;
+        while (true) {
+            for (; i < limit; i++) {
+                byte b = buf[i];
+                if (b == '\n' || b == '\r') {
+                    break;
+                }
+                if (b == ESC) {
+                    lineHasEscape = true;
+                }
+            }
+            if (i < limit) {
+                if (buf[i] == '\n') {
+                    terminator = "\n";
+                    return takeLine(i, i + 1);
+                }
+                if (i + 1 == limit && !eof) {
+                    // whether the carriage return is followed by a line feed is only known with the next byte
+                    i = fill(i);
+                    continue;
+                }
+                if (i + 1 < limit && buf[i + 1] == '\n') {
+                    terminator = "\r\n";
+                    return takeLine(i, i + 2);
+                }
+                terminator = "\r";
+                return takeLine(i, i + 1);
+            }
+            if (eof) {
+                if (i == pos) {
+                    return false;
+                }
+                terminator = "";
+                return takeLine(i, i);
+            }
+            i = fill(i);
+        }
+    }
+
+    private boolean takeLine(int end, int next) {
+        lineStart = pos;
+        lineEnd = end;
+        pos = next;
+        return true;
+    }
+
+    /**
+     * Reads more of the log, after moving the bytes not handed out yet to the start of the buffer.
+     *
+     * @param i the position in the buffer that the line being looked for has been scanned until
+     * @return that position once the bytes were moved
+     */
+    private int fill(int i) throws IOException {
+        int kept = limit - pos;
+        if (kept == buf.length) {
+            // a line longer than the buffer
+            buf = Arrays.copyOf(buf, buf.length * 2);
+            bytes = ByteBuffer.wrap(buf);
+        } else if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, kept);
+        }
+        i -= pos;
+        pos = 0;
+        limit = kept;
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n == -1) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+        return i;
+    }
+
+    /**
+     * The characters that ended the line, empty for the last line of a log that doesn't end with a line terminator.
+     */
+    @NonNull
+    String getTerminator() {
+        return terminator;
+    }
+
+    /**
+     * The line as it is in the log, until the next call to {@link #readLine()}.
+     */
+    @NonNull
+    CharSequence getRawText() {
+        if (!lineHasEscape) {
+            // no note to remove
+            return getText();
+        }
+        if (!rawTextDecoded) {
+            bytes.clear();
+            decode(bytes, lineStart, lineEnd, rawText, false);
+            rawTextDecoded = true;
+        }
+        return rawText;
+    }
+
+    /**
+     * The line with the console notes removed, until the next call to {@link #readLine()}.
+     */
+    @NonNull
+    CharSequence getText() {
+        if (!textDecoded) {
+            if (lineHasEscape) {
+                decodeStripped();
+            } else {
+                bytes.clear();
+                decode(bytes, lineStart, lineEnd, text, false);
+            }
+            textDecoded = true;
+        }
+        return text;
+    }
+
+    /**
+     * Drops the notes from a copy of the line, the same way {@link ConsoleNote#removeNotes(String)} does, then decodes
+     * the bytes left between the notes.
+     */
+    private void decodeStripped() {
+        int length = lineEnd - lineStart;
+        if (stripped.length < length) {
+            stripped = new byte[Math.max(length, stripped.length * 2)];
+            strippedBytes = ByteBuffer.wrap(stripped);
+        }
+        System.arraycopy(buf, lineStart, stripped, 0, length);
+        int numCuts = 0;
+        int from = 0;
+        int start;
+        while ((start = indexOf(stripped, length, PREAMBLE, from)) >= 0) {
+            int end = indexOf(stripped, length, POSTAMBLE, start + PREAMBLE.length);
+            if (end < 0) {
+                break;
+            }
+            end += POSTAMBLE.length;
+            System.arraycopy(stripped, end, stripped, start, length - end);
+            length -= end - start;
+            // the cuts inside the note are gone, the ones after it move with the rest of the line
+            int kept = 0;
+            for (int c = 0; c < numCuts; c++) {
+                int cut = cuts[c];
+                if (cut < start) {
+                    cuts[kept++] = cut;
+                } else if (cut > end) {
+                    cuts[kept++] = cut - (end - start);
+                }
+            }
+            numCuts = kept;
+            if (numCuts == cuts.length) {
+                cuts = Arrays.copyOf(cuts, cuts.length * 2);
+            }
+            int at = numCuts++;
+            while (at > 0 && cuts[at - 1] > start) {
+                cuts[at] = cuts[at - 1];
+                at--;
+            }
+            cuts[at] = start;
+            // removing the note may have completed a preamble that starts before it
+            from = Math.max(0, start - PREAMBLE.length + 1);
+        }
+        text.length = 0;
+        int segmentStart = 0;
+        for (int c = 0; c <= numCuts; c++) {
+            int segmentEnd = c < numCuts ? cuts[c] : length;
+            strippedBytes.clear();
+            decode(strippedBytes, segmentStart, segmentEnd, text, true);
+            segmentStart = segmentEnd;
+        }
+    }
+
+    /**
+     * Where the bytes, which start with an escape character like {@link #PREAMBLE} and {@link #POSTAMBLE}, are first
+     * found in the array from the given position, -1 if they aren't.
+     */
+    static int indexOf(byte[] array, int length, byte[] wanted, int from) {
+        outer:
+        for (int i = from, last = length - wanted.length; i <= last; i++) {
+            if (array[i] != ESC) {
+                continue;
+            }
+            for (int j = 1; j < wanted.length; j++) {
+                if (array[i + j] != wanted[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes the bytes from start to end of the buffer into the characters.
+     *
+     * @param append whether to add the characters to the ones already there rather than replacing them
+     */
+    private void decode(ByteBuffer source, int start, int end, Chars target, boolean append) {
+        int offset = append ? target.length : 0;
+        int needed = offset + (int) Math.ceil((end - start) * (double) decoder.maxCharsPerByte()) + 1;
+        if (target.chars.length < needed) {
+            target.grow(needed);
+        }
+        source.limit(end).position(start);
+        CharBuffer out = target.buffer;
+        out.clear();
+        out.position(offset);
+        decoder.reset();
+        decoder.decode(source, out, true);
+        decoder.flush(out);
+        target.length = out.position();
+    }
+
+    /**
+     * The characters of a line, reused for the next one.
+     */
+    private static final class Chars implements CharSequence {
+        private char[] chars = new char[256];
+        private CharBuffer buffer = CharBuffer.wrap(chars);
+        private int length;
+
+        void grow(int capacity) {
+            chars = Arrays.copyOf(chars, Math.max(capacity, chars.length * 2));
+            buffer = CharBuffer.wrap(chars);
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index >= length) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+            }
+            return chars[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+            }
+            return new String(chars, start, end - start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+    }
+}
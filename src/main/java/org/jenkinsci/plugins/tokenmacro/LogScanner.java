@@ -0,0 +1,270 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.console.ConsoleNote;
+import hudson.model.Run;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the log of a run line by line and hands each line to a number of {@link Consumer}s, so that several macros
+ * reading the log need to decode and split it, and to remove the {@link ConsoleNote}s from it, only once.
+ *
+ * <p>
+ * Lines end the way {@link java.io.BufferedReader#readLine()} ends them, at a line feed, a carriage return, or a
+ * carriage return followed by a line feed. The log is read until its end, or until none of the consumers needs more
+ * lines.
+ *
+ * @see TokenMacro#createLogConsumer(Run, hudson.model.TaskListener, String, java.util.Map,
+ *      com.google.common.collect.ListMultimap)
+ */
+public final class LogScanner {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Computes the result of a macro from the lines of a log.
+     */
+    public interface Consumer {
+        /**
+         * Receives the next line of the log.
+         *
+         * @return false if no more lines are needed
+         */
+        boolean accept(@NonNull Line line) throws IOException;
+
+        /**
+         * The result of the macro, called once the end of the log is reached or {@link #accept(Line)} returned false.
+         */
+        @CheckForNull
+        String getResult();
+    }
+
+    /**
+     * A line of the log. Instances are reused for the following lines, so they must not be kept by consumers.
+     */
+    public static final class Line {
+        @CheckForNull
+        private LogLineReader reader;
+
+        private String rawText;
+        private String terminator;
+        private String text;
+
+        private Line() {}
+
+        private void set(String rawText, String terminator) {
+            this.reader = null;
+            this.rawText = rawText;
+            this.terminator = terminator;
+            this.text = null;
+        }
+
+        private void set(LogLineReader reader) {
+            this.reader = reader;
+            this.rawText = null;
+            this.terminator = reader.getTerminator();
+            this.text = null;
+        }
+
+        /**
+         * The line as it is in the log, without the line terminator.
+         */
+        @NonNull
+        public String getRawText() {
+            if (rawText == null) {
+                rawText = reader.getRawText().toString();
+            }
+            return rawText;
+        }
+
+        /**
+         * Same as {@link #getRawText()}, but the characters may be reused for the next line, so they are only valid
+         * until {@link Consumer#accept(Line)} returns. This saves copying the line into a {@link String} when it is
+         * only looked at.
+         */
+        @NonNull
+        public CharSequence getRawChars() {
+            return reader != null ? reader.getRawText() : rawText;
+        }
+
+        /**
+         * The line with the console notes removed, without the line terminator. This is computed once for all the
+         * consumers.
+         */
+        @NonNull
+        public String getText() {
+            if (text == null) {
+                // Remove console notes (JENKINS-7402)
+                text = reader != null ? reader.getText().toString() : ConsoleNote.removeNotes(rawText);
+            }
+            return text;
+        }
+
+        /**
+         * Same as {@link #getText()}, but the characters may be reused for the next line, so they are only valid until
+         * {@link Consumer#accept(Line)} returns. This saves copying the line into a {@link String} when it is only
+         * looked at.
+         */
+        @NonNull
+        public CharSequence getChars() {
+            return reader != null ? reader.getText() : getText();
+        }
+
+        /**
+         * The characters that ended the line, empty for the last line of a log that doesn't end with a line
+         * terminator.
+         */
+        @NonNull
+        public String getTerminator() {
+            return terminator;
+        }
+    }
+
+    private final List<Consumer> consumers;
+    private final Line line = new Line();
+
+    private LogScanner(Collection<? extends Consumer> consumers) {
+        this.consumers = new ArrayList<>(consumers);
+    }
+
+    /**
+     * Reads the log of the run once for all the given consumers.
+     *
+     * <p>
+     * Logs in UTF-8, or in a single byte charset, are split into lines and have their console notes removed working on
+     * their bytes, see {@link LogLineReader}, other logs are read through a {@link Reader}.
+     */
+    public static void scan(Run<?, ?> run, Collection<? extends Consumer> consumers) throws IOException {
+        Charset charset = run.getCharset();
+        if (LogLineReader.supports(charset)) {
+            try (InputStream in = run.getLogInputStream()) {
+                new LogScanner(consumers).read(new LogLineReader(in, charset));
+            }
+            return;
+        }
+        try (Reader reader = run.getLogReader()) {
+            scan(reader, consumers);
+        }
+    }
+
+    /**
+     * Reads the log of the run for a single consumer.
+     *
+     * @return the result of the consumer
+     */
+    @CheckForNull
+    public static String scan(Run<?, ?> run, Consumer consumer) throws IOException {
+        scan(run, Collections.singletonList(consumer));
+        return consumer.getResult();
+    }
+
+    /**
+     * Reads the given log once for all the given consumers. The reader is left open.
+     */
+    public static void scan(Reader reader, Collection<? extends Consumer> consumers) throws IOException {
+        new LogScanner(consumers).read(reader);
+    }
+
+    /**
+     * Reads the lines of the reader once for all the given consumers.
+     */
+    static void scan(LogLineReader reader, Collection<? extends Consumer> consumers) throws IOException {
+        new LogScanner(consumers).read(reader);
+    }
+
+    private void read(LogLineReader reader) throws IOException {
+        while (!consumers.isEmpty() && reader.readLine()) {
+            line.set(reader);
+            accept();
+        }
+    }
+
+    private void read(Reader reader) throws IOException {
+        char[] buf = new char[BUFFER_SIZE];
+        StringBuilder pending = new StringBuilder();
+        // whether the last chunk ended with a carriage return, which may be followed by a line feed
+        boolean pendingCr = false;
+        int n;
+        while (!consumers.isEmpty() && (n = reader.read(buf)) != -1) {
+            int start = 0;
+            if (pendingCr && n > 0) {
+                pendingCr = false;
+                if (buf[0] == '\n') {
+                    start = 1;
+                    if (!emit(pending, "\r\n")) {
+                        return;
+                    }
+                } else if (!emit(pending, "\r")) {
+                    return;
+                }
+            }
+            for (int i = start; i < n; i++) {
+                char c = buf[i];
+                if (c != '\n' && c != '\r') {
+                    continue;
+                }
+                pending.append(buf, start, i - start);
+                String terminator = "\n";
+                if (c == '\r') {
+                    if (i + 1 == n) {
+                        pendingCr = true;
+                        start = n;
+                        break;
+                    }
+                    if (buf[i + 1] == '\n') {
+                        terminator = "\r\n";
+                        i++;
+                    } else {
+                        terminator = "\r";
+                    }
+                }
+                if (!emit(pending, terminator)) {
+                    return;
+                }
+                start = i + 1;
+            }
+            if (start < n) {
+                pending.append(buf, start, n - start);
+            }
+        }
+        if (pendingCr) {
+            emit(pending, "\r");
+        } else if (pending.length() > 0) {
+            emit(pending, "");
+        }
+    }
+
+    /**
+     * Hands the pending line to the consumers that still need lines, and starts the next one.
+     *
+     * @return false if none of them needs more lines
+     */
+    private boolean emit(StringBuilder pending, String terminator) throws IOException {
+        if (consumers.isEmpty()) {
+            return false;
+        }
+        line.set(pending.toString(), terminator);
+        pending.setLength(0);
+        accept();
+        return !consumers.isEmpty();
+    }
+
+    /**
+     * Hands the current line to the consumers, and drops the ones that need no more lines.
+     */
+    private void accept() throws IOException {
+        for (int i = consumers.size() - 1; i >= 0; i--) {
+            if (!consumers.get(i).accept(line)) {
+                consumers.remove(i);
+            }
+        }
+    }
+}
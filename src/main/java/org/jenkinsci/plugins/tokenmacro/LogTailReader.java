@@ -0,0 +1,266 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Functions;
+import hudson.console.ConsoleNote;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads the log file of a run backwards, from its end, in chunks of {@value #CHUNK_SIZE} bytes.
+ *
+ * <p>
+ * Macros that only need the last lines of a log use this to read kilobytes of it rather than all of it. Lines are
+ * decoded with the {@linkplain Run#getCharset() charset of the run}, and the {@link ConsoleNote}s are left in, so
+ * they only need to be removed from the lines that are actually used.
+ *
+ * <p>
+ * This only works for logs kept in a plain file, see {@link #open(Run)}.
+ */
+public final class LogTailReader implements Closeable {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final RandomAccessFile file;
+    private final Charset charset;
+    private final long length;
+
+    private final byte[] chunk;
+    /**
+     * The offset in the file of the first byte of {@link #chunk}.
+     */
+    private long chunkStart;
+    /**
+     * The number of bytes of {@link #chunk} that haven't been read yet.
+     */
+    private int pos;
+
+    /**
+     * The bytes of the line being read, last one first.
+     */
+    private byte[] line = new byte[256];
+    private int lineLength;
+
+    /**
+     * Whether a line ends at the current position, see {@link #readLine()}.
+     */
+    private boolean lineBefore;
+
+    private LogTailReader(File logFile, Charset charset) throws IOException {
+        this.file = new RandomAccessFile(logFile, "r");
+        this.charset = charset;
+        this.length = file.length();
+        this.chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(length, 1))];
+        this.chunkStart = length;
+        this.pos = 0;
+    }
+
+    /**
+     * Opens the log of the run for reading it backwards.
+     *
+     * @return null if the log isn't kept in a plain file, e.g. because it is compressed or stored elsewhere, it must
+     *      then be read through {@link Run#getLogReader()}
+     */
+    @CheckForNull
+    public static LogTailReader open(Run<?, ?> run) throws IOException {
+        File logFile = plainLogFile(run);
+        return logFile != null ? open(logFile, run.getCharset()) : null;
+    }
+
+    /**
+     * Opens a log file found with {@link #plainLogFile(Run)} for reading it backwards.
+     */
+    @NonNull
+    public static LogTailReader open(@NonNull File logFile, @NonNull Charset charset) throws IOException {
+        return new LogTailReader(logFile, charset);
+    }
+
+    /**
+     * Whether {@link #open(Run)} can read the log of the run.
+     */
+    public static boolean isSupported(Run<?, ?> run) {
+        return plainLogFile(run) != null;
+    }
+
+    /**
+     * The log file of the run, if the log is known to be kept in a plain file that can be read directly. That is only
+     * the case for {@link AbstractBuild}s, other runs, e.g. Pipeline ones, may keep their log elsewhere, and asking
+     * them for a file may copy the whole log to one, so their log is only read through {@link Run#getLogReader()}.
+     *
+     * <p>
+     * Callers look for the file once per evaluation, and hand it to the readers that take a {@link File}.
+     */
+    @CheckForNull
+    public static File plainLogFile(Run<?, ?> run) {
+        if (!(run instanceof AbstractBuild)) {
+            return null;
+        }
+        File logFile = run.getLogFile();
+        if (logFile == null || logFile.getName().endsWith(".gz") || !logFile.isFile() || run.getCharset() == null) {
+            return null;
+        }
+        return logFile;
+    }
+
+    /**
+     * Same as {@link Run#getLog(int)}, the last lines of the log with the console notes removed, including the
+     * <code>[...truncated ...]</code> line taking the place of the first one if the log has more lines. Falls back to
+     * {@link Run#getLog(int)} if the log can't be read backwards.
+     */
+    @NonNull
+    public static List<String> getLog(Run<?, ?> run, int maxLines) throws IOException {
+        if (maxLines == 0) {
+            return Collections.emptyList();
+        }
+        File logFile = plainLogFile(run);
+        if (logFile == null) {
+            return run.getLog(maxLines);
+        }
+        try (LogTailReader reader = open(logFile, run.getCharset())) {
+            return reader.getLog(maxLines);
+        }
+    }
+
+    /**
+     * Splits the lines like {@link Run#getLog(int)} does: at line feeds only, with all carriage returns dropped, and
+     * with a line feed at the very end of the log not counting as one.
+     */
+    private List<String> getLog(int maxLines) throws IOException {
+        int lines = 0;
+        long filePointer;
+        List<String> lastLines = new ArrayList<>(Math.min(maxLines, 128));
+        long fileLength = length - 1;
+        for (filePointer = fileLength; filePointer != -1 && maxLines != lines; filePointer--) {
+            byte readByte = (byte) previous();
+            if (readByte == '\n') {
+                if (filePointer < fileLength) {
+                    lines = lines + 1;
+                    lastLines.add(takeLine());
+                }
+            } else if (readByte != '\r') {
+                addToLine(readByte);
+            }
+        }
+        if (lines != maxLines) {
+            lastLines.add(takeLine());
+        }
+
+        Collections.reverse(lastLines);
+
+        // If the log has been truncated, include that information.
+        if (lines == maxLines) {
+            lastLines.set(0, "[...truncated " + Functions.humanReadableByteSize(filePointer) + "...]");
+        }
+
+        return ConsoleNote.removeNotes(lastLines);
+    }
+
+    /**
+     * Reads the line before the ones read so far, the last line of the log first.
+     *
+     * <p>
+     * Lines are split the way {@link java.io.BufferedReader#readLine()} splits them, at a line feed, a carriage return,
+     * or a carriage return followed by a line feed, so the lines come out the same as when reading the log forward,
+     * just in the opposite order.
+     *
+     * @return the line without its terminator, null once the start of the log is reached
+     */
+    @CheckForNull
+    public String readLine() throws IOException {
+        if (chunkStart == length && pos == 0) {
+            // at the end of the log, a terminator there doesn't start another line
+            if (length == 0) {
+                return null;
+            }
+            lineBefore = true;
+            int last = previous();
+            if (last == '\n') {
+                if (peekPrevious() == '\r') {
+                    previous();
+                }
+            } else if (last != '\r') {
+                pos++;
+            }
+        }
+        if (!lineBefore) {
+            return null;
+        }
+        lineBefore = false;
+        int b;
+        while ((b = previous()) != -1) {
+            if (b == '\n') {
+                if (peekPrevious() == '\r') {
+                    previous();
+                }
+                lineBefore = true;
+                break;
+            } else if (b == '\r') {
+                lineBefore = true;
+                break;
+            }
+            addToLine((byte) b);
+        }
+        return takeLine();
+    }
+
+    private int previous() throws IOException {
+        if (pos == 0 && !loadPreviousChunk()) {
+            return -1;
+        }
+        return chunk[--pos] & 0xff;
+    }
+
+    private int peekPrevious() throws IOException {
+        if (pos == 0 && !loadPreviousChunk()) {
+            return -1;
+        }
+        return chunk[pos - 1] & 0xff;
+    }
+
+    private boolean loadPreviousChunk() throws IOException {
+        if (chunkStart == 0) {
+            return false;
+        }
+        long start = Math.max(0, chunkStart - chunk.length);
+        int size = (int) (chunkStart - start);
+        file.seek(start);
+        file.readFully(chunk, 0, size);
+        chunkStart = start;
+        pos = size;
+        return true;
+    }
+
+    private void addToLine(byte b) {
+        if (lineLength == line.length) {
+            byte[] bigger = new byte[line.length * 2];
+            System.arraycopy(line, 0, bigger, 0, lineLength);
+            line = bigger;
+        }
+        line[lineLength++] = b;
+    }
+
+    private String takeLine() {
+        for (int i = 0, j = lineLength - 1; i < j; i++, j--) {
+            byte b = line[i];
+            line[i] = line[j];
+            line[j] = b;
+        }
+        String result = new String(line, 0, lineLength, charset);
+        lineLength = 0;
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
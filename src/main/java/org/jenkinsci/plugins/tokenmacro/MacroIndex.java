@@ -0,0 +1,143 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.ExtensionList;
+import hudson.ExtensionListListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps macro names to the {@link TokenMacro} that evaluates them.
+ *
+ * <p>
+ * A name resolves to the first macro, in registration order, whose {@link TokenMacro#acceptsMacroName(String)}
+ * accepts it, the same as scanning the list. The names advertised through {@link TokenMacro#getAcceptedMacroNames()}
+ * are resolved when the index is built, so looking them up is a hash lookup. Other names, e.g. the ones of macros
+ * that don't advertise their names, or unknown ones, are resolved by scanning the list on first use, and the outcome,
+ * including finding no macro, is remembered for as long as the index is used, as macros are expected to accept the
+ * same names for as long as they are registered.
+ */
+final class MacroIndex {
+
+    private static volatile MacroIndex global;
+
+    private static ExtensionList<TokenMacro> listening;
+
+    /**
+     * The most names whose scan of all macros is remembered, so that templates full of unknown names don't grow
+     * the index without bounds.
+     */
+    static final int MAX_SCANNED_NAMES = 1024;
+
+    private final List<TokenMacro> macros;
+    private final Map<String, Optional<TokenMacro>> byName = new HashMap<>();
+    private final Map<String, Optional<TokenMacro>> scanned = new ConcurrentHashMap<>();
+    private final Object source;
+
+    private MacroIndex(Iterable<TokenMacro> macros, Object source) {
+        this.source = source;
+        List<TokenMacro> list = new ArrayList<>();
+        for (TokenMacro tm : macros) {
+            if (tm != null) {
+                list.add(tm);
+            }
+        }
+        this.macros = Collections.unmodifiableList(list);
+        for (TokenMacro tm : list) {
+            List<String> names = tm.getAcceptedMacroNames();
+            if (names == null) {
+                continue;
+            }
+            for (String name : names) {
+                // a macro registered earlier may accept the name without advertising it, and then takes precedence
+                byName.computeIfAbsent(name, n -> Optional.ofNullable(scan(n)));
+            }
+        }
+    }
+
+    /**
+     * Creates an index over the given macros, e.g. the private macros of a single expansion. {@code null} entries
+     * are ignored.
+     */
+    static MacroIndex of(@CheckForNull Iterable<TokenMacro> macros) {
+        return new MacroIndex(macros != null ? macros : Collections.emptyList(), null);
+    }
+
+    /**
+     * The index over {@link TokenMacro#all()}, rebuilt whenever the extension list changes.
+     */
+    static MacroIndex global() {
+        ExtensionList<TokenMacro> all = TokenMacro.all();
+        MacroIndex index = global;
+        if (index == null || index.source != all) {
+            index = new MacroIndex(all, all);
+            global = index;
+            listenTo(all);
+        }
+        return index;
+    }
+
+    private static synchronized void listenTo(ExtensionList<TokenMacro> all) {
+        if (listening == all) {
+            return;
+        }
+        listening = all;
+        all.addListener(new ExtensionListListener() {
+            @Override
+            public void onChange() {
+                global = null;
+            }
+        });
+    }
+
+    /**
+     * Finds the first macro, in registration order, that accepts the given name.
+     *
+     * @return null if no macro accepts the name
+     */
+    @CheckForNull
+    TokenMacro lookup(String macroName) {
+        Optional<TokenMacro> found = byName.get(macroName);
+        if (found == null) {
+            found = scanned.get(macroName);
+        }
+        if (found == null) {
+            found = Optional.ofNullable(scan(macroName));
+            if (scanned.size() < MAX_SCANNED_NAMES) {
+                scanned.putIfAbsent(macroName, found);
+            }
+        }
+        return found.orElse(null);
+    }
+
+    @CheckForNull
+    private TokenMacro scan(String macroName) {
+        for (TokenMacro tm : macros) {
+            if (tm.acceptsMacroName(macroName)) {
+                return tm;
+            }
+        }
+        return null;
+    }
+
+    List<TokenMacro> getMacros() {
+        return macros;
+    }
+
+    /**
+     * Whether the given instance is one of the indexed macros.
+     */
+    boolean contains(TokenMacro macro) {
+        for (TokenMacro tm : macros) {
+            if (tm == macro) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
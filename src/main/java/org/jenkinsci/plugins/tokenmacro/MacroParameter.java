@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+/**
+ * Describes a {@link DataBoundTokenMacro.Parameter} of a macro, e.g. for auto-completion or validation of tokens.
+ *
+ * @see DataBoundTokenMacro#getParameters()
+ */
+public final class MacroParameter {
+
+    private final String name;
+    private final String memberName;
+    private final Class<?> type;
+    private final boolean required;
+    private final Object defaultValue;
+
+    MacroParameter(String name, String memberName, Class<?> type, boolean required, Object defaultValue) {
+        this.name = name;
+        this.memberName = memberName;
+        this.type = type;
+        this.required = required;
+        this.defaultValue = defaultValue;
+    }
+
+    /**
+     * The name of the parameter in a token, i.e. the alias if one is given.
+     */
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The name of the annotated field, or of the property set by the annotated method.
+     */
+    @NonNull
+    public String getMemberName() {
+        return memberName;
+    }
+
+    /**
+     * The alias given in the annotation, if any.
+     */
+    @CheckForNull
+    public String getAlias() {
+        return name.equals(memberName) ? null : name;
+    }
+
+    /**
+     * The type the value of the parameter is converted to.
+     */
+    @NonNull
+    public Class<?> getType() {
+        return type;
+    }
+
+    public boolean isRequired() {
+        return required;
+    }
+
+    /**
+     * The value of an annotated field when the parameter isn't given, null for parameters set through methods.
+     */
+    @CheckForNull
+    public Object getDefaultValue() {
+        return defaultValue;
+    }
+
+    @Override
+    public String toString() {
+        return name + ":" + type.getSimpleName() + (required ? " (required)" : "");
+    }
+}
@@ -0,0 +1,135 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimaps;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The arguments of a token, converted to the types of the {@link DataBoundTokenMacro.Parameter}s of a macro class.
+ *
+ * <p>
+ * Instances are immutable, so macros evaluated through
+ * {@link DataBoundTokenMacro#evaluate(hudson.model.Run, hudson.FilePath, hudson.model.TaskListener, String, MacroParameters)}
+ * can use one shared instance for all evaluations instead of having the arguments bound to a copy of it.
+ * Parameters that aren't given in the token have the value the annotated field has in a new instance.
+ */
+public final class MacroParameters {
+
+    private final ParameterBinder binder;
+    private final String macroName;
+    private final Map<String, String> arguments;
+    private final ListMultimap<String, String> argumentMultimap;
+
+    /**
+     * The converted values of the given parameters, by name. The last one wins for parameters given more than once,
+     * as it would when they are bound to fields.
+     */
+    private final Map<String, Object> values;
+
+    /**
+     * The converted values of all the entries of {@link #argumentMultimap}, in the same order.
+     */
+    private final Object[] convertedValues;
+
+    MacroParameters(
+            ParameterBinder binder,
+            String macroName,
+            Map<String, String> arguments,
+            ListMultimap<String, String> argumentMultimap,
+            Map<String, Object> values,
+            Object[] convertedValues) {
+        this.binder = binder;
+        this.macroName = macroName;
+        // views rather than copies, the arguments of parsed templates don't change
+        this.arguments = Collections.unmodifiableMap(arguments);
+        this.argumentMultimap = Multimaps.unmodifiableListMultimap(argumentMultimap);
+        this.values = values;
+        this.convertedValues = convertedValues;
+    }
+
+    /**
+     * Whether the parameters were checked and converted for the given macro class.
+     */
+    boolean isFor(Class<?> type) {
+        return binder.getType() == type;
+    }
+
+    Object[] getConvertedValues() {
+        return convertedValues;
+    }
+
+    /**
+     * The name of the macro in the token the parameters were given to.
+     */
+    @NonNull
+    public String getMacroName() {
+        return macroName;
+    }
+
+    /**
+     * The arguments as they were given in the token, before conversion.
+     */
+    @NonNull
+    public Map<String, String> getArguments() {
+        return arguments;
+    }
+
+    /**
+     * All the arguments as they were given in the token, before conversion, including repeated ones.
+     */
+    @NonNull
+    public ListMultimap<String, String> getArgumentMultimap() {
+        return argumentMultimap;
+    }
+
+    /**
+     * Whether the parameter was given in the token.
+     */
+    public boolean isSet(String name) {
+        return values.containsKey(name);
+    }
+
+    /**
+     * The value of a parameter, converted to its type.
+     *
+     * @param name the name of the parameter in a token, i.e. the alias if one is given
+     * @return the given value, or the default one if the parameter isn't given
+     * @throws IllegalArgumentException if the macro has no such parameter
+     */
+    @CheckForNull
+    public Object get(String name) {
+        if (values.containsKey(name)) {
+            return values.get(name);
+        }
+        return binder.getDefaultValue(name);
+    }
+
+    @CheckForNull
+    public String getString(String name) {
+        Object value = get(name);
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * The value of a numeric parameter, 0 if it has none.
+     */
+    public int getInt(String name) {
+        Object value = get(name);
+        return value != null ? ((Number) value).intValue() : 0;
+    }
+
+    /**
+     * The value of a boolean parameter, false if it has none.
+     */
+    public boolean getBoolean(String name) {
+        return Boolean.TRUE.equals(get(name));
+    }
+
+    @Override
+    public String toString() {
+        return macroName + argumentMultimap;
+    }
+}
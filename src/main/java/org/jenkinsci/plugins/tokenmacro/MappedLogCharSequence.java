@@ -0,0 +1,411 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Functions;
+import hudson.console.ConsoleNote;
+import hudson.model.Run;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import jenkins.util.SystemProperties;
+
+/**
+ * The text of the log of a completed run as a {@link CharSequence} read from the log file mapped in memory, so that
+ * a regular expression can go over the whole log without a copy of it on the heap.
+ *
+ * <p>
+ * The text is split into pages, runs of bytes that decode the same on their own as within the log. Pages of US-ASCII
+ * bytes are read straight from the mapping, the others are decoded the first time one of their characters is needed,
+ * and the last two of those are kept. The pages are found going through the log only as far as the characters asked
+ * for, so looking at the start of the log only reads that part of it, while {@link #length()} reads all of it.
+ *
+ * <p>
+ * The text is the same as the lines and line terminators {@link LogScanner} hands out, with or without the
+ * {@link ConsoleNote}s, which are dropped line by line the way {@link LogLineReader} drops them.
+ *
+ * <p>
+ * Not thread-safe. The mapping is released once the sequence is garbage collected, and on Windows a mapped log can't
+ * be deleted until then, so logs are only mapped there if {@link #ENABLED} is set.
+ */
+public final class MappedLogCharSequence implements CharSequence {
+
+    /**
+     * Whether the logs of completed runs may be mapped, by default everywhere but on Windows.
+     */
+    static final boolean ENABLED = SystemProperties.getBoolean(
+            MappedLogCharSequence.class.getName() + ".enabled", !Functions.isWindows());
+
+    private static final int PAGE_SIZE = 16 * 1024;
+
+    private final ByteBuffer bytes;
+    private final ByteBuffer input;
+    private final int size;
+    private final boolean removeNotes;
+    private final int pageSize;
+    private final CharsetDecoder decoder;
+
+    /**
+     * The pages found so far: where their bytes start and end in the log, where their text starts, and which ones
+     * are all US-ASCII. The text of the last one ends at {@link #charEnd}, the length once the whole log is read.
+     */
+    private int[] pageByteStart = new int[64];
+    private int[] pageByteEnd = new int[64];
+    private int[] pageCharStart = new int[64];
+    private final BitSet asciiPages = new BitSet();
+    private int pageCount;
+    private int charEnd;
+
+    /**
+     * Where in the log the next line to go through starts.
+     */
+    private int bytePos;
+
+    /**
+     * The bytes of the page being put together, -1 if none, and whether they are all US-ASCII.
+     */
+    private int openStart = -1;
+    private int openEnd = -1;
+    private boolean openAscii;
+
+    /**
+     * The page that was read last, with its text from {@link #currentStart} to {@link #currentEnd}, read at
+     * {@link #currentByte} of the log if it is US-ASCII, from {@link #currentChars} otherwise.
+     */
+    private int currentStart;
+    private int currentEnd;
+    private int currentByte;
+    private char[] currentChars;
+
+    /**
+     * The pages decoded last, the latest first.
+     */
+    private final int[] decodedPages = {-1, -1};
+    private final char[][] decodedChars = new char[2][];
+    private final CharBuffer[] decodedBuffers = new CharBuffer[2];
+
+    /**
+     * A copy of the line the notes are removed from, and where each of its bytes is in the log.
+     */
+    private byte[] line = new byte[256];
+    private int[] offsets = new int[256];
+
+    MappedLogCharSequence(ByteBuffer bytes, Charset charset, boolean removeNotes, int pageSize) {
+        this.bytes = bytes;
+        this.input = bytes.duplicate();
+        this.size = bytes.limit();
+        this.removeNotes = removeNotes;
+        this.pageSize = pageSize;
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // a page is at most three times the page size, see add()
+        int capacity = (int) Math.ceil(3 * pageSize * (double) decoder.maxCharsPerByte()) + 1;
+        for (int i = 0; i < decodedChars.length; i++) {
+            decodedChars[i] = new char[capacity];
+            decodedBuffers[i] = CharBuffer.wrap(decodedChars[i]);
+        }
+    }
+
+    /**
+     * Maps the log of the run.
+     *
+     * @param removeNotes whether the text is without the {@link ConsoleNote}s, as {@link LogScanner.Line#getChars()}
+     *     rather than {@link LogScanner.Line#getRawChars()}
+     * @return null if the log can't be mapped, see {@link #isSupported(Run)}
+     */
+    @CheckForNull
+    public static MappedLogCharSequence open(Run<?, ?> run, boolean removeNotes) throws IOException {
+        File logFile = mappableLogFile(run);
+        if (logFile == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            return new MappedLogCharSequence(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, size), run.getCharset(), removeNotes, PAGE_SIZE);
+        }
+    }
+
+    /**
+     * Whether {@link #open(Run, boolean)} can map the log of the run: the run has to be completed, with its log in a
+     * plain file of less than 2GB, in UTF-8 or another charset whose lines and notes can be found in the bytes, see
+     * {@link LogLineReader#supports(Charset)}.
+     */
+    public static boolean isSupported(Run<?, ?> run) {
+        return mappableLogFile(run) != null;
+    }
+
+    @CheckForNull
+    private static File mappableLogFile(Run<?, ?> run) {
+        if (!ENABLED || run.isLogUpdated() || !LogLineReader.supports(run.getCharset())) {
+            return null;
+        }
+        File logFile = LogTailReader.plainLogFile(run);
+        return logFile != null && logFile.length() <= Integer.MAX_VALUE ? logFile : null;
+    }
+
+    /**
+     * The number of characters of the text, which reads the whole log.
+     */
+    @Override
+    public int length() {
+        while (findPages()) {
+            // until the end of the log
+        }
+        return charEnd;
+    }
+
+    /**
+     * Whether the text is longer than the index, which unlike {@link #length()} only reads the log as far as that.
+     */
+    public boolean hasCharAt(int index) {
+        while (index >= charEnd) {
+            if (!findPages()) {
+                return false;
+            }
+        }
+        return index >= 0;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < currentStart || index >= currentEnd) {
+            moveTo(index);
+        }
+        if (currentChars != null) {
+            return currentChars[index - currentStart];
+        }
+        return (char) bytes.get(currentByte + index - currentStart);
+    }
+
+    /**
+     * Returns the characters as a {@link String}.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || start > end || (end > start && !hasCharAt(end - 1))) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end);
+        }
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = charAt(start + i);
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+
+    private void moveTo(int index) {
+        if (!hasCharAt(index)) {
+            throw new IndexOutOfBoundsException("index " + index);
+        }
+        int page = Arrays.binarySearch(pageCharStart, 0, pageCount, index);
+        if (page < 0) {
+            page = -page - 2;
+        }
+        currentChars = asciiPages.get(page) ? null : decoded(page);
+        currentStart = pageCharStart[page];
+        currentEnd = page + 1 < pageCount ? pageCharStart[page + 1] : charEnd;
+        currentByte = pageByteStart[page];
+    }
+
+    /**
+     * The characters of a page that isn't all US-ASCII, decoding it unless it was one of the last two.
+     */
+    private char[] decoded(int page) {
+        if (decodedPages[0] != page) {
+            if (decodedPages[1] != page) {
+                decode(page, pageByteStart[page], pageByteEnd[page]);
+            }
+            swapDecoded();
+        }
+        return decodedChars[0];
+    }
+
+    /**
+     * Decodes the bytes of a page into the older of the two decoded pages.
+     *
+     * @return the number of characters
+     */
+    private int decode(int page, int start, int end) {
+        if (currentChars == decodedChars[1]) {
+            // the page that was read last is the one overwritten
+            currentStart = 0;
+            currentEnd = 0;
+        }
+        decodedPages[1] = page;
+        input.clear();
+        input.limit(end).position(start);
+        CharBuffer out = decodedBuffers[1];
+        out.clear();
+        decoder.reset();
+        decoder.decode(input, out, true);
+        decoder.flush(out);
+        return out.position();
+    }
+
+    private void swapDecoded() {
+        int page = decodedPages[0];
+        decodedPages[0] = decodedPages[1];
+        decodedPages[1] = page;
+        char[] chars = decodedChars[0];
+        decodedChars[0] = decodedChars[1];
+        decodedChars[1] = chars;
+        CharBuffer buffer = decodedBuffers[0];
+        decodedBuffers[0] = decodedBuffers[1];
+        decodedBuffers[1] = buffer;
+    }
+
+    /**
+     * Goes through the next lines of the log, at least a page of it, and adds their pages.
+     *
+     * @return false if the end of the log was already reached
+     */
+    private boolean findPages() {
+        if (bytePos == size) {
+            return false;
+        }
+        int stop = bytePos + Math.min(pageSize, size - bytePos);
+        while (bytePos < stop) {
+            // the lines end the way LogLineReader ends them
+            int start = bytePos;
+            boolean hasEscape = false;
+            int end = start;
+            for (; end < size; end++) {
+                byte b = bytes.get(end);
+                if (b == '\n' || b == '\r') {
+                    break;
+                }
+                if (b == LogLineReader.ESC) {
+                    hasEscape = true;
+                }
+            }
+            int next = end;
+            if (next < size) {
+                next += bytes.get(next) == '\r' && next + 1 < size && bytes.get(next + 1) == '\n' ? 2 : 1;
+            }
+            if (removeNotes && hasEscape) {
+                addWithoutNotes(start, end);
+            } else {
+                add(start, end);
+            }
+            add(end, next);
+            bytePos = next;
+        }
+        // the next page starts at a line, which decodes on its own
+        closePage();
+        return true;
+    }
+
+    /**
+     * Drops the notes from a copy of the line, the same way {@link LogLineReader} does, then adds the bytes left in
+     * runs that were next to each other in the log, as the bytes on both sides of a note are decoded separately.
+     */
+    private void addWithoutNotes(int start, int end) {
+        int length = end - start;
+        if (line.length < length) {
+            line = new byte[Math.max(length, line.length * 2)];
+            offsets = new int[line.length];
+        }
+        for (int i = 0; i < length; i++) {
+            line[i] = bytes.get(start + i);
+            offsets[i] = start + i;
+        }
+        int from = 0;
+        int noteStart;
+        while ((noteStart = LogLineReader.indexOf(line, length, LogLineReader.PREAMBLE, from)) >= 0) {
+            int noteEnd = LogLineReader.indexOf(
+                    line, length, LogLineReader.POSTAMBLE, noteStart + LogLineReader.PREAMBLE.length);
+            if (noteEnd < 0) {
+                break;
+            }
+            noteEnd += LogLineReader.POSTAMBLE.length;
+            System.arraycopy(line, noteEnd, line, noteStart, length - noteEnd);
+            System.arraycopy(offsets, noteEnd, offsets, noteStart, length - noteEnd);
+            length -= noteEnd - noteStart;
+            // removing the note may have completed a preamble that starts before it
+            from = Math.max(0, noteStart - LogLineReader.PREAMBLE.length + 1);
+        }
+        int runStart = 0;
+        for (int i = 1; i <= length; i++) {
+            if (i == length || offsets[i] != offsets[i - 1] + 1) {
+                add(offsets[runStart], offsets[i - 1] + 1);
+                runStart = i;
+            }
+        }
+    }
+
+    /**
+     * Adds bytes of the log to the page being put together if they follow it, to a new page otherwise.
+     *
+     * <p>
+     * A page ends once it is at least the page size, before a US-ASCII byte, which is never part of a multibyte
+     * character. If there is none, it ends before the first byte of a character once it is twice that size, or
+     * anywhere at three times that size, which is within a run of bytes that can only be decoded one by one as
+     * malformed input.
+     */
+    private void add(int start, int end) {
+        if (start == end) {
+            return;
+        }
+        if (start != openEnd) {
+            closePage();
+            openStart = start;
+            openAscii = true;
+        }
+        for (int i = start; i < end; i++) {
+            byte b = bytes.get(i);
+            int length = i - openStart;
+            if (length >= pageSize
+                    && (b >= 0 || (length >= 2 * pageSize && (b & 0xc0) != 0x80) || length >= 3 * pageSize)) {
+                openEnd = i;
+                closePage();
+                openStart = i;
+                openAscii = true;
+            }
+            if (b < 0) {
+                openAscii = false;
+            }
+        }
+        openEnd = end;
+    }
+
+    private void closePage() {
+        if (openStart == openEnd) {
+            return;
+        }
+        if (pageCount == pageByteStart.length) {
+            pageByteStart = Arrays.copyOf(pageByteStart, pageCount * 2);
+            pageByteEnd = Arrays.copyOf(pageByteEnd, pageCount * 2);
+            pageCharStart = Arrays.copyOf(pageCharStart, pageCount * 2);
+        }
+        int page = pageCount++;
+        pageByteStart[page] = openStart;
+        pageByteEnd[page] = openEnd;
+        pageCharStart[page] = charEnd;
+        if (openAscii) {
+            asciiPages.set(page);
+            charEnd += openEnd - openStart;
+        } else {
+            // the page is likely to be read next
+            charEnd += decode(page, openStart, openEnd);
+            swapDecoded();
+        }
+        openStart = -1;
+        openEnd = -1;
+    }
+}
@@ -0,0 +1,99 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.springframework.security.core.Authentication;
+
+/**
+ * Evaluates tokens of a template concurrently, for macros that {@linkplain TokenMacro#supportsConcurrentEvaluation()
+ * support it}.
+ *
+ * <p>
+ * This is opt-in through the {@code org.jenkinsci.plugins.tokenmacro.Parser.parallel} system property. Evaluations
+ * run on a bounded pool (see {@link #THREADS}) as the user that started the expansion. When the pool is busy, the
+ * evaluation runs on the calling thread instead. Expansions started from within the pool, e.g. for nested content,
+ * are never parallelized, so they cannot wait on the pool they are running in.
+ */
+final class ParallelEvaluation {
+
+    static /* non-final for script console */ volatile boolean ENABLED =
+            SystemProperties.getBoolean(Parser.class.getName() + ".parallel");
+
+    static final int THREADS = SystemProperties.getInteger(Parser.class.getName() + ".parallelThreads", 4);
+
+    private static final ThreadLocal<Boolean> IN_POOL = new ThreadLocal<>();
+
+    private static ExecutorService executor;
+
+    private ParallelEvaluation() {}
+
+    /**
+     * Whether tokens evaluated on the current thread may be handed to the pool.
+     */
+    static boolean isAvailable() {
+        return ENABLED && THREADS > 0 && IN_POOL.get() == null;
+    }
+
+    static <T> Future<T> submit(Callable<T> task) {
+        Authentication auth = Jenkins.getAuthentication2();
+        return executor().submit(() -> {
+            IN_POOL.set(Boolean.TRUE);
+            try (ACLContext ctx = ACL.as2(auth)) {
+                return task.call();
+            } finally {
+                IN_POOL.remove();
+            }
+        });
+    }
+
+    /**
+     * Waits for the evaluation and rethrows whatever it failed with.
+     */
+    static <T> T get(Future<T> future) throws MacroEvaluationException, IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof MacroEvaluationException) {
+                throw (MacroEvaluationException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static synchronized ExecutorService executor() {
+        if (executor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                    THREADS,
+                    THREADS,
+                    60,
+                    TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(THREADS * 16),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "TokenMacro parallel evaluation"),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,570 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import com.google.common.collect.ListMultimap;
+import java.beans.Introspector;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.beanutils.ConvertUtils;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Binds the arguments of a token to the {@link DataBoundTokenMacro.Parameter}s of a macro class.
+ *
+ * <p>
+ * The annotated fields and methods of a class are looked up once and turned into {@link MethodHandle}s. Values for
+ * {@code int}, {@code boolean} and {@code String} parameters are converted without going through
+ * {@link ConvertUtils}, with the same results: numbers that don't parse become 0, and booleans are true for
+ * {@code true}, {@code yes}, {@code y}, {@code on} and {@code 1} only. Other types, and members the handles can't
+ * be created for, are still set through reflection and {@link ConvertUtils}.
+ *
+ * <p>
+ * Binders are created when a macro class is first evaluated (or its parameters are first asked for), not when its
+ * instances are created, so loading the macro extensions at startup doesn't reflect over them.
+ */
+final class ParameterBinder {
+
+    private static final ClassValue<ParameterBinder> BINDERS = new ClassValue<ParameterBinder>() {
+        @Override
+        protected ParameterBinder computeValue(Class<?> type) {
+            return new ParameterBinder(type.asSubclass(DataBoundTokenMacro.class));
+        }
+    };
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private final Class<? extends DataBoundTokenMacro> type;
+
+    /**
+     * The no-arg constructor, null if it has to be called through {@link Class#newInstance()}.
+     */
+    private final MethodHandle constructor;
+
+    private final Map<String, Binding> bindings = new ConcurrentHashMap<>();
+
+    /**
+     * The annotated fields and methods, by parameter name.
+     */
+    private final Map<String, Member> members = new TreeMap<>();
+
+    /**
+     * Names of the required parameters, in the order they are reported when missing.
+     */
+    private final String[] required;
+
+    /**
+     * Whether there are parameters besides {@code escapeHtml}, which the caller applies to the result.
+     */
+    private final boolean hasParameters;
+
+    private volatile List<MacroParameter> parameters;
+
+    private volatile Map<String, Object> defaults;
+
+    private ParameterBinder(Class<? extends DataBoundTokenMacro> type) {
+        this.type = type;
+        this.constructor = findConstructor(type);
+
+        for (Field f : type.getFields()) {
+            DataBoundTokenMacro.Parameter p = f.getAnnotation(DataBoundTokenMacro.Parameter.class);
+            if (p != null) {
+                String name = f.getName();
+                if (StringUtils.isNotEmpty(p.alias())) {
+                    name = p.alias();
+                }
+                bindings.put(name, Binding.forField(f, p.required()));
+                members.put(name, f);
+            }
+        }
+
+        for (Method m : type.getMethods()) {
+            DataBoundTokenMacro.Parameter p = m.getAnnotation(DataBoundTokenMacro.Parameter.class);
+            if (p != null) {
+                if (m.getParameterTypes().length != 1)
+                    throw new IllegalArgumentException(
+                            "Expecting one-arg method for @Parameter but found " + m + " instead");
+
+                String name = propertyName(m);
+                if (StringUtils.isNotEmpty(p.alias())) {
+                    name = p.alias();
+                }
+                bindings.put(name, Binding.forMethod(m, p.required()));
+                members.put(name, m);
+            }
+        }
+
+        List<String> names = new ArrayList<>();
+        for (Entry<String, Binding> e : bindings.entrySet()) {
+            if (e.getValue().required) {
+                names.add(e.getKey());
+            }
+        }
+        required = names.toArray(new String[0]);
+        hasParameters = bindings.size() > 1 || !bindings.containsKey("escapeHtml");
+    }
+
+    static ParameterBinder of(Class<? extends DataBoundTokenMacro> type) {
+        return BINDERS.get(type);
+    }
+
+    private static String propertyName(Method m) {
+        String name = m.getName();
+        if (name.startsWith("set")) {
+            name = Introspector.decapitalize(name.substring(3));
+        }
+        return name;
+    }
+
+    /**
+     * Describes the parameters, sorted by name. The defaults are read from an instance created on first use.
+     */
+    List<MacroParameter> getParameters() {
+        List<MacroParameter> result = parameters;
+        if (result == null) {
+            Object defaults = null;
+            try {
+                defaults = newInstance();
+            } catch (Exception e) {
+                // no defaults for macros that fail to instantiate
+            } catch (Error e) {
+                if (!(e.getCause() instanceof ReflectiveOperationException)) {
+                    throw e;
+                }
+            }
+            result = new ArrayList<>();
+            for (Entry<String, Member> e : members.entrySet()) {
+                Member member = e.getValue();
+                Object defaultValue = null;
+                Class<?> memberType;
+                String memberName;
+                if (member instanceof Field) {
+                    Field f = (Field) member;
+                    memberType = f.getType();
+                    memberName = f.getName();
+                    if (defaults != null || Modifier.isStatic(f.getModifiers())) {
+                        try {
+                            defaultValue = f.get(defaults);
+                        } catch (IllegalAccessException | IllegalArgumentException x) {
+                            // no default then
+                        }
+                    }
+                } else {
+                    Method m = (Method) member;
+                    memberType = m.getParameterTypes()[0];
+                    memberName = propertyName(m);
+                }
+                result.add(new MacroParameter(
+                        e.getKey(), memberName, memberType, bindings.get(e.getKey()).required, defaultValue));
+            }
+            result = Collections.unmodifiableList(result);
+            parameters = result;
+        }
+        return result;
+    }
+
+    /**
+     * The value a parameter has when it isn't given.
+     *
+     * @throws IllegalArgumentException if there is no such parameter
+     */
+    Object getDefaultValue(String name) {
+        Map<String, Object> result = defaults;
+        if (result == null) {
+            result = new HashMap<>();
+            for (MacroParameter p : getParameters()) {
+                result.put(p.getName(), p.getDefaultValue());
+            }
+            defaults = result;
+        }
+        if (!result.containsKey(name)) {
+            throw new IllegalArgumentException("No parameter " + name + " in " + type.getName());
+        }
+        return result.get(name);
+    }
+
+    private static MethodHandle findConstructor(Class<?> type) {
+        try {
+            return LOOKUP.findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(DataBoundTokenMacro.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            // let Class.newInstance report it, as it always did
+            return null;
+        }
+    }
+
+    /**
+     * Creates a new instance of the macro class with the given arguments bound to it.
+     */
+    DataBoundTokenMacro bind(
+            String macroName, Map<String, String> arguments, ListMultimap<String, String> argumentMultimap)
+            throws MacroEvaluationException {
+        DataBoundTokenMacro copy = newInstance();
+
+        for (Entry<String, String> e : argumentMultimap.entries()) {
+            Binding b = bindings.get(e.getKey());
+            if (b == null)
+                throw new MacroEvaluationException(
+                        MessageFormat.format("Undefined parameter {0} in token {1}", e.getKey(), macroName));
+            b.set(copy, e.getValue());
+        }
+
+        for (String name : required) {
+            if (!arguments.containsKey(name))
+                throw new MacroEvaluationException(MessageFormat.format(
+                        "Parameter {0} in token {1} is required but was not specfified", name, macroName));
+        }
+
+        return copy;
+    }
+
+    /**
+     * Checks the arguments and converts them to the types of the parameters, without creating an instance.
+     */
+    MacroParameters parameters(
+            String macroName, Map<String, String> arguments, ListMultimap<String, String> argumentMultimap)
+            throws MacroEvaluationException {
+        Map<String, Object> values = new HashMap<>();
+        Object[] converted = new Object[argumentMultimap.size()];
+        int i = 0;
+        for (Entry<String, String> e : argumentMultimap.entries()) {
+            Binding b = bindings.get(e.getKey());
+            if (b == null)
+                throw new MacroEvaluationException(
+                        MessageFormat.format("Undefined parameter {0} in token {1}", e.getKey(), macroName));
+            converted[i] = b.convert(e.getValue());
+            values.put(e.getKey(), converted[i++]);
+        }
+
+        for (String name : required) {
+            if (!arguments.containsKey(name))
+                throw new MacroEvaluationException(MessageFormat.format(
+                        "Parameter {0} in token {1} is required but was not specfified", name, macroName));
+        }
+
+        return new MacroParameters(this, macroName, arguments, argumentMultimap, values, converted);
+    }
+
+    /**
+     * Finds all the problems {@link #parameters} would report the first of, in the same order.
+     */
+    List<String> check(String macroName, Map<String, String> arguments, ListMultimap<String, String> argumentMultimap) {
+        List<String> problems = new ArrayList<>();
+        for (String name : argumentMultimap.keySet()) {
+            if (!bindings.containsKey(name)) {
+                problems.add(MessageFormat.format("Undefined parameter {0} in token {1}", name, macroName));
+            }
+        }
+        for (String name : required) {
+            if (!arguments.containsKey(name)) {
+                problems.add(MessageFormat.format(
+                        "Parameter {0} in token {1} is required but was not specfified", name, macroName));
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * Creates a new instance of the macro class with already checked and converted parameters bound to it.
+     */
+    DataBoundTokenMacro bind(MacroParameters parameters) {
+        DataBoundTokenMacro copy = newInstance();
+        Object[] converted = parameters.getConvertedValues();
+        int i = 0;
+        for (Entry<String, String> e : parameters.getArgumentMultimap().entries()) {
+            bindings.get(e.getKey()).set(copy, e.getValue(), converted[i++]);
+        }
+        return copy;
+    }
+
+    /**
+     * Whether binding would set anything but {@code escapeHtml}. Macros without parameters of their own don't need a
+     * new instance to be evaluated.
+     */
+    boolean hasParameters() {
+        return hasParameters;
+    }
+
+    Class<? extends DataBoundTokenMacro> getType() {
+        return type;
+    }
+
+    @SuppressWarnings("deprecation")
+    private DataBoundTokenMacro newInstance() {
+        try {
+            if (constructor != null) {
+                return (DataBoundTokenMacro) constructor.invokeExact();
+            }
+            return type.newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new Error(e);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            // a checked exception thrown by the constructor, which Class.newInstance passes through as well
+            throw sneakyThrow(e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> RuntimeException sneakyThrow(Throwable t) throws T {
+        throw (T) t;
+    }
+
+    static int toInt(String value) {
+        if (value == null) {
+            return 0;
+        }
+        String s = value.trim();
+        if (s.isEmpty()) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static boolean toBoolean(String value) {
+        if (value == null) {
+            return false;
+        }
+        switch (value.toLowerCase()) {
+            case "true":
+            case "yes":
+            case "y":
+            case "on":
+            case "1":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Sets the value of one parameter.
+     */
+    private abstract static class Binding {
+        final boolean required;
+
+        Binding(boolean required) {
+            this.required = required;
+        }
+
+        void set(Object target, String value) {
+            set(target, value, convert(value));
+        }
+
+        /**
+         * Sets a value that was already converted by {@link #convert}.
+         *
+         * @param value the value as given in the token
+         */
+        abstract void set(Object target, String value, Object converted);
+
+        abstract Object convert(String value);
+
+        static Binding forField(Field f, boolean required) {
+            Class<?> t = f.getType();
+            try {
+                if (isSpecialized(t) && !Modifier.isStatic(f.getModifiers())) {
+                    MethodHandle setter = LOOKUP.unreflectSetter(f)
+                            .asType(MethodType.methodType(void.class, Object.class, t));
+                    return of(t, setter, false, required);
+                }
+            } catch (IllegalAccessException e) {
+                // fall back to reflection below
+            }
+            return new ReflectiveBinding(required, t) {
+                @Override
+                void apply(Object target, Object value) {
+                    try {
+                        f.set(target, value);
+                    } catch (IllegalAccessException e) {
+                        throw (IllegalAccessError) new IllegalAccessError(e.getMessage()).initCause(e);
+                    }
+                }
+            };
+        }
+
+        static Binding forMethod(Method m, boolean required) {
+            Class<?> t = m.getParameterTypes()[0];
+            try {
+                if (isSpecialized(t) && !Modifier.isStatic(m.getModifiers())) {
+                    MethodHandle setter =
+                            LOOKUP.unreflect(m).asType(MethodType.methodType(void.class, Object.class, t));
+                    return of(t, setter, true, required);
+                }
+            } catch (IllegalAccessException e) {
+                // fall back to reflection below
+            }
+            return new ReflectiveBinding(required, t) {
+                @Override
+                void apply(Object target, Object value) {
+                    try {
+                        m.invoke(target, value);
+                    } catch (IllegalAccessException e) {
+                        throw (IllegalAccessError) new IllegalAccessError(e.getMessage()).initCause(e);
+                    } catch (InvocationTargetException e) {
+                        throw new Error(e);
+                    }
+                }
+            };
+        }
+
+        private static boolean isSpecialized(Class<?> t) {
+            return t == int.class || t == boolean.class || t == String.class;
+        }
+
+        private static Binding of(Class<?> t, MethodHandle setter, boolean method, boolean required) {
+            if (t == int.class) {
+                return new HandleBinding(setter, method, required) {
+                    @Override
+                    void convertAndInvoke(Object target, String value) throws Throwable {
+                        handle.invokeExact(target, toInt(value));
+                    }
+
+                    @Override
+                    void invoke(Object target, Object value) throws Throwable {
+                        handle.invokeExact(target, (int) value);
+                    }
+
+                    @Override
+                    Object convert(String value) {
+                        return toInt(value);
+                    }
+                };
+            } else if (t == boolean.class) {
+                return new HandleBinding(setter, method, required) {
+                    @Override
+                    void convertAndInvoke(Object target, String value) throws Throwable {
+                        handle.invokeExact(target, value == null || toBoolean(value));
+                    }
+
+                    @Override
+                    void invoke(Object target, Object value) throws Throwable {
+                        handle.invokeExact(target, (boolean) value);
+                    }
+
+                    @Override
+                    Object convert(String value) {
+                        // a boolean parameter without a value is a flag
+                        return value == null || toBoolean(value);
+                    }
+                };
+            }
+            return new HandleBinding(setter, method, required) {
+                @Override
+                void convertAndInvoke(Object target, String value) throws Throwable {
+                    handle.invokeExact(target, value);
+                }
+
+                @Override
+                void invoke(Object target, Object value) throws Throwable {
+                    handle.invokeExact(target, (String) value);
+                }
+
+                @Override
+                Object convert(String value) {
+                    return value;
+                }
+            };
+        }
+    }
+
+    private abstract static class HandleBinding extends Binding {
+        final MethodHandle handle;
+        private final boolean method;
+
+        HandleBinding(MethodHandle handle, boolean method, boolean required) {
+            super(required);
+            this.handle = handle;
+            this.method = method;
+        }
+
+        /**
+         * Converts the value straight to the type of the handle, so primitives aren't boxed.
+         */
+        abstract void convertAndInvoke(Object target, String value) throws Throwable;
+
+        abstract void invoke(Object target, Object value) throws Throwable;
+
+        @Override
+        void set(Object target, String value) {
+            try {
+                convertAndInvoke(target, value);
+            } catch (Throwable t) {
+                rethrow(t);
+            }
+        }
+
+        @Override
+        void set(Object target, String value, Object converted) {
+            try {
+                invoke(target, converted);
+            } catch (Throwable t) {
+                rethrow(t);
+            }
+        }
+
+        private void rethrow(Throwable t) {
+            if (method) {
+                // same as Method.invoke
+                throw new Error(new InvocationTargetException(t));
+            }
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+            throw new Error(t);
+        }
+    }
+
+    private abstract static class ReflectiveBinding extends Binding {
+        private final Class<?> type;
+
+        /**
+         * Whether converted values can be shared between instances, otherwise each instance gets its own.
+         */
+        private final boolean immutable;
+
+        ReflectiveBinding(boolean required, Class<?> type) {
+            super(required);
+            this.type = type;
+            this.immutable = type.isPrimitive()
+                    || type.isEnum()
+                    || type == String.class
+                    || type == Boolean.class
+                    || type == Character.class
+                    || Number.class.isAssignableFrom(type) && type.getName().startsWith("java.");
+        }
+
+        abstract void apply(Object target, Object value);
+
+        @Override
+        void set(Object target, String value, Object converted) {
+            apply(target, immutable ? converted : convert(value));
+        }
+
+        @Override
+        Object convert(String value) {
+            return ConvertUtils.convert(value, type);
+        }
+    }
+}
@@ -8,10 +8,9 @@ import hudson.model.AbstractBuild;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import java.io.IOException;
-import java.text.CharacterIterator;
-import java.text.StringCharacterIterator;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 import org.apache.commons.lang3.StringUtils;
 import org.jenkinsci.plugins.tokenmacro.transform.BeginningOrEndMatchTransorm;
 import org.jenkinsci.plugins.tokenmacro.transform.ContentLengthTransform;
@@ -24,8 +23,109 @@ public class Parser {
 
     private static final int MAX_RECURSION_LEVEL = 10;
 
+    /**
+     * Returned by {@link #current()} at the end of the input.
+     */
+    private static final char DONE = '\uFFFF';
+
+    private static final byte DIGIT = 1;
+    private static final byte SPACE = 2;
+    private static final byte IDENTIFIER_START = 4;
+    private static final byte IDENTIFIER_PART = 8;
+
+    /**
+     * Classes of the ASCII characters, anything else goes through {@link Character}.
+     */
+    private static final byte[] CHAR_CLASSES = new byte[128];
+
+    static {
+        for (char c = 0; c < CHAR_CLASSES.length; c++) {
+            byte classes = 0;
+            if (Character.isLetter(c)) {
+                classes |= IDENTIFIER_START | IDENTIFIER_PART;
+            }
+            if (Character.isDigit(c)) {
+                classes |= DIGIT | IDENTIFIER_PART;
+            }
+            if (Character.isSpaceChar(c)) {
+                classes |= SPACE;
+            }
+            if (c == '_') {
+                classes |= IDENTIFIER_START | IDENTIFIER_PART;
+            }
+            CHAR_CLASSES[c] = classes;
+        }
+    }
+
+    /**
+     * Macros that override the streaming {@code evaluate} hook, they get to write their result straight to the output.
+     */
+    private static final ClassValue<Boolean> STREAMING = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                Class<?> declaringClass = type.getMethod(
+                                "evaluate",
+                                Run.class,
+                                FilePath.class,
+                                TaskListener.class,
+                                String.class,
+                                Map.class,
+                                ListMultimap.class,
+                                Appendable.class)
+                        .getDeclaringClass();
+                if (declaringClass == DataBoundTokenMacro.class) {
+                    declaringClass = type.getMethod(
+                                    "evaluate",
+                                    Run.class,
+                                    FilePath.class,
+                                    TaskListener.class,
+                                    String.class,
+                                    Appendable.class)
+                            .getDeclaringClass();
+                    return declaringClass != DataBoundTokenMacro.class;
+                }
+                return declaringClass != TokenMacro.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
+
+    /**
+     * Macros that override {@code createLogConsumer}, they may read the build log together with other macros.
+     */
+    private static final ClassValue<Boolean> LOG_CONSUMING = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            try {
+                Class<?> declaringClass = type.getMethod(
+                                "createLogConsumer",
+                                Run.class,
+                                TaskListener.class,
+                                String.class,
+                                Map.class,
+                                ListMultimap.class)
+                        .getDeclaringClass();
+                if (declaringClass == DataBoundTokenMacro.class) {
+                    declaringClass = type.getMethod(
+                                    "createLogConsumer", Run.class, TaskListener.class, String.class)
+                            .getDeclaringClass();
+                    return declaringClass != DataBoundTokenMacro.class;
+                }
+                return declaringClass != TokenMacro.class;
+            } catch (NoSuchMethodException e) {
+                return false;
+            }
+        }
+    };
+
     private Stack<Transform> transforms = new Stack<>();
-    private StringBuilder output;
+    private Appendable output;
+    /**
+     * Whether the output was given by the caller, so that macros may write their results straight to it.
+     */
+    private boolean streaming;
 
     private Run<?, ?> run;
     private @CheckForNull FilePath workspace;
@@ -34,12 +134,22 @@ public class Parser {
     private String stringWithMacro;
     private int recursionLevel;
     private List<TokenMacro> privateTokens;
+    /**
+     * Results of the deterministic macros evaluated so far, shared with nested expansions.
+     */
+    private Map<Object, String> results;
+    private MacroIndex macros;
+    private @CheckForNull MacroIndex privateMacros;
     private Stack<String> argInfoStack = new Stack<>();
     private int tokenStartIndex;
+    private int pos;
 
     private String tokenName;
     private ListMultimap<String, String> args;
 
+    private List<Template.Segment> segments;
+    private StringBuilder literal;
+
     public Parser(
             Run<?, ?> run,
             @CheckForNull FilePath workspace,
@@ -71,6 +181,12 @@ public class Parser {
         this.recursionLevel = recursionLevel;
     }
 
+    private Parser(String stringWithMacro) {
+        this.stringWithMacro = stringWithMacro;
+        this.segments = new ArrayList<>();
+        this.literal = new StringBuilder();
+    }
+
     public static String process(
             AbstractBuild<?, ?> build,
             TaskListener listener,
@@ -89,7 +205,7 @@ public class Parser {
             boolean throwException,
             List<TokenMacro> privateTokens)
             throws MacroEvaluationException {
-        return process(run, workspace, listener, stringWithMacro, throwException, privateTokens, 0);
+        return process(run, workspace, listener, stringWithMacro, throwException, privateTokens, 0, null);
     }
 
     private static String process(
@@ -99,27 +215,102 @@ public class Parser {
             String stringWithMacro,
             boolean throwException,
             List<TokenMacro> privateTokens,
-            int recursionLevel)
+            int recursionLevel,
+            @CheckForNull Map<Object, String> results)
             throws MacroEvaluationException {
         if (StringUtils.isBlank(stringWithMacro)) return stringWithMacro;
 
         Parser p = new Parser(run, workspace, listener, stringWithMacro, throwException);
+        p.results = results;
         p.parse(privateTokens);
 
         return p.output.toString();
     }
 
+    /**
+     * Same as {@link #process(Run, FilePath, TaskListener, String, boolean, List)}, but writes the result to the
+     * given output instead of returning it.
+     */
+    static void process(
+            Run<?, ?> run,
+            @CheckForNull FilePath workspace,
+            TaskListener listener,
+            String stringWithMacro,
+            Appendable output,
+            boolean throwException,
+            List<TokenMacro> privateTokens)
+            throws MacroEvaluationException, IOException {
+        if (StringUtils.isBlank(stringWithMacro)) {
+            if (stringWithMacro != null) {
+                output.append(stringWithMacro);
+            }
+            return;
+        }
+
+        Parser p = new Parser(run, workspace, listener, stringWithMacro, throwException);
+        p.output = output;
+        p.streaming = true;
+        p.parse(privateTokens);
+    }
+
+    /**
+     * Parses the given string into its compiled form without evaluating anything.
+     *
+     * @throws MacroEvaluationException if the string contains an invalid macro usage
+     */
+    static Template compile(String stringWithMacro) throws MacroEvaluationException {
+        Parser p = new Parser(stringWithMacro);
+        int length = stringWithMacro.length();
+        while (p.pos < length) {
+            // everything up to the next $ is copied as-is
+            int dollar = stringWithMacro.indexOf('$', p.pos);
+            if (dollar < 0) {
+                dollar = length;
+            }
+            p.literal.append(stringWithMacro, p.pos, dollar);
+            p.pos = dollar;
+            if (dollar < length) { // some sort of token?
+                p.tokenStartIndex = dollar;
+                p.parseToken();
+            }
+        }
+        p.flushLiteral();
+        return new Template(stringWithMacro, p.segments);
+    }
+
     private void parse(List<TokenMacro> privateTokens) throws MacroEvaluationException {
         this.privateTokens = privateTokens;
-        CharacterIterator c = new StringCharacterIterator(stringWithMacro);
+        if (results == null) {
+            results = new ConcurrentHashMap<>();
+        }
         try {
-            while (c.current() != CharacterIterator.DONE) {
-                if (c.current() == '$') { // some sort of token?
-                    tokenStartIndex = c.getIndex();
-                    parseToken(c);
-                } else {
-                    output.append(c.current());
-                    c.next();
+            macros = MacroIndex.global();
+            if (privateTokens != null && !privateTokens.isEmpty()) {
+                privateMacros = MacroIndex.of(privateTokens);
+            }
+            Template template = TemplateCache.get().compile(stringWithMacro);
+            if (throwException) {
+                checkTokens(template);
+            }
+            List<Template.Segment> segments = template.getSegments();
+            scanLog(segments);
+            List<Future<String>> evaluations = evaluateConcurrently(segments);
+            try {
+                for (int i = 0; i < segments.size(); i++) {
+                    Template.Segment segment = segments.get(i);
+                    if (segment instanceof Template.Token) {
+                        processToken((Template.Token) segment, evaluations != null ? evaluations.get(i) : null);
+                    } else {
+                        output.append(((Template.Literal) segment).getText());
+                    }
+                }
+            } finally {
+                if (evaluations != null) {
+                    for (Future<String> evaluation : evaluations) {
+                        if (evaluation != null) {
+                            evaluation.cancel(true);
+                        }
+                    }
                 }
             }
         } catch (Throwable e) {
@@ -130,167 +321,197 @@ public class Parser {
         }
     }
 
-    private void parseToken(CharacterIterator c) throws MacroEvaluationException, IOException, InterruptedException {
-        if (c.current() != '$') {
+    /**
+     * The character at the current position, {@link #DONE} at the end of the input.
+     */
+    private char current() {
+        return pos < stringWithMacro.length() ? stringWithMacro.charAt(pos) : DONE;
+    }
+
+    private void next() {
+        if (pos < stringWithMacro.length()) {
+            pos++;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c < 128 ? (CHAR_CLASSES[c] & DIGIT) != 0 : Character.isDigit(c);
+    }
+
+    private static boolean isSpaceChar(char c) {
+        return c < 128 ? (CHAR_CLASSES[c] & SPACE) != 0 : Character.isSpaceChar(c);
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return c < 128 ? (CHAR_CLASSES[c] & IDENTIFIER_START) != 0 : Character.isLetter(c);
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return c < 128 ? (CHAR_CLASSES[c] & IDENTIFIER_PART) != 0 : Character.isLetter(c) || Character.isDigit(c);
+    }
+
+    private void skipSpaces() {
+        while (isSpaceChar(current())) {
+            pos++;
+        }
+    }
+
+    private void parseToken() throws MacroEvaluationException {
+        if (current() != '$') {
             throw new MacroEvaluationException("Missing $ in macro usage");
         }
 
-        char last = c.current();
-        c.next();
-        if (c.current() == '$') {
-            parseEscapedToken(c);
-        } else if (c.current() == '{') {
-            parseDelimitedToken(c);
-        } else if (Character.isLetter(c.current()) || c.current() == '_') {
-            parseNonDelimitedToken(c);
+        char last = current();
+        next();
+        if (current() == '$') {
+            parseEscapedToken();
+        } else if (current() == '{') {
+            parseDelimitedToken();
+        } else if (isIdentifierStart(current())) {
+            parseNonDelimitedToken();
         } else {
-            output.append(last);
-            if (c.current() != CharacterIterator.DONE) {
-                output.append(c.current());
+            literal.append(last);
+            if (current() != DONE) {
+                literal.append(current());
             }
-            c.next();
+            next();
         }
     }
 
-    private void parseEscapedToken(CharacterIterator c) throws MacroEvaluationException {
-        if (c.current() != '$') {
+    private void parseEscapedToken() throws MacroEvaluationException {
+        if (current() != '$') {
             throw new MacroEvaluationException("Missing $ in escaped macro");
         }
 
-        output.append(c.current());
-        c.next();
-        if (c.current() == '{') {
-            parseEscapedDelimitedToken(c);
+        literal.append(current());
+        next();
+        if (current() == '{') {
+            parseEscapedDelimitedToken();
         } else {
-            parseEscapedNonDelimitedToken(c);
+            parseEscapedNonDelimitedToken();
         }
     }
 
-    private void parseDelimitedToken(CharacterIterator c)
-            throws MacroEvaluationException, IOException, InterruptedException {
-        if (c.current() != '{') {
+    private void parseDelimitedToken() throws MacroEvaluationException {
+        if (current() != '{') {
             throw new MacroEvaluationException("Missing { in delimited macro");
         }
 
-        c.next();
-        if (c.current() == '#') {
+        next();
+        if (current() == '#') {
             addTransform(new ContentLengthTransform());
-            c.next();
+            next();
         }
 
         // check for valid identifier start
-        if (!Character.isLetter(c.current()) && c.current() != '_') {
-            output.append("${");
-            output.append(c.current());
-            c.next();
+        if (!isIdentifierStart(current())) {
+            literal.append("${");
+            if (current() != DONE) {
+                literal.append(current());
+            }
+            next();
             return;
         }
 
-        String token = parseIdentifier(c);
+        String token = parseIdentifier();
         startToken(token);
-        if (c.current() == ':') {
-            parseSubstringExpansion(c);
-        } else if (c.current() == '#') {
-            parseBeginningMatchExpansion(c);
-        } else if (c.current() == '%') {
-            parseEndingMatchExpansion(c);
+        if (current() == ':') {
+            parseSubstringExpansion();
+        } else if (current() == '#') {
+            parseBeginningMatchExpansion();
+        } else if (current() == '%') {
+            parseEndingMatchExpansion();
         }
 
-        while (Character.isSpaceChar(c.current())) {
-            c.next();
-        }
+        skipSpaces();
 
-        if (c.current() == ',') {
-            parseArguments(c);
+        if (current() == ',') {
+            parseArguments();
         }
 
-        if (c.current() != '}') {
+        if (current() != '}') {
             throw new MacroEvaluationException("Missing } in macro usage");
         }
 
-        processToken(c.getIndex(), true);
-        c.next();
+        processToken(pos, true);
+        next();
     }
 
-    private void parseNonDelimitedToken(CharacterIterator c)
-            throws MacroEvaluationException, IOException, InterruptedException {
-        String token = parseIdentifier(c);
+    private void parseNonDelimitedToken() throws MacroEvaluationException {
+        String token = parseIdentifier();
         if (StringUtils.isNotBlank(token)) {
             startToken(token);
-            processToken(c.getIndex(), false);
+            processToken(pos, false);
         }
     }
 
-    private void parseEscapedDelimitedToken(CharacterIterator c) throws MacroEvaluationException {
-        if (c.current() != '{') {
+    private void parseEscapedDelimitedToken() throws MacroEvaluationException {
+        if (current() != '{') {
             throw new MacroEvaluationException("Missing { in macro");
         }
 
-        while (c.current() != '}') {
-            output.append(c.current());
-            c.next();
-        }
-        output.append(c.current());
-        c.next();
+        // copy everything up to and including the closing brace, or the rest if there is none
+        int end = stringWithMacro.indexOf('}', pos);
+        end = end < 0 ? stringWithMacro.length() : end + 1;
+        literal.append(stringWithMacro, pos, end);
+        pos = end;
     }
 
-    private void parseEscapedNonDelimitedToken(CharacterIterator c) throws MacroEvaluationException {
-        output.append(parseIdentifier(c));
+    private void parseEscapedNonDelimitedToken() throws MacroEvaluationException {
+        literal.append(parseIdentifier());
     }
 
-    private String parseIdentifier(CharacterIterator c) throws MacroEvaluationException {
-        StringBuilder builder = new StringBuilder();
-
-        if (Character.isDigit(c.current()) || c.current() == '.' || c.current() == '-') {
+    private String parseIdentifier() throws MacroEvaluationException {
+        if (isDigit(current()) || current() == '.' || current() == '-') {
             // we have a number
-            output.append('$');
-            output.append(parseNumericalValue(c));
+            literal.append('$');
+            literal.append(parseNumericalValue());
             return "";
         }
 
-        if (!Character.isLetter(c.current()) && c.current() != '_') {
+        if (!isIdentifierStart(current())) {
             throw new MacroEvaluationException("Invalid identifier in macro");
         }
 
-        while (Character.isLetter(c.current()) || Character.isDigit((c.current())) || c.current() == '_') {
-            builder.append(c.current());
-            c.next();
+        int start = pos;
+        while (isIdentifierPart(current())) {
+            pos++;
         }
-        return builder.toString();
+        return stringWithMacro.substring(start, pos);
     }
 
     /**
      * Rule for substring expansion, which is of the form ${TOKEN:offset:length}, where length is optional. offset and
      * length can be negative, which then operates from the end of the string.
      */
-    private void parseSubstringExpansion(CharacterIterator c) throws MacroEvaluationException {
-        if (c.current() != ':') {
+    private void parseSubstringExpansion() throws MacroEvaluationException {
+        if (current() != ':') {
             throw new MacroEvaluationException("Missing : in substring expansion for macro: " + tokenName);
         }
 
         boolean isOffsetNegative = false;
-        c.next();
-        if (c.current() == ' ') {
+        next();
+        if (current() == ' ') {
             // we should have a negative number
-            c.next();
-            if (c.current() != '-') {
+            next();
+            if (current() != '-') {
                 throw new MacroEvaluationException(
                         "Invalid negative offset in substring expansion for macro: " + tokenName);
             }
             isOffsetNegative = true;
-            c.next();
+            next();
         }
 
-        int offset = (isOffsetNegative ? -1 : 1) * Integer.parseInt(parseNumericalValue(c));
+        int offset = (isOffsetNegative ? -1 : 1) * Integer.parseInt(parseNumericalValue());
         boolean isLengthNegative = false;
         int length = Integer.MAX_VALUE;
-        if (c.current() == ':') {
-            c.next();
-            if (c.current() == '-') {
+        if (current() == ':') {
+            next();
+            if (current() == '-') {
                 isLengthNegative = true;
-                c.next();
+                next();
             }
-            length = (isLengthNegative ? -1 : 1) * Integer.parseInt(parseNumericalValue(c));
+            length = (isLengthNegative ? -1 : 1) * Integer.parseInt(parseNumericalValue());
         }
         addTransform(new SubstringTransform(offset, length));
     }
@@ -299,188 +520,179 @@ public class Parser {
      * Rule for beginning match expansion, which is of the form${TOKEN#pattern}, where pattern is a regular expression.
      * Will check for match at the beginning of the string, and if matched remove the matching text.
      */
-    private void parseBeginningMatchExpansion(CharacterIterator c) throws MacroEvaluationException {
-        if (c.current() != '#') {
+    private void parseBeginningMatchExpansion() throws MacroEvaluationException {
+        if (current() != '#') {
             throw new MacroEvaluationException("Missing # in beginning match expansion for macro: " + tokenName);
         }
-        c.next();
+        next();
 
-        String match = parseBeginningEndMatchExpansion(c);
+        String match = parseBeginningEndMatchExpansion();
         addTransform(new BeginningOrEndMatchTransorm(match, true));
     }
 
-    private void parseEndingMatchExpansion(CharacterIterator c) throws MacroEvaluationException {
-        if (c.current() != '%') {
+    private void parseEndingMatchExpansion() throws MacroEvaluationException {
+        if (current() != '%') {
             throw new MacroEvaluationException("Missing % in ending match expansion for macro: " + tokenName);
         }
-        c.next();
+        next();
 
-        String match = parseBeginningEndMatchExpansion(c);
+        String match = parseBeginningEndMatchExpansion();
         addTransform(new BeginningOrEndMatchTransorm(match, false));
     }
 
-    private String parseBeginningEndMatchExpansion(CharacterIterator c) {
+    private String parseBeginningEndMatchExpansion() throws MacroEvaluationException {
         StringBuilder match = new StringBuilder();
         while (true) {
-            if (c.current() == '}' || c.current() == ',') {
+            if (current() == DONE) {
+                throw new MacroEvaluationException("Missing } in macro usage");
+            } else if (current() == '}' || current() == ',') {
                 break;
-            } else if (c.current() == '\\') {
-                c.next();
-                if (c.current() != '}' && c.current() != ',') {
+            } else if (current() == '\\') {
+                next();
+                if (current() == DONE) {
+                    throw new MacroEvaluationException("Missing } in macro usage");
+                }
+                if (current() != '}' && current() != ',') {
                     match.append('\\');
                 }
-                match.append(c.current());
+                match.append(current());
             } else {
-                match.append(c.current());
+                match.append(current());
             }
-            c.next();
+            next();
         }
         return match.toString();
     }
 
-    private void parseArguments(CharacterIterator c) throws MacroEvaluationException {
-        while (c.current() != '}') {
-            if (c.current() != ',') {
+    private void parseArguments() throws MacroEvaluationException {
+        while (current() != '}') {
+            if (current() != ',') {
                 throw new MacroEvaluationException("Missing , for arguments in macro");
             }
 
-            c.next();
+            next();
+            skipSpaces();
 
-            while (Character.isSpaceChar(c.current())) {
-                c.next();
-            }
-
-            String argName = parseIdentifier(c);
+            String argName = parseIdentifier();
             argInfoStack.push(argName);
-            while (Character.isSpaceChar(c.current())) {
-                c.next();
-            }
+            skipSpaces();
 
-            if (c.current() != '=') {
+            if (current() != '=') {
                 throw new MacroEvaluationException("Missing = for argument in macro");
             }
 
-            c.next();
-            while (Character.isSpaceChar(c.current())) {
-                c.next();
-            }
-            parseArgumentValue(c);
+            next();
+            skipSpaces();
+            parseArgumentValue();
             addArg();
 
-            while (Character.isSpaceChar(c.current())) {
-                c.next();
-            }
+            skipSpaces();
         }
     }
 
-    private void parseArgumentValue(CharacterIterator c) throws MacroEvaluationException {
-        if (c.current() == '"') {
-            parseStringValue(c);
-        } else if (c.current() == 't' || c.current() == 'f' || c.current() == 'T' || c.current() == 'F') {
-            parseBooleanValue(c);
+    private void parseArgumentValue() throws MacroEvaluationException {
+        if (current() == '"') {
+            parseStringValue();
+        } else if (current() == 't' || current() == 'f' || current() == 'T' || current() == 'F') {
+            parseBooleanValue();
         } else {
-            argInfoStack.push(parseNumericalValue(c));
+            argInfoStack.push(parseNumericalValue());
         }
     }
 
-    private void parseStringValue(CharacterIterator c) throws MacroEvaluationException {
-        StringBuilder builder = new StringBuilder();
-        if (c.current() != '"') {
+    private void parseStringValue() throws MacroEvaluationException {
+        if (current() != '"') {
             throw new MacroEvaluationException("Missing \" in argument value for macro: " + tokenName);
         }
-        c.next();
+        next();
 
+        int length = stringWithMacro.length();
+        int start = pos;
         boolean escaped = false;
         while (true) {
-            if ((c.current() == '\n' || c.current() == '\r') && !escaped) {
+            if (pos >= length) {
+                throw new MacroEvaluationException("Missing \" in argument value for macro: " + tokenName);
+            }
+            char c = stringWithMacro.charAt(pos);
+            if ((c == '\n' || c == '\r') && !escaped) {
                 throw new MacroEvaluationException(
                         "Newlines are not allowed in string arguments for macro: " + tokenName);
-            } else if (c.current() == '\\') {
+            } else if (c == '\\') {
                 escaped = true;
-                builder.append(c.current());
-                c.next();
-            } else if (c.current() == '"' && !escaped) {
-                c.next();
+                pos++;
+            } else if (c == '"' && !escaped) {
                 break;
             } else {
-                builder.append(c.current());
-                c.next();
+                pos++;
                 escaped = false;
             }
         }
 
-        argInfoStack.push(unescapeString(builder.toString()));
+        argInfoStack.push(unescapeString(stringWithMacro.substring(start, pos)));
+        pos++;
     }
 
-    private void parseBooleanValue(CharacterIterator c) throws MacroEvaluationException {
-        char[] matches = null;
-        if (Character.toLowerCase(c.current()) == 't') {
-            matches = new char[] {'t', 'r', 'u', 'e'};
-        } else if (Character.toLowerCase(c.current()) == 'f') {
-            matches = new char[] {'f', 'a', 'l', 's', 'e'};
+    private void parseBooleanValue() throws MacroEvaluationException {
+        String value = null;
+        if (Character.toLowerCase(current()) == 't') {
+            value = "true";
+        } else if (Character.toLowerCase(current()) == 'f') {
+            value = "false";
         }
 
-        if (matches == null) {
+        if (value == null) {
             throw new MacroEvaluationException("Invalid boolean value for argument for macro: " + tokenName);
         }
 
-        for (int i = 0; i < matches.length; ++i) {
-            if (c.current() != matches[i]) {
-                throw new MacroEvaluationException("Invalid boolean value in macro: " + tokenName);
-            }
-            c.next();
+        if (!stringWithMacro.startsWith(value, pos)) {
+            throw new MacroEvaluationException("Invalid boolean value in macro: " + tokenName);
         }
-        argInfoStack.push(new String(matches));
+        pos += value.length();
+        argInfoStack.push(value);
     }
 
-    private String parseNumericalValue(CharacterIterator c) throws MacroEvaluationException {
-        StringBuilder builder = new StringBuilder();
-        if (c.current() == '-') {
-            builder.append(c.current());
-            c.next();
+    private String parseNumericalValue() throws MacroEvaluationException {
+        int start = pos;
+        if (current() == '-') {
+            next();
         }
 
-        if (c.current() != '0') {
-            if (!Character.isDigit(c.current())) {
+        if (current() != '0') {
+            if (!isDigit(current())) {
                 throw new MacroEvaluationException("Invalid number value in macro: " + tokenName);
             }
 
             // we must have a decimal number
-            while (Character.isDigit(c.current())) {
-                builder.append(c.current());
-                c.next();
+            while (isDigit(current())) {
+                pos++;
             }
         } else {
             // we could have a decimal, octal or hex number
-            builder.append(c.current());
-            c.next();
-            if (c.current() == 'x' || c.current() == 'X') {
+            next();
+            if (current() == 'x' || current() == 'X') {
                 // we have a hex number
-                while (Character.isDigit(c.current())
-                        || (c.current() >= 'a' && c.current() <= 'f')
-                        || (c.current() >= 'A' && c.current() <= 'F')) {
-                    builder.append(c.current());
-                    c.next();
+                while (isDigit(current())
+                        || (current() >= 'a' && current() <= 'f')
+                        || (current() >= 'A' && current() <= 'F')) {
+                    pos++;
                 }
-            } else if (Character.isDigit(c.current()) && c.current() >= '0' && c.current() <= '7') {
+            } else if (current() >= '0' && current() <= '7') {
                 // we have an octal number
-                while (Character.isDigit(c.current()) && c.current() >= '0' && c.current() <= '7') {
-                    builder.append(c.current());
-                    c.next();
+                while (current() >= '0' && current() <= '7') {
+                    pos++;
                 }
-            } else if (Character.isDigit(c.current())) {
+            } else if (isDigit(current())) {
                 // decimal number
                 boolean foundDecimal = false;
-                while (Character.isDigit(c.current()) || (c.current() == '.' && !foundDecimal)) {
-                    if (c.current() == '.') {
+                while (isDigit(current()) || (current() == '.' && !foundDecimal)) {
+                    if (current() == '.') {
                         foundDecimal = true;
                     }
-                    builder.append(c.current());
-                    c.next();
+                    pos++;
                 }
             }
         }
-        return builder.toString();
+        return stringWithMacro.substring(start, pos);
     }
 
     boolean addTransform(Transform t) {
@@ -488,49 +700,325 @@ public class Parser {
         return true;
     }
 
-    boolean processToken(int currentIndex, boolean isDelimited)
-            throws IOException, InterruptedException, MacroEvaluationException {
-        String replacement = null;
+    boolean processToken(int currentIndex, boolean isDelimited) {
+        List<Transform> chain = new ArrayList<>();
+        while (!transforms.isEmpty()) {
+            Transform t = transforms.pop();
+            Transform fused = chain.isEmpty() ? null : chain.get(chain.size() - 1).fuse(t);
+            if (fused != null) {
+                chain.set(chain.size() - 1, fused);
+            } else {
+                chain.add(t);
+            }
+        }
+
+        flushLiteral();
+        segments.add(new Template.Token(
+                tokenName,
+                args,
+                chain,
+                stringWithMacro.substring(tokenStartIndex, currentIndex + (isDelimited ? 1 : 0))));
+
+        tokenName = "";
+        args = null;
+
+        return true;
+    }
 
-        List<TokenMacro> all = new ArrayList<TokenMacro>(TokenMacro.all());
-        if (privateTokens != null) {
-            all.addAll(privateTokens.stream().filter(x -> x != null).collect(Collectors.toList()));
+    private void flushLiteral() {
+        if (literal.length() > 0) {
+            segments.add(new Template.Literal(literal.toString()));
+            literal.setLength(0);
         }
+    }
 
-        Map<String, String> map = new HashMap<String, String>();
-        for (Map.Entry<String, String> e : args.entries()) {
-            map.put(e.getKey(), e.getValue());
+    /**
+     * Starts the evaluation of the tokens that can be evaluated concurrently, if there are at least two of them.
+     *
+     * @return the pending evaluations by segment index, or null if everything gets evaluated in order
+     */
+    @CheckForNull
+    private List<Future<String>> evaluateConcurrently(List<Template.Segment> segments) {
+        if (!ParallelEvaluation.isAvailable()) {
+            return null;
         }
 
-        for (TokenMacro tm : all) {
-            if (tm.acceptsMacroName(tokenName)) {
-                try {
-                    // first we check if there is a method that takes a run/workspace/etc
-                    if (run instanceof AbstractBuild) {
-                        AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) run;
-                        replacement = tm.evaluate(build, listener, tokenName, map, args);
-                    } else {
-                        replacement = tm.evaluate(run, workspace, listener, tokenName, map, args);
-                    }
+        TokenMacro[] concurrent = new TokenMacro[segments.size()];
+        int count = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            if (segments.get(i) instanceof Template.Token) {
+                TokenMacro tm = lookup(((Template.Token) segments.get(i)).getName());
+                if (tm != null && tm.supportsConcurrentEvaluation()) {
+                    concurrent[i] = tm;
+                    count++;
+                }
+            }
+        }
+        if (count < 2) {
+            return null;
+        }
 
-                    if (tm.hasNestedContent() && recursionLevel < MAX_RECURSION_LEVEL) {
-                        replacement = Parser.process(
-                                run,
-                                workspace,
-                                listener,
-                                replacement,
-                                throwException,
-                                privateTokens,
-                                recursionLevel + 1);
-                    }
-                } catch (MacroEvaluationException e) {
-                    if (throwException) {
-                        throw e;
-                    } else {
-                        replacement = String.format("[Error replacing '%s' - %s]", tokenName, e.getMessage());
+        List<Future<String>> evaluations = new ArrayList<>(Collections.nCopies(segments.size(), null));
+        Map<Object, Future<String>> submitted = new HashMap<>();
+        for (int i = 0; i < segments.size(); i++) {
+            if (concurrent[i] != null) {
+                TokenMacro tm = concurrent[i];
+                Template.Token token = (Template.Token) segments.get(i);
+                Object key = resultKey(tm, token);
+                Future<String> evaluation = key != null ? submitted.get(key) : null;
+                if (evaluation == null) {
+                    evaluation = ParallelEvaluation.submit(() -> evaluate(tm, token));
+                    if (key != null) {
+                        submitted.put(key, evaluation);
                     }
                 }
-                break;
+                evaluations.set(i, evaluation);
+            }
+        }
+        return evaluations;
+    }
+
+    /**
+     * Reads the build log once for all the tokens of macros that {@linkplain TokenMacro#createLogConsumer consume it
+     * line by line}, when there are at least two of them whose result isn't known yet. The results are kept with the
+     * ones of the other deterministic macros, where the evaluation of the tokens finds them. If the log can't be read,
+     * nothing is kept, and each token reports the problem the way it would have on its own.
+     */
+    private void scanLog(List<Template.Segment> segments) throws MacroEvaluationException {
+        if (run == null) {
+            return;
+        }
+        Map<Object, Template.Token> tokens = new LinkedHashMap<>();
+        Map<Object, TokenMacro> tokenMacros = new HashMap<>();
+        for (Template.Segment segment : segments) {
+            if (!(segment instanceof Template.Token)) {
+                continue;
+            }
+            Template.Token token = (Template.Token) segment;
+            TokenMacro tm = lookup(token.getName());
+            if (tm == null || tm.hasNestedContent() || !LOG_CONSUMING.get(tm.getClass())) {
+                continue;
+            }
+            Object key = resultKey(tm, token);
+            if (key != null && !results.containsKey(key) && !tokens.containsKey(key)) {
+                tokens.put(key, token);
+                tokenMacros.put(key, tm);
+            }
+        }
+        if (tokens.size() < 2) {
+            return;
+        }
+
+        Map<Object, LogScanner.Consumer> consumers = new LinkedHashMap<>();
+        for (Map.Entry<Object, Template.Token> e : tokens.entrySet()) {
+            Template.Token token = e.getValue();
+            TokenMacro tm = tokenMacros.get(e.getKey());
+            if (isRunCacheable(tm)) {
+                String result = RunResultCache.get()
+                        .lookup(RunResultCache.key(run, tm, token.getName(), token.getArgumentMultimap()));
+                if (result != null) {
+                    results.putIfAbsent(e.getKey(), result);
+                    continue;
+                }
+            }
+            try {
+                LogScanner.Consumer consumer = createLogConsumer(tm, token);
+                if (consumer != null) {
+                    consumers.put(e.getKey(), consumer);
+                }
+            } catch (MacroEvaluationException | RuntimeException x) {
+                // reported when the token is evaluated
+            }
+        }
+        if (consumers.size() < 2) {
+            return;
+        }
+
+        try {
+            LogScanner.scan(run, consumers.values());
+        } catch (IOException | RuntimeException x) {
+            return;
+        }
+        for (Map.Entry<Object, LogScanner.Consumer> e : consumers.entrySet()) {
+            String result = e.getValue().getResult();
+            if (result == null) {
+                continue;
+            }
+            results.putIfAbsent(e.getKey(), result);
+            TokenMacro tm = tokenMacros.get(e.getKey());
+            if (isRunCacheable(tm)) {
+                Template.Token token = tokens.get(e.getKey());
+                RunResultCache.get()
+                        .put(RunResultCache.key(run, tm, token.getName(), token.getArgumentMultimap()), result);
+            }
+        }
+    }
+
+    @CheckForNull
+    private LogScanner.Consumer createLogConsumer(TokenMacro tm, Template.Token token)
+            throws MacroEvaluationException {
+        if (DataBoundTokenMacro.acceptsPrepared(tm)) {
+            DataBoundTokenMacro dbtm = (DataBoundTokenMacro) tm;
+            return dbtm.createLogConsumer(run, listener, token.getParameters(dbtm));
+        }
+        return tm.createLogConsumer(
+                run, listener, token.getName(), token.getArguments(), token.getArgumentMultimap());
+    }
+
+    @CheckForNull
+    private TokenMacro lookup(String tokenName) {
+        return lookup(macros, privateMacros, tokenName);
+    }
+
+    @CheckForNull
+    private static TokenMacro lookup(MacroIndex macros, @CheckForNull MacroIndex privateMacros, String tokenName) {
+        TokenMacro tm = macros.lookup(tokenName);
+        if (tm == null && privateMacros != null) {
+            tm = privateMacros.lookup(tokenName);
+        }
+        return tm;
+    }
+
+    /**
+     * Fails before anything gets evaluated if a token is bound to fail, because its macro is unknown or its arguments
+     * don't match the parameters of a {@link DataBoundTokenMacro}. The exceptions are the ones the evaluation of the
+     * token would throw.
+     */
+    private void checkTokens(Template template) throws MacroEvaluationException {
+        if (privateMacros == null && template.isCheckedAgainst(macros)) {
+            return;
+        }
+        for (Template.Segment segment : template.getSegments()) {
+            if (!(segment instanceof Template.Token)) {
+                continue;
+            }
+            Template.Token token = (Template.Token) segment;
+            TokenMacro tm = lookup(token.getName());
+            if (tm == null) {
+                throw new MacroEvaluationException(
+                        String.format("Unrecognized macro '%s' in '%s'", token.getName(), stringWithMacro));
+            }
+            if (DataBoundTokenMacro.acceptsPrepared(tm)) {
+                // also keeps the arguments prepared for the evaluation
+                token.getParameters((DataBoundTokenMacro) tm);
+            }
+        }
+        if (privateMacros == null) {
+            template.setCheckedAgainst(macros);
+        }
+    }
+
+    /**
+     * Finds the problems of the tokens in the given string without evaluating anything.
+     *
+     * @see TokenMacro#validate(String, List)
+     */
+    static List<String> validate(String stringWithMacro, @CheckForNull List<TokenMacro> privateTokens) {
+        List<String> problems = new ArrayList<>();
+        if (StringUtils.isBlank(stringWithMacro)) {
+            return problems;
+        }
+        Template template;
+        try {
+            template = TemplateCache.get().compile(stringWithMacro);
+        } catch (MacroEvaluationException e) {
+            problems.add(e.getMessage());
+            return problems;
+        }
+
+        MacroIndex macros = MacroIndex.global();
+        MacroIndex privateMacros = privateTokens != null && !privateTokens.isEmpty() ? MacroIndex.of(privateTokens) : null;
+        Set<String> seen = new HashSet<>();
+        for (Template.Segment segment : template.getSegments()) {
+            if (!(segment instanceof Template.Token) || !seen.add(((Template.Token) segment).getText())) {
+                continue;
+            }
+            Template.Token token = (Template.Token) segment;
+            TokenMacro tm = lookup(macros, privateMacros, token.getName());
+            if (tm == null) {
+                problems.add(String.format("Unrecognized macro '%s'", token.getName()));
+            } else if (DataBoundTokenMacro.acceptsPrepared(tm)) {
+                problems.addAll(ParameterBinder.of(((DataBoundTokenMacro) tm).getClass())
+                        .check(token.getName(), token.getArguments(), token.getArgumentMultimap()));
+            }
+        }
+        return problems;
+    }
+
+    /**
+     * @param evaluation
+     *      the result of the token if it is being evaluated concurrently, null to evaluate it here
+     */
+    private void processToken(Template.Token token, @CheckForNull Future<String> evaluation)
+            throws IOException, InterruptedException, MacroEvaluationException {
+        String replacement = null;
+        String tokenName = token.getName();
+
+        TokenMacro tm = lookup(tokenName);
+
+        if (streaming
+                && tm != null
+                && evaluation == null
+                && token.getTransforms().isEmpty()
+                && !tm.hasNestedContent()
+                && STREAMING.get(tm.getClass())) {
+            Object key = resultKey(tm, token);
+            String result = key != null ? results.get(key) : null;
+            List<Object> runKey = isRunCacheable(tm)
+                    ? RunResultCache.key(run, tm, tokenName, token.getArgumentMultimap())
+                    : null;
+            if (result == null && runKey != null) {
+                result = RunResultCache.get().lookup(runKey);
+            }
+            if (result != null) {
+                output.append(result);
+                return;
+            }
+            // a result that is reused is kept as it is written out
+            CopyingAppendable copy = key != null || runKey != null ? new CopyingAppendable(output) : null;
+            Appendable out = copy != null ? copy : output;
+            try {
+                if (DataBoundTokenMacro.acceptsPrepared(tm)) {
+                    DataBoundTokenMacro dbtm = (DataBoundTokenMacro) tm;
+                    dbtm.evaluatePrepared(run, workspace, listener, token.getParameters(dbtm), out);
+                } else {
+                    tm.evaluate(
+                            run,
+                            workspace,
+                            listener,
+                            tokenName,
+                            token.getArguments(),
+                            token.getArgumentMultimap(),
+                            out);
+                }
+            } catch (MacroEvaluationException e) {
+                if (throwException) {
+                    throw e;
+                }
+                output.append(String.format("[Error replacing '%s' - %s]", tokenName, e.getMessage()));
+                return;
+            }
+            if (copy != null) {
+                result = copy.copy.toString();
+                if (key != null) {
+                    results.putIfAbsent(key, result);
+                }
+                if (runKey != null) {
+                    RunResultCache.get().put(runKey, result);
+                }
+            }
+            return;
+        }
+
+        if (tm != null) {
+            try {
+                replacement = evaluation != null ? ParallelEvaluation.get(evaluation) : evaluate(tm, token);
+            } catch (MacroEvaluationException e) {
+                if (throwException) {
+                    throw e;
+                } else {
+                    replacement = String.format("[Error replacing '%s' - %s]", tokenName, e.getMessage());
+                }
             }
         }
 
@@ -540,19 +1028,98 @@ public class Parser {
 
         if (replacement == null
                 && !throwException) { // just put the token back in since we don't want to throw the exception
-            output.append(stringWithMacro.substring(tokenStartIndex, currentIndex + (isDelimited ? 1 : 0)));
+            output.append(token.getText());
         } else if (replacement != null) {
-            while (transforms != null && transforms.size() > 0) {
-                Transform t = transforms.pop();
+            for (Transform t : token.getTransforms()) {
                 replacement = t.transform(replacement);
             }
             output.append(replacement);
         }
+    }
 
-        tokenName = "";
-        args = null;
+    /**
+     * Identifies the result of the token within one expansion.
+     *
+     * @return null if the result must not be reused
+     */
+    @CheckForNull
+    private static Object resultKey(TokenMacro tm, Template.Token token) {
+        if (!tm.isDeterministic()) {
+            return null;
+        }
+        // the argument multimap is sorted by name, so the order of the arguments in the template doesn't matter
+        return Arrays.asList(tm, token.getName(), token.getArgumentMultimap());
+    }
 
-        return true;
+    /**
+     * Evaluates the macro for the token, including its nested content, but without applying any transforms.
+     * Results of deterministic macros are reused for identical tokens of the same expansion.
+     */
+    private String evaluate(TokenMacro tm, Template.Token token)
+            throws IOException, InterruptedException, MacroEvaluationException {
+        Object key = resultKey(tm, token);
+        String replacement = key != null ? results.get(key) : null;
+        if (replacement == null) {
+            replacement = evaluateMacro(tm, token);
+            if (key != null && replacement != null) {
+                results.putIfAbsent(key, replacement);
+            }
+        }
+        return replacement;
+    }
+
+    /**
+     * Whether the result of the macro can be shared with other expansions through the {@link RunResultCache}. Private
+     * macros are left out, as different instances of the same class may give different results.
+     */
+    private boolean isRunCacheable(TokenMacro tm) {
+        return RunResultCache.isCacheable(run, tm) && macros.contains(tm);
+    }
+
+    private String evaluateMacro(TokenMacro tm, Template.Token token)
+            throws IOException, InterruptedException, MacroEvaluationException {
+        String tokenName = token.getName();
+        List<Object> runKey = null;
+        if (isRunCacheable(tm)) {
+            runKey = RunResultCache.key(run, tm, tokenName, token.getArgumentMultimap());
+            String result = RunResultCache.get().lookup(runKey);
+            if (result != null) {
+                return result;
+            }
+        }
+
+        String replacement;
+        // first we check if there is a method that takes a run/workspace/etc
+        if (DataBoundTokenMacro.acceptsPrepared(tm)) {
+            // skips checking and converting the arguments again for tokens of cached templates
+            DataBoundTokenMacro dbtm = (DataBoundTokenMacro) tm;
+            replacement = run instanceof AbstractBuild
+                    ? dbtm.evaluatePrepared((AbstractBuild<?, ?>) run, listener, token.getParameters(dbtm))
+                    : dbtm.evaluatePrepared(run, workspace, listener, token.getParameters(dbtm));
+        } else if (run instanceof AbstractBuild) {
+            AbstractBuild<?, ?> build = (AbstractBuild<?, ?>) run;
+            replacement =
+                    tm.evaluate(build, listener, tokenName, token.getArguments(), token.getArgumentMultimap());
+        } else {
+            replacement = tm.evaluate(
+                    run, workspace, listener, tokenName, token.getArguments(), token.getArgumentMultimap());
+        }
+
+        if (tm.hasNestedContent() && recursionLevel < MAX_RECURSION_LEVEL) {
+            replacement = Parser.process(
+                    run,
+                    workspace,
+                    listener,
+                    replacement,
+                    throwException,
+                    privateTokens,
+                    recursionLevel + 1,
+                    results);
+        }
+        if (runKey != null && replacement != null) {
+            RunResultCache.get().put(runKey, replacement);
+        }
+        return replacement;
     }
 
     boolean startToken(String tokenName) {
@@ -609,4 +1176,37 @@ public class Parser {
                 return escapedChar;
         }
     }
+
+    /**
+     * Writes to the output and keeps a copy of what was written.
+     */
+    private static final class CopyingAppendable implements Appendable {
+        private final Appendable output;
+        private final StringBuilder copy = new StringBuilder();
+
+        CopyingAppendable(Appendable output) {
+            this.output = output;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq) throws IOException {
+            output.append(csq);
+            copy.append(csq);
+            return this;
+        }
+
+        @Override
+        public Appendable append(CharSequence csq, int start, int end) throws IOException {
+            output.append(csq, start, end);
+            copy.append(csq, start, end);
+            return this;
+        }
+
+        @Override
+        public Appendable append(char c) throws IOException {
+            output.append(c);
+            copy.append(c);
+            return this;
+        }
+    }
 }
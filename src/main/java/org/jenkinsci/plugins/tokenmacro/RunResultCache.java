@@ -0,0 +1,160 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import com.google.common.collect.ListMultimap;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import jenkins.util.SystemProperties;
+
+/**
+ * Results of macros for completed runs, shared by all expansions.
+ *
+ * <p>
+ * Once a build is done, notifiers, e-mail triggers, the pipeline step etc. tend to expand the same tokens
+ * against it. Macros that are {@linkplain TokenMacro#isStableOnceCompleted() stable once the run completed}
+ * have their results kept here, so the log is scanned once instead of once per caller. The cache is an LRU bounded
+ * by the (approximate) memory used by the cached results, see {@link #MAX_BYTES}. Results of a deleted run are
+ * dropped right away.
+ *
+ * <p>
+ * The hit and miss counters are meant for troubleshooting, e.g. from the script console.
+ */
+public final class RunResultCache {
+
+    static final long MAX_BYTES =
+            SystemProperties.getLong(RunResultCache.class.getName() + ".maxBytes", 16L * 1024 * 1024);
+
+    private static final RunResultCache INSTANCE = new RunResultCache(MAX_BYTES);
+
+    private final long maxBytes;
+    private final LinkedHashMap<List<Object>, String> results = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    RunResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static RunResultCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Whether the result of the macro for the run can be cached at all. Runs that are no longer building may still
+     * have their log written to in post production, e.g. by notifiers that run after the build is
+     * finalized, so only completed runs qualify.
+     */
+    static boolean isCacheable(@CheckForNull Run<?, ?> run, TokenMacro tm) {
+        return run != null
+                && tm.isStableOnceCompleted()
+                && !tm.hasNestedContent()
+                && !run.isLogUpdated()
+                && run.getExternalizableId() != null;
+    }
+
+    static List<Object> key(
+            Run<?, ?> run, TokenMacro tm, String macroName, ListMultimap<String, String> argumentMultimap) {
+        // the start time tells apart runs of a job that got deleted and recreated under the same name
+        return Arrays.asList(
+                run.getExternalizableId(),
+                run.getTimeInMillis(),
+                tm.getClass().getName(),
+                macroName,
+                argumentMultimap);
+    }
+
+    @CheckForNull
+    synchronized String lookup(List<Object> key) {
+        String result = results.get(key);
+        if (result != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return result;
+    }
+
+    synchronized void put(List<Object> key, String result) {
+        long size = sizeOf(key, result);
+        if (size > maxBytes) {
+            return;
+        }
+        String previous = results.put(key, result);
+        bytes += size;
+        if (previous != null) {
+            bytes -= sizeOf(key, previous);
+        }
+        Iterator<Map.Entry<List<Object>, String>> it = results.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<List<Object>, String> eldest = it.next();
+            bytes -= sizeOf(eldest.getKey(), eldest.getValue());
+            it.remove();
+        }
+    }
+
+    /**
+     * Drops all the results for the given run.
+     */
+    synchronized void invalidate(Run<?, ?> run) {
+        String id = run.getExternalizableId();
+        Iterator<Map.Entry<List<Object>, String>> it = results.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<List<Object>, String> e = it.next();
+            if (Objects.equals(e.getKey().get(0), id)) {
+                bytes -= sizeOf(e.getKey(), e.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        results.clear();
+        bytes = 0;
+    }
+
+    /**
+     * Rough estimate of the memory retained by an entry: the chars of the result, the macro name and the
+     * arguments, plus some fixed overhead for the objects around them.
+     */
+    @SuppressWarnings("unchecked")
+    private static long sizeOf(List<Object> key, String result) {
+        long chars = result.length() + ((String) key.get(3)).length();
+        for (Map.Entry<String, String> arg : ((ListMultimap<String, String>) key.get(4)).entries()) {
+            chars += arg.getKey().length() + (arg.getValue() != null ? arg.getValue().length() : 0);
+        }
+        return 2 * chars + 256;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int getSize() {
+        return results.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Extension
+    public static class RunDeletionListener extends RunListener<Run<?, ?>> {
+        @Override
+        public void onDeleted(Run<?, ?> run) {
+            get().invalidate(run);
+        }
+    }
+}
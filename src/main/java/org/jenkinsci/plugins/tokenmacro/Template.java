@@ -0,0 +1,144 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Multimaps;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compiled form of a string containing macros.
+ *
+ * <p>
+ * A template is an immutable list of {@link Segment}s: literal text that is copied as-is, and {@link Token}s
+ * that get evaluated on every expansion. Compiled templates are shared between expansions (see
+ * {@link TemplateCache}), so nothing reachable from here may hold per-expansion state.
+ */
+final class Template {
+
+    private final String source;
+    private final List<Segment> segments;
+
+    /**
+     * The macros all tokens were last found to be fine with, see {@link Parser}.
+     */
+    private volatile MacroIndex checkedAgainst;
+
+    Template(String source, List<Segment> segments) {
+        this.source = source;
+        this.segments = Collections.unmodifiableList(new ArrayList<>(segments));
+    }
+
+    /**
+     * The text this template was compiled from.
+     */
+    String getSource() {
+        return source;
+    }
+
+    List<Segment> getSegments() {
+        return segments;
+    }
+
+    boolean isCheckedAgainst(MacroIndex macros) {
+        return checkedAgainst == macros;
+    }
+
+    void setCheckedAgainst(MacroIndex macros) {
+        checkedAgainst = macros;
+    }
+
+    abstract static class Segment {}
+
+    /**
+     * Text that is copied to the output without any processing.
+     */
+    static final class Literal extends Segment {
+        private final String text;
+
+        Literal(String text) {
+            this.text = text;
+        }
+
+        String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * A single macro usage, e.g. <code>${#BUILD_LOG_REGEX:0:10, regex="ERROR"}</code>.
+     */
+    static final class Token extends Segment {
+        private final String name;
+        private final ListMultimap<String, String> argumentMultimap;
+        private final Map<String, String> arguments;
+        private final List<Transform> transforms;
+        private final String text;
+
+        /**
+         * The arguments as checked and converted by the last macro class the token was evaluated with.
+         */
+        private volatile MacroParameters parameters;
+
+        /**
+         * @param name the macro name
+         * @param args the arguments in order of appearance
+         * @param transforms the transforms in the order they need to be applied to the macro result
+         * @param text the macro usage as it appears in the template, used when the macro is not recognized
+         */
+        Token(String name, ListMultimap<String, String> args, List<Transform> transforms, String text) {
+            this.name = name;
+            ListMultimap<String, String> copy = Multimaps.newListMultimap(new TreeMap<>(), ArrayList::new);
+            Map<String, String> map = new HashMap<>();
+            if (args != null) {
+                copy.putAll(args);
+                for (Map.Entry<String, String> e : args.entries()) {
+                    map.put(e.getKey(), e.getValue());
+                }
+            }
+            this.argumentMultimap = Multimaps.unmodifiableListMultimap(copy);
+            this.arguments = Collections.unmodifiableMap(map);
+            this.transforms = Collections.unmodifiableList(new ArrayList<>(transforms));
+            this.text = text;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * Arguments as a map, only retaining the last value given for a key.
+         */
+        Map<String, String> getArguments() {
+            return arguments;
+        }
+
+        ListMultimap<String, String> getArgumentMultimap() {
+            return argumentMultimap;
+        }
+
+        List<Transform> getTransforms() {
+            return transforms;
+        }
+
+        String getText() {
+            return text;
+        }
+
+        /**
+         * The arguments checked and converted for the given macro, reused as long as the token is evaluated by
+         * instances of the same class.
+         */
+        MacroParameters getParameters(DataBoundTokenMacro tm) throws MacroEvaluationException {
+            MacroParameters result = parameters;
+            if (result == null || !result.isFor(tm.getClass())) {
+                result = tm.prepare(name, arguments, argumentMultimap);
+                parameters = result;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jenkins.util.SystemProperties;
+
+/**
+ * Bounded LRU cache of {@link Template}s keyed by the template text.
+ *
+ * <p>
+ * The same templates (email bodies, descriptions, etc.) get expanded over and over again, so there is no point in
+ * parsing them each time. The cache is bounded both by the number of templates and by the total length of the
+ * cached template texts.
+ */
+final class TemplateCache {
+
+    static final int MAX_ENTRIES = SystemProperties.getInteger(TemplateCache.class.getName() + ".maxEntries", 256);
+
+    static final long MAX_CHARS =
+            SystemProperties.getLong(TemplateCache.class.getName() + ".maxChars", 8L * 1024 * 1024);
+
+    private static final TemplateCache INSTANCE = new TemplateCache(MAX_ENTRIES, MAX_CHARS);
+
+    private final int maxEntries;
+    private final long maxChars;
+    private final LinkedHashMap<String, Template> templates = new LinkedHashMap<>(16, 0.75f, true);
+    private long chars;
+
+    TemplateCache(int maxEntries, long maxChars) {
+        this.maxEntries = maxEntries;
+        this.maxChars = maxChars;
+    }
+
+    static TemplateCache get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the compiled form of the given template, compiling and caching it if needed.
+     *
+     * @throws MacroEvaluationException if the template cannot be parsed
+     */
+    Template compile(String source) throws MacroEvaluationException {
+        Template template;
+        synchronized (this) {
+            template = templates.get(source);
+        }
+        if (template == null) {
+            // compile outside of the lock, worst case the same template gets compiled twice
+            template = Parser.compile(source);
+            put(template);
+        }
+        return template;
+    }
+
+    private synchronized void put(Template template) {
+        String source = template.getSource();
+        if (maxEntries <= 0 || source.length() > maxChars) {
+            return;
+        }
+        Template previous = templates.put(source, template);
+        if (previous == null) {
+            chars += source.length();
+        }
+        Iterator<Map.Entry<String, Template>> it = templates.entrySet().iterator();
+        while ((templates.size() > maxEntries || chars > maxChars) && it.hasNext()) {
+            Map.Entry<String, Template> eldest = it.next();
+            chars -= eldest.getKey().length();
+            it.remove();
+        }
+    }
+
+    synchronized int size() {
+        return templates.size();
+    }
+
+    synchronized void clear() {
+        templates.clear();
+        chars = 0;
+    }
+}
@@ -36,11 +36,13 @@ import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.util.VariableResolver;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import jenkins.model.Jenkins;
+import org.apache.commons.io.IOUtils;
 
 /**
  * A macro that expands to text values in the context of a {@link AbstractBuild}.
@@ -143,6 +145,69 @@ public abstract class TokenMacro implements ExtensionPoint {
         return macroName + " is not supported in this context";
     }
 
+    /**
+     * Evaluates the macro and writes the result to the given output.
+     *
+     * <p>
+     * Used by {@link #expandTo(Run, FilePath, TaskListener, Reader, Appendable, boolean, List)} for tokens whose
+     * result is neither transformed nor expanded again, so that macros producing large values (like the build log)
+     * can write them out piece by piece instead of building one big {@link String}. The default implementation
+     * just appends the result of the {@code evaluate} methods above.
+     *
+     * <p>
+     * Implementations should report problems with the arguments by throwing {@link MacroEvaluationException}
+     * before writing anything, as the error message takes the place of the token when exceptions are not thrown.
+     *
+     * @param out
+     *      Where to write the result to.
+     *
+     * @see #evaluate(AbstractBuild, TaskListener, String, Map, ListMultimap)
+     */
+    public void evaluate(
+            Run<?, ?> run,
+            @CheckForNull FilePath workspace,
+            TaskListener listener,
+            String macroName,
+            Map<String, String> arguments,
+            ListMultimap<String, String> argumentMultimap,
+            Appendable out)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        String result;
+        if (run instanceof AbstractBuild) {
+            result = evaluate((AbstractBuild<?, ?>) run, listener, macroName, arguments, argumentMultimap);
+        } else {
+            result = evaluate(run, workspace, listener, macroName, arguments, argumentMultimap);
+        }
+        if (result != null) {
+            out.append(result);
+        }
+    }
+
+    /**
+     * Creates a consumer that computes the result of the macro from the lines of the build log.
+     *
+     * <p>
+     * When a template contains several tokens of {@linkplain #isDeterministic() deterministic} macros that read the
+     * log this way, the log is read once for all of them through a {@link LogScanner}, and the results of the
+     * consumers take the place of the tokens, instead of each of them reading the log on its own. Macros implementing
+     * this should give the same result from their {@code evaluate} methods, which are still used for single tokens,
+     * e.g. by running the consumer through {@link LogScanner#scan(Run, LogScanner.Consumer)}. If the log can't be
+     * read, the tokens are evaluated one by one.
+     *
+     * @return null if the macro doesn't read the log line by line, which is the default
+     * @throws MacroEvaluationException if the arguments are invalid, the token is then evaluated on its own
+     */
+    @CheckForNull
+    public LogScanner.Consumer createLogConsumer(
+            Run<?, ?> run,
+            TaskListener listener,
+            String macroName,
+            Map<String, String> arguments,
+            ListMultimap<String, String> argumentMultimap)
+            throws MacroEvaluationException {
+        return null;
+    }
+
     /**
      * Returns true if this object allows for nested content replacements.
      *
@@ -153,6 +218,63 @@ public abstract class TokenMacro implements ExtensionPoint {
         return false;
     }
 
+    /**
+     * Returns true if this macro may be evaluated concurrently with other macros of the same template.
+     *
+     * <p>
+     * When parallel evaluation is enabled, such macros are evaluated on a thread pool, as the same user, while the
+     * template is being expanded. Only return true if the evaluation does not depend on or change any state shared
+     * with other evaluations, and if it may be slow enough for this to pay off, e.g. because it reads the build log
+     * or a file on an agent. The results are still put together in template order, with the usual error handling.
+     *
+     * @return false by default
+     */
+    public boolean supportsConcurrentEvaluation() {
+        return false;
+    }
+
+    /**
+     * Returns true if evaluating this macro twice with the same arguments during one expansion gives the same result.
+     *
+     * <p>
+     * The result of such macros is computed once per {@link #expand(Run, FilePath, TaskListener, String)} (including
+     * nested content) and reused for identical tokens, e.g. a <code>${BUILD_LOG_REGEX, regex="ERROR"}</code> used in
+     * both the HTML and the plain text part of an e-mail. Transforms are still applied to each token. Only return
+     * true if the result depends on nothing but the arguments and state that doesn't change during an expansion, not
+     * e.g. on a counter, a timestamp or a random value, as every occurrence is evaluated otherwise.
+     *
+     * @return false by default
+     */
+    public boolean isDeterministic() {
+        return false;
+    }
+
+    /**
+     * Returns true if the result of this macro no longer changes once the run has completed.
+     *
+     * <p>
+     * The results of such macros for runs whose log is no longer {@linkplain Run#isLogUpdated() written to}, which
+     * excludes runs in post production, are kept in a cache shared by all expansions, so e.g. the log of a build is
+     * only scanned once when several notifiers expand the same tokens. Only return true if the result depends on
+     * nothing but the arguments and the completed run itself (not on the workspace, other runs or the current time),
+     * and is not expanded again (see {@link #hasNestedContent()}).
+     *
+     * @return false by default
+     */
+    public boolean isStableOnceCompleted() {
+        return false;
+    }
+
+    /**
+     * Returns the names of the macros this object evaluates.
+     *
+     * <p>
+     * Besides auto-completion, these names are used to find the macro for a token without asking every
+     * {@link TokenMacro} through {@link #acceptsMacroName(String)}. Macros that return an empty list still
+     * work, they are just asked for every token.
+     *
+     * @return the macro names, by convention all caps
+     */
     public List<String> getAcceptedMacroNames() {
         return Collections.EMPTY_LIST;
     }
@@ -171,13 +293,44 @@ public abstract class TokenMacro implements ExtensionPoint {
         return result;
     }
 
+    /**
+     * Checks the macro usages in a template without evaluating anything, e.g. when a job configuration is saved.
+     *
+     * <p>
+     * Every token is resolved against the registered macros and, for {@link DataBoundTokenMacro}s, against the
+     * {@link DataBoundTokenMacro#getParameters() parameters} of the macro: undefined and missing required parameters
+     * are reported, with the messages the expansion would fail with. Environment variables that are meant to be
+     * expanded by {@link #expandAll} show up as unrecognized macros, and the nested content of macros isn't checked,
+     * as it's only known once they're evaluated.
+     *
+     * <p>
+     * When a template expanded with {@code throwException} set is found to be invalid this way, the expansion fails
+     * before any macro is evaluated.
+     *
+     * @param template the text to check
+     * @param privateTokens macros only available to the expansions of this template, may be null
+     * @return all the problems found, in the order of the tokens, empty if there are none
+     */
+    @NonNull
+    public static List<String> validate(String template, @CheckForNull List<TokenMacro> privateTokens) {
+        return Parser.validate(template, privateTokens);
+    }
+
+    /**
+     * Same as {@link #validate(String, List)}, without private macros.
+     */
+    @NonNull
+    public static List<String> validate(String template) {
+        return validate(template, null);
+    }
+
     /**
      * All registered extension points.
      *
      * @return All registered token macro classes.
      */
     public static ExtensionList<TokenMacro> all() {
-        final Jenkins jenkins = Jenkins.getInstance();
+        final Jenkins jenkins = Jenkins.getInstanceOrNull();
         if (jenkins != null) {
             return jenkins.getExtensionList(TokenMacro.class);
         } else {
@@ -217,6 +370,50 @@ public abstract class TokenMacro implements ExtensionPoint {
         return Parser.process(run, workspace, listener, stringWithMacro, throwException, privateTokens);
     }
 
+    /**
+     * Expands the macros in the given template and writes the result to {@code out}, throwing an exception for the
+     * first macro that fails.
+     *
+     * @see #expandTo(Run, FilePath, TaskListener, Reader, Appendable, boolean, List)
+     */
+    public static void expandTo(
+            Run<?, ?> run, @CheckForNull FilePath workspace, TaskListener listener, Reader template, Appendable out)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        expandTo(run, workspace, listener, template, out, true, null);
+    }
+
+    /**
+     * Expands the macros in the given template and writes the result to {@code out}, without building the
+     * whole result in memory first.
+     *
+     * <p>
+     * The template itself is read completely before anything gets evaluated, it's the macro results that are
+     * streamed. If the expansion fails half way through, {@code out} will contain the part expanded so far.
+     *
+     * <p>
+     * Macro results aren't buffered either: if a macro fails after it has started writing its result, what it has
+     * written stays in {@code out}. When {@code throwException} is false, the error message that takes the place of
+     * the token then follows that partial result.
+     *
+     * @param template
+     *      The text to expand, it's not closed by this method.
+     * @param out
+     *      Where to write the expanded text to, for example a {@link java.io.Writer}.
+     *
+     * @see #expand(Run, FilePath, TaskListener, String, boolean, List)
+     */
+    public static void expandTo(
+            Run<?, ?> run,
+            @CheckForNull FilePath workspace,
+            TaskListener listener,
+            Reader template,
+            Appendable out,
+            boolean throwException,
+            List<TokenMacro> privateTokens)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        Parser.process(run, workspace, listener, IOUtils.toString(template), out, throwException, privateTokens);
+    }
+
     public static String expandAll(AbstractBuild<?, ?> context, TaskListener listener, String stringWithMacro)
             throws MacroEvaluationException, IOException, InterruptedException {
         return expandAll(context, listener, stringWithMacro, true, null);
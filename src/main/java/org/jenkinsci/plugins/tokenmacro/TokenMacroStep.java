@@ -6,11 +6,15 @@ import hudson.Extension;
 import hudson.FilePath;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.util.FormValidation;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import org.jenkinsci.plugins.workflow.steps.*;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
 
 public class TokenMacroStep extends Step {
 
@@ -64,6 +68,22 @@ public class TokenMacroStep extends Step {
             return "Expand a string containing macros";
         }
 
+        /**
+         * Reports unknown macros and parameters right away, instead of when the step runs.
+         */
+        public FormValidation doCheckStringWithMacro(@QueryParameter String value) {
+            List<String> problems = TokenMacro.validate(value);
+            if (problems.isEmpty()) {
+                return FormValidation.ok();
+            }
+            // environment variables look like unknown macros, so these aren't necessarily errors
+            List<FormValidation> warnings = new ArrayList<>();
+            for (String problem : problems) {
+                warnings.add(FormValidation.warning(problem));
+            }
+            return FormValidation.aggregate(warnings);
+        }
+
         @Override
         public Set<? extends Class<?>> getRequiredContext() {
             Set<Class<?>> context = new HashSet<>();
@@ -1,10 +1,28 @@
 package org.jenkinsci.plugins.tokenmacro;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 
 /**
  * Created by acearl on 2/24/2016.
+ *
+ * <p>
+ * Instances are part of compiled templates, which are cached and may be used by several expansions at the same
+ * time, so implementations must be immutable.
  */
 public abstract class Transform {
     public abstract String transform(@NonNull String input) throws MacroEvaluationException;
+
+    /**
+     * Combines this transform with the one applied right after it into a single step, e.g. to compute the length
+     * of a substring without creating it.
+     *
+     * @param next the transform applied to the result of this one
+     * @return a transform giving the same result (and failures) as applying this one and then {@code next}, or
+     *     null if they can't be combined
+     */
+    @CheckForNull
+    public Transform fuse(@NonNull Transform next) {
+        return null;
+    }
 }
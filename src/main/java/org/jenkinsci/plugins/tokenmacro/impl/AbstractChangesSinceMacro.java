@@ -58,12 +58,14 @@ public abstract class AbstractChangesSinceMacro extends DataBoundTokenMacro {
             return "";
         }
 
+        String format = this.format;
         if (StringUtils.isEmpty(format)) {
             format = getDefaultFormatValue();
         }
 
         format = TokenMacro.expandAll(run, workspace, listener, format);
 
+        String pathFormat = this.pathFormat;
         if (StringUtils.isNotEmpty(pathFormat)) {
             pathFormat = TokenMacro.expandAll(run, workspace, listener, pathFormat);
         }
@@ -89,13 +91,18 @@ public abstract class AbstractChangesSinceMacro extends DataBoundTokenMacro {
                     currentBuild = currentBuild.getNextBuild();
                 }
             }
-            appendBuild(sb, listener, currentBuild);
+            appendBuild(sb, listener, currentBuild, format, pathFormat);
         }
 
         return sb.toString();
     }
 
-    private void appendBuild(StringBuffer buf, final TaskListener listener, final Run<?, ?> currentRun)
+    private void appendBuild(
+            StringBuffer buf,
+            final TaskListener listener,
+            final Run<?, ?> currentRun,
+            String format,
+            String pathFormat)
             throws MacroEvaluationException {
         // Use this object since it already formats the changes per build
         final ChangesSinceLastBuildMacro changes = new ChangesSinceLastBuildMacro(changesFormat, pathFormat, showPaths);
@@ -40,6 +40,11 @@ public class AdminEmailMacro extends TokenMacro {
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String evaluate(
             AbstractBuild<?, ?> context,
@@ -11,6 +11,7 @@ import java.util.List;
 import org.apache.commons.lang3.StringUtils;
 import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.MacroParameters;
 
 @Extension
 public class BuildCauseMacro extends DataBoundTokenMacro {
@@ -33,25 +34,41 @@ public class BuildCauseMacro extends DataBoundTokenMacro {
         return macroNames;
     }
 
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
         return evaluate(build, null, listener, macroName);
     }
 
+    @Override
+    public String evaluate(
+            Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName, MacroParameters parameters)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        return evaluate(run, parameters.getString("data"));
+    }
+
     @Override
     public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
+        return evaluate(run, data);
+    }
+
+    private static String evaluate(Run<?, ?> run, String data) {
         List<Cause> causes = new LinkedList<Cause>();
         CauseAction causeAction = run.getAction(CauseAction.class);
         if (causeAction != null) {
             causes = causeAction.getCauses();
         }
 
-        return formatCauses(causes);
+        return formatCauses(causes, data);
     }
 
-    private String formatCauses(List<Cause> causes) {
+    private static String formatCauses(List<Cause> causes, String data) {
         if (causes.isEmpty()) {
             return "N/A";
         }
@@ -2,7 +2,6 @@ package org.jenkinsci.plugins.tokenmacro.impl;
 
 import hudson.Extension;
 import hudson.FilePath;
-import hudson.console.ConsoleNote;
 import hudson.model.AbstractBuild;
 import hudson.model.Run;
 import hudson.model.TaskListener;
@@ -11,8 +10,8 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
-import org.apache.commons.io.IOUtils;
 import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
+import org.jenkinsci.plugins.tokenmacro.LogScanner;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
 
 /**
@@ -39,6 +38,21 @@ public class BuildLogExcerptMacro extends DataBoundTokenMacro {
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean supportsConcurrentEvaluation() {
+        return true;
+    }
+
+    @Override
+    public boolean isStableOnceCompleted() {
+        return true;
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
@@ -49,38 +63,55 @@ public class BuildLogExcerptMacro extends DataBoundTokenMacro {
     public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
         try {
-            BufferedReader reader = new BufferedReader(run.getLogReader());
-            try {
-                return getContent(reader);
-            } finally {
-                IOUtils.closeQuietly(reader);
-            }
+            return LogScanner.scan(run, new Scan());
         } catch (IOException e) {
             listener.getLogger().println("Error getting BUILD_LOG_EXCERPT - " + e.getMessage());
             return ""; // TODO: Indicate there was an error instead?
         }
     }
 
+    @Override
+    public LogScanner.Consumer createLogConsumer(Run<?, ?> run, TaskListener listener, String macroName) {
+        return new Scan();
+    }
+
     String getContent(BufferedReader reader) throws IOException {
-        Pattern startPattern = Pattern.compile(start);
-        Pattern endPattern = Pattern.compile(end);
+        Scan scan = new Scan();
+        LogScanner.scan(reader, Collections.singletonList(scan));
+        return scan.getResult();
+    }
 
-        StringBuilder buffer = new StringBuilder();
-        String line;
-        boolean started = false;
-        while ((line = reader.readLine()) != null) {
-            line = ConsoleNote.removeNotes(line);
+    /**
+     * Collects the lines between the first line matching {@link #start} and the next one matching {@link #end}.
+     */
+    private class Scan implements LogScanner.Consumer {
+        private final Pattern startPattern = Pattern.compile(start);
+        private final Pattern endPattern = Pattern.compile(end);
+        private final LiteralPrefilter startPrefilter = LiteralPrefilter.of(start);
+        private final LiteralPrefilter endPrefilter = LiteralPrefilter.of(end);
 
-            if (startPattern.matcher(line).matches()) {
+        private final StringBuilder buffer = new StringBuilder();
+        private boolean started = false;
+
+        @Override
+        public boolean accept(LogScanner.Line logLine) {
+            CharSequence line = logLine.getChars();
+
+            if (startPrefilter.mightMatch(line) && startPattern.matcher(line).matches()) {
                 started = true;
-                continue;
+                return true;
             }
 
             if (started) {
-                if (endPattern.matcher(line).matches()) break;
+                if (endPrefilter.mightMatch(line) && endPattern.matcher(line).matches()) return false;
                 buffer.append(line).append('\n');
             }
+            return true;
+        }
+
+        @Override
+        public String getResult() {
+            return buffer.toString();
         }
-        return buffer.toString();
     }
 }
@@ -10,6 +10,7 @@ import java.util.Collections;
 import java.util.List;
 import org.apache.commons.text.StringEscapeUtils;
 import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
+import org.jenkinsci.plugins.tokenmacro.LogTailReader;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
 
 /**
@@ -43,6 +44,21 @@ public class BuildLogMacro extends DataBoundTokenMacro {
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean supportsConcurrentEvaluation() {
+        return true;
+    }
+
+    @Override
+    public boolean isStableOnceCompleted() {
+        return true;
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
@@ -52,33 +68,40 @@ public class BuildLogMacro extends DataBoundTokenMacro {
     @Override
     public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
+        StringBuilder buffer = new StringBuilder();
+        evaluate(run, workspace, listener, macroName, buffer);
+        return buffer.toString();
+    }
+
+    @Override
+    public void evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName, Appendable out)
+            throws MacroEvaluationException, IOException, InterruptedException {
         if (maxLines <= 0) {
             throw new MacroEvaluationException("Invalid maxLines value: " + maxLines);
         }
         if (truncTailLines < 0) {
             throw new MacroEvaluationException("Invalid truncTailLines value: " + truncTailLines);
         }
-        StringBuilder buffer = new StringBuilder();
+        List<String> lines;
         try {
-            List<String> lines = run.getLog(maxLines);
-            // It is OK if this turns out to be a negative value, the entire log will get skipped.
-            int nLinesToEval = lines.size() - truncTailLines;
-            for (int i = 0; i < nLinesToEval; ++i) {
-                String line = lines.get(i);
-                if (maxLineLength != MAX_LINE_LENGTH_DEFAULT_VALUE && line.length() > maxLineLength) {
-                    line = line.substring(0, maxLineLength) + "...";
-                }
-                if (escapeHtml) {
-                    line = StringEscapeUtils.escapeHtml4(line);
-                }
-                buffer.append(line);
-                buffer.append('\n');
-            }
+            lines = LogTailReader.getLog(run, maxLines);
         } catch (IOException e) {
             listener.getLogger().append("Error getting build log data: " + e.getMessage());
+            return;
+        }
+        // It is OK if this turns out to be a negative value, the entire log will get skipped.
+        int nLinesToEval = lines.size() - truncTailLines;
+        for (int i = 0; i < nLinesToEval; ++i) {
+            String line = lines.get(i);
+            if (maxLineLength != MAX_LINE_LENGTH_DEFAULT_VALUE && line.length() > maxLineLength) {
+                line = line.substring(0, maxLineLength) + "...";
+            }
+            if (escapeHtml) {
+                line = StringEscapeUtils.escapeHtml4(line);
+            }
+            out.append(line);
+            out.append('\n');
         }
-
-        return buffer.toString();
     }
 
     @Override
@@ -2,7 +2,6 @@ package org.jenkinsci.plugins.tokenmacro.impl;
 
 import hudson.Extension;
 import hudson.FilePath;
-import hudson.console.ConsoleNote;
 import hudson.model.AbstractBuild;
 import hudson.model.Run;
 import hudson.model.TaskListener;
@@ -14,7 +13,9 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.text.StringEscapeUtils;
 import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
+import org.jenkinsci.plugins.tokenmacro.LogScanner;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.MappedLogCharSequence;
 
 /**
  * An EmailContent for build log segments matching a regular expression. The
@@ -45,7 +46,18 @@ public class BuildLogMultilineRegexMacro extends DataBoundTokenMacro {
     @Parameter
     public String matchedSegmentHtmlStyle = null;
 
-    private static final Pattern LINE_TERMINATOR_PATTERN = Pattern.compile("(?<=.)\\r?\\n");
+    /**
+     * If greater than 0, the log is matched in a window sliding over it instead of all at once, so that only a few
+     * times this many characters of it are kept in memory. Matches no longer than this are the same as when matching
+     * the whole log, longer ones may be cut short or missed.
+     */
+    @Parameter
+    public int maxSegmentLength = 0;
+
+    /**
+     * The least amount of text a window is matched for at once, see {@link #maxSegmentLength}.
+     */
+    private static final int MIN_SEGMENT_STEP = 64 * 1024;
 
     @Override
     public boolean acceptsMacroName(String macroName) {
@@ -57,6 +69,21 @@ public class BuildLogMultilineRegexMacro extends DataBoundTokenMacro {
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean supportsConcurrentEvaluation() {
+        return true;
+    }
+
+    @Override
+    public boolean isStableOnceCompleted() {
+        return true;
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     private boolean startPre(StringBuilder buffer, boolean insidePre) {
         if (!insidePre) {
             buffer.append("<pre>\n");
@@ -116,98 +143,230 @@ public class BuildLogMultilineRegexMacro extends DataBoundTokenMacro {
     public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
         try {
-            BufferedReader reader = new BufferedReader(run.getLogReader());
-            try {
-                return getContent(reader);
-            } finally {
-                reader.close();
+            if (maxSegmentLength == 0) {
+                MappedLogCharSequence log = MappedLogCharSequence.open(run, true);
+                if (log != null) {
+                    return new Scan(log).getResult();
+                }
             }
+            return LogScanner.scan(run, new Scan());
         } catch (IOException ex) {
             listener.error(ex.getMessage());
             return ""; // TODO: Indicate there was an error instead?
         }
     }
 
-    private String getContent(BufferedReader reader) throws IOException {
-        final Pattern pattern = Pattern.compile(regex);
-        final boolean asHtml = matchedSegmentHtmlStyle != null;
-        escapeHtml = asHtml || escapeHtml;
+    @Override
+    public LogScanner.Consumer createLogConsumer(Run<?, ?> run, TaskListener listener, String macroName) {
+        // matching the mapped log on its own saves buffering all of it
+        return maxSegmentLength == 0 && MappedLogCharSequence.isSupported(run) ? null : new Scan();
+    }
 
-        StringBuilder line = new StringBuilder();
-        StringBuilder fullLog = new StringBuilder();
-        int ch;
-        // Buffer log contents including line terminators, and remove console notes
-        while ((ch = reader.read()) != -1) {
-            if (ch == '\r' || ch == '\n') {
-                if (line.length() > 0) {
-                    // Remove console notes (JENKINS-7402)
-                    fullLog.append(ConsoleNote.removeNotes(line.toString()));
-                    line.setLength(0);
-                }
-                fullLog.append((char) ch);
-            } else {
-                line.append((char) ch);
-            }
+    String getContent(BufferedReader reader) throws IOException {
+        Scan scan = new Scan();
+        LogScanner.scan(reader, Collections.singletonList(scan));
+        return scan.getResult();
+    }
+
+    /**
+     * Buffers the log contents including line terminators, with the console notes removed, and matches it once
+     * enough of it is there: all of it at the end of the log, or, with {@link #maxSegmentLength}, a window sliding
+     * over it.
+     *
+     * <p>
+     * A match is only taken from the window once the window holds at least {@link #maxSegmentLength} characters
+     * after where it starts. Then the rest of the log could only change the match if it was longer than that, or if
+     * it looked further ahead. The same amount of text is kept before where the next match may start, for the
+     * lookbehinds and the anchors.
+     *
+     * <p>
+     * The log of a completed run can be matched without buffering it, through a {@link MappedLogCharSequence}.
+     */
+    private class Scan implements LogScanner.Consumer {
+        private final Pattern pattern = Pattern.compile(regex);
+        // a window without any of the literals every match contains has no match
+        private final LiteralPrefilter prefilter = LiteralPrefilter.of(regex);
+        private final boolean asHtml = matchedSegmentHtmlStyle != null;
+        private final boolean escapeHtml = asHtml || BuildLogMultilineRegexMacro.this.escapeHtml;
+
+        // the text matched, either the window or the whole log
+        private final CharSequence log;
+        private final StringBuilder window;
+        // where in the window the next match may start, and whether the last match was empty and ended there, in
+        // which case it may only start after it, as Matcher.find() does
+        private int nextMatchStart = 0;
+        private boolean afterEmptyMatch = false;
+        // the line terminators since the end of the last match, counted until this position of the window
+        private final LineCounter linesTruncated = new LineCounter();
+        private int countedUntil = 0;
+
+        private final StringBuilder content = new StringBuilder();
+        private int numMatches = 0;
+        private boolean insidePre = false;
+        // set once maxMatches is reached, the rest of the log is only counted
+        private boolean done = false;
+
+        Scan() {
+            window = new StringBuilder();
+            log = window;
+        }
+
+        Scan(CharSequence log) {
+            window = null;
+            this.log = log;
         }
-        // Buffer the final log line if it has no line terminator
-        if (line.length() > 0) {
+
+        @Override
+        public boolean accept(LogScanner.Line line) {
+            if (done) {
+                linesTruncated.add(line.getChars(), 0, line.getChars().length());
+                linesTruncated.add(line.getTerminator(), 0, line.getTerminator().length());
+                return true;
+            }
             // Remove console notes (JENKINS-7402)
-            fullLog.append(ConsoleNote.removeNotes(line.toString()));
-        }
-        StringBuilder content = new StringBuilder();
-        int numMatches = 0;
-        boolean insidePre = false;
-        int lastMatchEnd = 0;
-        final Matcher matcher = pattern.matcher(fullLog);
-        while (matcher.find()) {
-            if (maxMatches != 0 && ++numMatches > maxMatches) {
-                break;
+            window.append(line.getChars()).append(line.getTerminator());
+            if (maxSegmentLength > 0
+                    && window.length() - nextMatchStart
+                            >= maxSegmentLength + Math.max(maxSegmentLength, MIN_SEGMENT_STEP)) {
+                match(false);
             }
-            if (showTruncatedLines) {
-                if (matcher.start() > lastMatchEnd) {
-                    // Append information about truncated lines.
-                    int numLinesTruncated = countLineTerminators(fullLog.subSequence(lastMatchEnd, matcher.start()));
-                    if (numLinesTruncated > 0) {
-                        insidePre = stopPre(content, insidePre);
-                        appendLinesTruncated(content, numLinesTruncated, asHtml);
+            // the rest of the lines are only needed to count them
+            return !done || showTruncatedLines;
+        }
+
+        /**
+         * Takes the matches from the window.
+         *
+         * @param endOfLog whether the window holds the rest of the log, so all the matches in it can be taken
+         */
+        private void match(boolean endOfLog) {
+            final int length = log.length();
+            final int limit = endOfLog ? length : length - maxSegmentLength;
+            final int from = afterEmptyMatch ? nextMatchStart + 1 : nextMatchStart;
+            if (from <= length && prefilter.mightMatch(log)) {
+                final Matcher matcher = pattern.matcher(log);
+                matcher.useTransparentBounds(true).useAnchoringBounds(false).region(from, length);
+                // where Matcher.appendReplacement() copies the text before the match from
+                int appendPosition = 0;
+                while (matcher.find()) {
+                    if (!endOfLog && matcher.start() >= limit) {
+                        break;
+                    }
+                    if (maxMatches != 0 && ++numMatches > maxMatches) {
+                        done = true;
+                        break;
+                    }
+                    if (showTruncatedLines) {
+                        // Append information about truncated lines.
+                        linesTruncated.add(log, countedUntil, matcher.start());
+                        if (linesTruncated.count > 0) {
+                            insidePre = stopPre(content, insidePre);
+                            appendLinesTruncated(content, linesTruncated.count, asHtml);
+                        }
                     }
+                    if (asHtml) {
+                        insidePre = startPre(content, insidePre);
+                    }
+                    if (substText != null) {
+                        final StringBuffer substBuf = new StringBuffer();
+                        matcher.appendReplacement(substBuf, substText);
+                        // Remove prepended text between matches
+                        final String segment = substBuf.substring(matcher.start() - appendPosition);
+                        appendMatchedSegment(content, segment, escapeHtml, matchedSegmentHtmlStyle);
+                        appendPosition = matcher.end();
+                    } else {
+                        appendMatchedSegment(content, matcher.group(), escapeHtml, matchedSegmentHtmlStyle);
+                    }
+                    linesTruncated.reset();
+                    countedUntil = matcher.end();
+                    nextMatchStart = matcher.end();
+                    afterEmptyMatch = matcher.start() == matcher.end();
+                }
+            }
+            if (done) {
+                // only the lines after the last match are still needed, to count them
+                if (showTruncatedLines) {
+                    linesTruncated.add(log, countedUntil, length);
+                }
+                if (window != null) {
+                    window.setLength(0);
+                    countedUntil = 0;
+                } else {
+                    countedUntil = length;
                 }
+                return;
             }
-            if (asHtml) {
-                insidePre = startPre(content, insidePre);
+            if (endOfLog) {
+                return;
             }
-            if (substText != null) {
-                final StringBuffer substBuf = new StringBuffer();
-                matcher.appendReplacement(substBuf, substText);
-                // Remove prepended text between matches
-                final String segment = substBuf.substring(matcher.start() - lastMatchEnd);
-                appendMatchedSegment(content, segment, escapeHtml, matchedSegmentHtmlStyle);
-            } else {
-                appendMatchedSegment(content, matcher.group(), escapeHtml, matchedSegmentHtmlStyle);
+            // no match starts before the limit, the text before it only needs to be counted
+            if (limit > nextMatchStart) {
+                nextMatchStart = limit;
+                afterEmptyMatch = false;
+            }
+            if (showTruncatedLines) {
+                linesTruncated.add(window, countedUntil, nextMatchStart);
+            }
+            countedUntil = nextMatchStart;
+            int drop = nextMatchStart - maxSegmentLength;
+            if (drop > 0) {
+                window.delete(0, drop);
+                nextMatchStart -= drop;
+                countedUntil -= drop;
             }
-            lastMatchEnd = matcher.end();
         }
-        if (showTruncatedLines) {
-            if (fullLog.length() > lastMatchEnd) {
+
+        @Override
+        public String getResult() {
+            if (!done) {
+                match(true);
+            }
+            if (showTruncatedLines) {
                 // Append information about truncated lines.
-                int numLinesTruncated = countLineTerminators(fullLog.subSequence(lastMatchEnd, fullLog.length()));
-                if (numLinesTruncated > 0) {
+                linesTruncated.add(log, countedUntil, log.length());
+                if (linesTruncated.count > 0) {
                     insidePre = stopPre(content, insidePre);
-                    appendLinesTruncated(content, numLinesTruncated, asHtml);
+                    appendLinesTruncated(content, linesTruncated.count, asHtml);
                 }
             }
+            stopPre(content, insidePre);
+            return content.toString();
         }
-        stopPre(content, insidePre);
-        return content.toString();
     }
 
-    private int countLineTerminators(CharSequence charSequence) {
-        int lineTerminatorCount = 0;
-        Matcher matcher = LINE_TERMINATOR_PATTERN.matcher(charSequence);
-        while (matcher.find()) {
-            ++lineTerminatorCount;
+    /**
+     * Counts the line terminators the way <code>(?&lt;=.)\r?\n</code> finds them, i.e. the ones ending a line that
+     * isn't empty, going through the text piece by piece.
+     */
+    private static final class LineCounter {
+        int count;
+        // the last two characters seen since the count started, -1 if none
+        private int last = -1;
+        private int beforeLast = -1;
+
+        void add(CharSequence text, int start, int end) {
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+                if (c == '\n' && (isInLine(last) || (last == '\r' && isInLine(beforeLast)))) {
+                    ++count;
+                }
+                beforeLast = last;
+                last = c;
+            }
+        }
+
+        void reset() {
+            count = 0;
+            last = -1;
+            beforeLast = -1;
+        }
+
+        /**
+         * Whether <code>.</code> matches the character.
+         */
+        private static boolean isInLine(int c) {
+            return c != -1 && c != '\n' && c != '\r' && c != '\u0085' && c != '\u2028' && c != '\u2029';
         }
-        return lineTerminatorCount;
     }
 
     @Override
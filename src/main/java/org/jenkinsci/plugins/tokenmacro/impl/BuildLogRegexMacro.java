@@ -1,24 +1,41 @@
 package org.jenkinsci.plugins.tokenmacro.impl;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.console.ConsoleNote;
 import hudson.model.AbstractBuild;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.util.AbstractMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Queue;
 import java.util.Stack;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import jenkins.util.SystemProperties;
 import org.apache.commons.text.StringEscapeUtils;
 import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
+import org.jenkinsci.plugins.tokenmacro.LogChunks;
+import org.jenkinsci.plugins.tokenmacro.LogScanner;
+import org.jenkinsci.plugins.tokenmacro.LogTailReader;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
 
 /**
@@ -38,7 +55,30 @@ public class BuildLogRegexMacro extends DataBoundTokenMacro {
     public static final int MAX_TAIL_MATCHES_DEFAULT_VALUE = 0;
     public static final int MAX_LINE_LENGTH_DEFAULT_VALUE = 0;
 
-    @Parameter
+    /**
+     * The logs of completed runs at least this many bytes long are matched in chunks, in parallel, see
+     * {@link #getParallelContent(LogChunks)}. 0, the default, turns this off.
+     */
+    static final long PARALLEL_SCAN_THRESHOLD =
+            SystemProperties.getLong(BuildLogRegexMacro.class.getName() + ".parallelScanThreshold", 0L);
+
+    /**
+     * The number of threads the chunks of the logs matched in parallel are read and matched on.
+     */
+    static final int PARALLEL_SCAN_THREADS =
+            SystemProperties.getInteger(BuildLogRegexMacro.class.getName() + ".parallelScanThreads", 4);
+
+    /**
+     * The least size of the chunks a log matched in parallel is split into.
+     */
+    private static final long MIN_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static ExecutorService parallelScanExecutor;
+
+    /**
+     * The expression the lines are matched against, the first one if several are given, see
+     * {@link #setRegex(String)}.
+     */
     public String regex = "(?i)\\b(error|exception|fatal|fail(ed|ure)|un(defined|resolved))\\b";
 
     @Parameter
@@ -56,9 +96,18 @@ public class BuildLogRegexMacro extends DataBoundTokenMacro {
     @Parameter
     public String substText = null; // insert entire line
 
-    @Parameter
+    /**
+     * The style of the lines matching {@link #regex}, and of the ones matching the other expressions that don't have
+     * a style of their own.
+     */
     public String matchedLineHtmlStyle = null;
 
+    /**
+     * Text put before the lines matching {@link #regex}, and before the ones matching the other expressions that
+     * don't have a label of their own.
+     */
+    public String label = null;
+
     @Parameter
     public boolean addNewline = true;
 
@@ -74,6 +123,74 @@ public class BuildLogRegexMacro extends DataBoundTokenMacro {
     @Parameter
     public int maxLineLength = MAX_LINE_LENGTH_DEFAULT_VALUE;
 
+    // the values given after the first one for the parameters that can be repeated
+    private final List<String> moreRegexes = new ArrayList<>();
+    private final List<String> moreStyles = new ArrayList<>();
+    private final List<String> moreLabels = new ArrayList<>();
+    private boolean regexGiven;
+    private boolean styleGiven;
+    private boolean labelGiven;
+
+    /**
+     * Sets the expression, or adds another one if {@code regex} is given several times. All the expressions are
+     * looked for in a single pass over the log, and a line matching any of them is a matching line. The
+     * {@code matchedLineHtmlStyle} and {@code label} given the same number of times apply to it, see
+     * {@link PatternSet}.
+     */
+    @Parameter
+    public void setRegex(String regex) {
+        if (regexGiven) {
+            moreRegexes.add(regex);
+        } else {
+            this.regex = regex;
+            regexGiven = true;
+        }
+    }
+
+    /**
+     * Sets the style of the lines matching the first expression, or of the ones matching the next expression if
+     * {@code matchedLineHtmlStyle} is given again.
+     */
+    @Parameter
+    public void setMatchedLineHtmlStyle(String matchedLineHtmlStyle) {
+        if (styleGiven) {
+            moreStyles.add(matchedLineHtmlStyle);
+        } else {
+            this.matchedLineHtmlStyle = matchedLineHtmlStyle;
+            styleGiven = true;
+        }
+    }
+
+    /**
+     * Sets the text put before the lines matching the first expression, or before the ones matching the next
+     * expression if {@code label} is given again, e.g. to tell apart the lines found by each expression.
+     */
+    @Parameter
+    public void setLabel(String label) {
+        if (labelGiven) {
+            moreLabels.add(label);
+        } else {
+            this.label = label;
+            labelGiven = true;
+        }
+    }
+
+    private List<String> getRegexes() {
+        List<String> regexes = new ArrayList<>(1 + moreRegexes.size());
+        regexes.add(regex);
+        regexes.addAll(moreRegexes);
+        return regexes;
+    }
+
+    private String getStyle(int index) {
+        return index > 0 && index <= moreStyles.size() ? moreStyles.get(index - 1) : matchedLineHtmlStyle;
+    }
+
+    @CheckForNull
+    private String getLabel(int index) {
+        return index > 0 && index <= moreLabels.size() ? moreLabels.get(index - 1) : label;
+    }
+
     @Override
     public boolean acceptsMacroName(String macroName) {
         return macroName.equals(MACRO_NAME);
@@ -84,6 +201,21 @@ public class BuildLogRegexMacro extends DataBoundTokenMacro {
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean supportsConcurrentEvaluation() {
+        return true;
+    }
+
+    @Override
+    public boolean isStableOnceCompleted() {
+        return true;
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     private Integer startPre(List<String> matchResults, int preStartLoc) {
         if (preStartLoc == -1) {
             matchResults.add("<pre>\n");
@@ -112,10 +244,18 @@ public class BuildLogRegexMacro extends DataBoundTokenMacro {
     }
 
     private void appendMatchedLine(
-            List<String> matchResults, String line, boolean escapeHtml, String style, boolean addNewline) {
+            List<String> matchResults,
+            String line,
+            boolean escapeHtml,
+            String style,
+            @CheckForNull String label,
+            boolean addNewline) {
         if (maxLineLength != MAX_LINE_LENGTH_DEFAULT_VALUE && line.length() > maxLineLength) {
             line = line.substring(0, maxLineLength) + "...";
         }
+        if (label != null) {
+            line = label + line;
+        }
         if (escapeHtml) {
             line = StringEscapeUtils.escapeHtml4(line);
         }
@@ -166,43 +306,409 @@ public class BuildLogRegexMacro extends DataBoundTokenMacro {
     public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
         try {
-            BufferedReader reader = new BufferedReader(run.getLogReader());
-            String transformedContent = getContent(reader);
-            reader.close();
-            return transformedContent;
+            File logFile = LogTailReader.plainLogFile(run);
+            if (readsBackwards(logFile)) {
+                try (LogTailReader reader = LogTailReader.open(logFile, run.getCharset())) {
+                    return getTailContent(reader);
+                }
+            }
+            if (scansInParallel(run, logFile)) {
+                // a few chunks per thread, so that the threads finishing early can take the ones left
+                long chunkSize = Math.max(MIN_CHUNK_SIZE, logFile.length() / (4L * PARALLEL_SCAN_THREADS));
+                try (LogChunks chunks = LogChunks.open(logFile, run.getCharset(), chunkSize)) {
+                    return getParallelContent(chunks);
+                }
+            }
+            return LogScanner.scan(run, new Scan());
         } catch (IOException ex) {
             listener.error(ex.getMessage());
             return ""; // TODO: Indicate there was an error instead?
         }
     }
 
+    @Override
+    public LogScanner.Consumer createLogConsumer(Run<?, ?> run, TaskListener listener, String macroName) {
+        // reading the tail of the log, or all of it in parallel, on its own is faster than taking part in a scan
+        File logFile = LogTailReader.plainLogFile(run);
+        return readsBackwards(logFile) || scansInParallel(run, logFile) ? null : new Scan();
+    }
+
+    /**
+     * Whether only the last matches are needed, so they can be looked for from the end of the log. This doesn't
+     * work with {@link #maxMatches}, which counts the matches from the start. The log file is the one found with
+     * {@link LogTailReader#plainLogFile(Run)}, null if the log can only be read from the start.
+     */
+    private boolean readsBackwards(@CheckForNull File logFile) {
+        return maxTailMatches > 0 && maxMatches == 0 && logFile != null;
+    }
+
+    /**
+     * Whether the log is long enough for matching its chunks in parallel to pay off, and can be split into chunks.
+     */
+    private boolean scansInParallel(Run<?, ?> run, @CheckForNull File logFile) {
+        return PARALLEL_SCAN_THRESHOLD > 0
+                && PARALLEL_SCAN_THREADS > 1
+                && logFile != null
+                && !run.isLogUpdated()
+                && LogChunks.supports(run.getCharset())
+                && logFile.length() >= PARALLEL_SCAN_THRESHOLD;
+    }
+
     String getContent(BufferedReader reader) throws IOException {
+        Scan scan = new Scan();
+        LogScanner.scan(reader, Collections.singletonList(scan));
+        return scan.getResult();
+    }
 
-        final boolean asHtml = matchedLineHtmlStyle != null;
-        escapeHtml = asHtml || escapeHtml;
-
-        final Pattern pattern = Pattern.compile(regex);
-        List<String> matchResults = new ArrayList<>();
-        Stack<Pair<Integer, Integer>> preRanges = new Stack<>();
-        int numLinesTruncated = 0;
-        int numMatches = 0;
-        int numLinesStillNeeded = 0;
-        Integer preStartLoc = -1;
-        Queue<String> linesBeforeList = new LinkedList<String>();
+    /**
+     * Reads the log backwards until the last {@link #maxTailMatches} lines of the result are known, then runs the lines
+     * from there on through a {@link Scan}. This gives the same result as scanning the whole log, as the lines before
+     * the ones kept by {@link #maxTailMatches} can't change them.
+     *
+     * <p>
+     * A line is part of the result if it matches, or if a match is at most {@link #linesBefore} lines after it or at
+     * most {@link #linesAfter} lines before it. Reading backwards, this is known once the {@link #linesAfter} lines
+     * before it are read too. The lines known not to be part of the result are only counted, for the truncated lines
+     * in between.
+     */
+    String getTailContent(LogTailReader reader) throws IOException {
+        final PatternSet patterns = new PatternSet(getRegexes());
+        // the lines read, last one first: the text of the ones to run through the scan, and the number of the lines
+        // known not to be part of the result in between
+        List<Object> lines = new ArrayList<>();
+        // the lines read that aren't known to be part of the result or not yet, last one first
+        Deque<String> pending = new ArrayDeque<>();
+        Deque<Boolean> pendingMatched = new ArrayDeque<>();
+        // counting lines from the end of the log, the last matching line known to be part of the result, and the
+        // last matching line read
+        int previousMatch = -1;
+        int latestMatch = -1;
+        int numLinesRead = 0;
+        int numResults = 0;
         String line;
-        while ((line = reader.readLine()) != null) {
+        while (numResults < maxTailMatches && (line = reader.readLine()) != null) {
             // Remove console notes (JENKINS-7402)
             line = ConsoleNote.removeNotes(line);
+            boolean matched = patterns.find(line) >= 0;
+            if (matched) {
+                latestMatch = numLinesRead;
+            }
+            pending.add(line);
+            pendingMatched.add(matched);
+            numLinesRead++;
+            if (pending.size() <= linesAfter) {
+                continue;
+            }
+
+            int index = numLinesRead - pending.size();
+            String text = pending.remove();
+            boolean isMatch = pendingMatched.remove();
+            if (isMatch
+                    || (previousMatch >= 0 && index - previousMatch <= linesBefore)
+                    || latestMatch > index) {
+                lines.add(text);
+                ++numResults;
+            } else if (!lines.isEmpty() && lines.get(lines.size() - 1) instanceof Integer) {
+                lines.set(lines.size() - 1, (Integer) lines.get(lines.size() - 1) + 1);
+            } else {
+                lines.add(1);
+            }
+            if (isMatch) {
+                previousMatch = index;
+            }
+        }
+        lines.addAll(pending);
+
+        Scan scan = new Scan();
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            Object o = lines.get(i);
+            if (o instanceof String) {
+                scan.accept((String) o);
+            } else {
+                scan.skip((Integer) o);
+            }
+        }
+        return scan.getResult();
+    }
+
+    /**
+     * Matches the chunks of the log in parallel on a pool of {@link #PARALLEL_SCAN_THREADS} threads, then runs the
+     * lines that may be part of the result through a {@link Scan}, in order, and skips the others. As with
+     * {@link #getTailContent(LogTailReader)}, this gives the same result as scanning the whole log.
+     *
+     * <p>
+     * Each chunk keeps its matching lines with the {@link #linesBefore} lines before them and the {@link #linesAfter}
+     * lines after them, and, for the matches in the chunks around it, its first {@link #linesAfter} lines and its last
+     * {@link #linesBefore} lines. Whether a line kept is part of the result is only known once the matches of all the
+     * chunks are. With {@link #maxMatches}, a chunk stops matching once it has enough matches for the scan to be done
+     * within it, whatever the chunks before it hold, and the chunks after it only count their lines.
+     */
+    String getParallelContent(LogChunks chunks) throws IOException, InterruptedException {
+        // the first chunk the scan is known to be done within
+        AtomicInteger firstDone = new AtomicInteger(Integer.MAX_VALUE);
+        List<ChunkScan> scans = new ArrayList<>(chunks.size());
+        List<Future<Void>> tasks = new ArrayList<>(chunks.size());
+        try {
+            for (int i = 0; i < chunks.size(); i++) {
+                ChunkScan chunkScan = new ChunkScan(i, firstDone);
+                int chunk = i;
+                scans.add(chunkScan);
+                tasks.add(parallelScanExecutor().submit(() -> {
+                    chunks.scan(chunk, Collections.singletonList(chunkScan));
+                    chunkScan.end();
+                    return null;
+                }));
+            }
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            for (Future<Void> task : tasks) {
+                task.cancel(true);
+            }
+        }
+
+        // the lines kept by the chunks up to the one the scan is done within, numbered from the start of the log
+        List<String> lines = new ArrayList<>();
+        long[] numbers = new long[16];
+        BitSet matched = new BitSet();
+        long numLines = 0;
+        for (ChunkScan chunkScan : scans) {
+            if (chunkScan.index <= firstDone.get()) {
+                if (numbers.length < lines.size() + chunkScan.lines.size()) {
+                    numbers = Arrays.copyOf(numbers, Math.max(numbers.length * 2, lines.size() + chunkScan.lines.size()));
+                }
+                for (int k = 0; k < chunkScan.lines.size(); k++) {
+                    if (chunkScan.matched.get(k)) {
+                        matched.set(lines.size());
+                    }
+                    numbers[lines.size()] = numLines + chunkScan.numbers[k];
+                    lines.add(chunkScan.lines.get(k));
+                }
+            }
+            numLines += chunkScan.numLines;
+        }
+        // a line is part of the result if it matches, or if a match is at most linesBefore lines after it or at most
+        // linesAfter lines before it
+        BitSet inResult = (BitSet) matched.clone();
+        for (int k = 0, match = matched.nextSetBit(0); k < lines.size() && match >= 0; k++) {
+            while (match >= 0 && match < k) {
+                match = matched.nextSetBit(match + 1);
+            }
+            if (match >= 0 && numbers[match] - numbers[k] <= linesBefore) {
+                inResult.set(k);
+            }
+        }
+        for (int k = 0, match = -1; k < lines.size(); k++) {
+            if (matched.get(k)) {
+                match = k;
+            } else if (match >= 0 && numbers[k] - numbers[match] <= linesAfter) {
+                inResult.set(k);
+            }
+        }
+
+        Scan scan = new Scan();
+        // the number of the next line the scan hasn't seen
+        long next = 0;
+        for (int k = inResult.nextSetBit(0); k >= 0 && !scan.done; k = inResult.nextSetBit(k + 1)) {
+            if (numbers[k] > next) {
+                scan.skip((int) (numbers[k] - next));
+            }
+            scan.accept(lines.get(k));
+            next = numbers[k] + 1;
+        }
+        if (numLines > next) {
+            scan.skip((int) (numLines - next));
+        }
+        return scan.getResult();
+    }
+
+    /**
+     * The pool the chunks of the logs are matched on. The chunks it has no room for are matched on the calling
+     * thread, which only waits for the chunks and never runs on the pool itself.
+     */
+    private static synchronized ExecutorService parallelScanExecutor() {
+        if (parallelScanExecutor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                    PARALLEL_SCAN_THREADS,
+                    PARALLEL_SCAN_THREADS,
+                    60,
+                    TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(PARALLEL_SCAN_THREADS * 16),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "BUILD_LOG_REGEX parallel scan"),
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            pool.allowCoreThreadTimeOut(true);
+            parallelScanExecutor = pool;
+        }
+        return parallelScanExecutor;
+    }
+
+    /**
+     * Keeps the lines of a chunk of the log that may be part of the result, see
+     * {@link #getParallelContent(LogChunks)}.
+     */
+    private class ChunkScan implements LogScanner.Consumer {
+        private final int index;
+        private final AtomicInteger firstDone;
+        private final PatternSet patterns = new PatternSet(getRegexes());
+
+        // the lines kept, with their number in the chunk, and which of them match
+        private final List<String> lines = new ArrayList<>();
+        private long[] numbers = new long[16];
+        private final BitSet matched = new BitSet();
+        private long numLines = 0;
+
+        private int numMatches = 0;
+        private int numLinesStillNeeded = 0;
+        // the last lines not kept, which may turn out to be lines before a match, copied as the lines of the log are
+        // reused, and the copies no longer needed, to be reused too
+        private final Queue<StringBuilder> linesBeforeList = new ArrayDeque<>();
+        private final Deque<StringBuilder> spareLines = new ArrayDeque<>();
+        // set once the scan is known to be done within the chunk, the rest of the lines are only counted
+        private boolean done = false;
+
+        ChunkScan(int index, AtomicInteger firstDone) {
+            this.index = index;
+            this.firstDone = firstDone;
+        }
+
+        @Override
+        public boolean accept(LogScanner.Line logLine) {
+            if (done || firstDone.get() < index) {
+                // the lines are no longer needed, or only to count them
+                ++numLines;
+                return showTruncatedLines;
+            }
+            // Remove console notes (JENKINS-7402)
+            final CharSequence line = logLine.getChars();
+            final long number = numLines++;
+            if (patterns.find(line) >= 0) {
+                long before = number - linesBeforeList.size();
+                while (!linesBeforeList.isEmpty()) {
+                    StringBuilder lineBefore = linesBeforeList.remove();
+                    keep(before++, lineBefore.toString(), false);
+                    spareLines.push(lineBefore);
+                }
+                keep(number, line.toString(), true);
+                ++numMatches;
+                numLinesStillNeeded = linesAfter;
+            } else if (numLinesStillNeeded > 0) {
+                keep(number, line.toString(), false);
+                --numLinesStillNeeded;
+            } else if (number < linesAfter) {
+                // may be a line after a match of the chunks before
+                keep(number, line.toString(), false);
+            } else if (linesBefore > 0) {
+                if (linesBeforeList.size() == linesBefore) {
+                    spareLines.push(linesBeforeList.remove());
+                }
+                StringBuilder copy = spareLines.isEmpty() ? new StringBuilder() : spareLines.pop();
+                copy.setLength(0);
+                linesBeforeList.offer(copy.append(line));
+            }
+            // the scan is done here at the latest, as it has counted at least as many matches by now, and needs no
+            // more lines after the last of them
+            if (maxMatches != 0 && numMatches >= maxMatches && numLinesStillNeeded == 0) {
+                done = true;
+                firstDone.accumulateAndGet(index, Math::min);
+                linesBeforeList.clear();
+                return showTruncatedLines;
+            }
+            return true;
+        }
+
+        private void keep(long number, String line, boolean isMatch) {
+            if (lines.size() == numbers.length) {
+                numbers = Arrays.copyOf(numbers, numbers.length * 2);
+            }
+            numbers[lines.size()] = number;
+            matched.set(lines.size(), isMatch);
+            lines.add(line);
+        }
+
+        /**
+         * Keeps the last lines of the chunk, which may be lines before a match of the chunks after.
+         */
+        void end() {
+            long before = numLines - linesBeforeList.size();
+            while (!linesBeforeList.isEmpty()) {
+                keep(before++, linesBeforeList.remove().toString(), false);
+            }
+        }
+
+        @Override
+        public String getResult() {
+            // the lines kept are put together with the ones of the other chunks
+            return null;
+        }
+    }
+
+    /**
+     * Collects the matching lines, with their context, as the lines of the log come in.
+     */
+    private class Scan implements LogScanner.Consumer {
+        private final boolean asHtml = matchedLineHtmlStyle != null;
+        private final boolean escapeHtml = asHtml || BuildLogRegexMacro.this.escapeHtml;
+
+        private final PatternSet patterns = new PatternSet(getRegexes());
+        private List<String> matchResults = new ArrayList<>();
+        private final Stack<Pair<Integer, Integer>> preRanges = new Stack<>();
+        private int numLinesTruncated = 0;
+        private int numMatches = 0;
+        private int numLinesStillNeeded = 0;
+        private Integer preStartLoc = -1;
+        // the lines that may turn out to be lines before a match, copied as the lines of the log are reused, and the
+        // copies no longer needed, to be reused too
+        private final Queue<StringBuilder> linesBeforeList = new ArrayDeque<>();
+        private final Deque<StringBuilder> spareLines = new ArrayDeque<>();
+        // set once enough matches were found, the rest of the lines are only counted
+        private boolean done = false;
+
+        @Override
+        public boolean accept(LogScanner.Line logLine) {
+            if (done) {
+                // Include the rest of the lines that haven't been read in.
+                ++numLinesTruncated;
+                return true;
+            }
+            // Remove console notes (JENKINS-7402)
+            return accept(logLine.getChars());
+        }
+
+        /**
+         * Skips lines that are known not to be part of the result, i.e. they don't match, and they are neither right
+         * before nor right after a matching line. They and the lines waiting to be lines before are truncated.
+         */
+        void skip(int numLines) {
+            numLinesTruncated += linesBeforeList.size() + numLines;
+            while (!linesBeforeList.isEmpty()) {
+                spareLines.push(linesBeforeList.remove());
+            }
+        }
+
+        boolean accept(CharSequence line) {
 
             // Remove any lines before that are no longer needed.
             while (linesBeforeList.size() > linesBefore) {
-                linesBeforeList.remove();
+                spareLines.push(linesBeforeList.remove());
                 ++numLinesTruncated;
             }
-            final Matcher matcher = pattern.matcher(line);
-            final StringBuffer sb = new StringBuffer();
+            // the first expression matching the line, most lines are ruled out without running any matcher
+            final int index = patterns.find(line);
+            final Matcher matcher = index >= 0 ? patterns.get(index).matcher(line) : null;
+            final StringBuffer sb = matcher != null && substText != null ? new StringBuffer() : null;
             boolean matched = false;
-            while (matcher.find()) {
+            while (matcher != null && matcher.find()) {
                 matched = true;
                 if (substText != null) {
                     matcher.appendReplacement(sb, substText);
@@ -222,14 +728,22 @@ public class BuildLogRegexMacro extends DataBoundTokenMacro {
                     preStartLoc = startPre(matchResults, preStartLoc);
                 }
                 while (!linesBeforeList.isEmpty()) {
-                    appendContextLine(matchResults, linesBeforeList.remove(), escapeHtml);
+                    StringBuilder lineBefore = linesBeforeList.remove();
+                    appendContextLine(matchResults, lineBefore.toString(), escapeHtml);
+                    spareLines.push(lineBefore);
                 }
                 // Append the (possibly transformed) current line.
                 if (substText != null) {
                     matcher.appendTail(sb);
                     line = sb.toString();
                 }
-                appendMatchedLine(matchResults, line, escapeHtml, matchedLineHtmlStyle, addNewline);
+                appendMatchedLine(
+                        matchResults,
+                        line.toString(),
+                        escapeHtml,
+                        getStyle(index),
+                        getLabel(index),
+                        addNewline);
                 ++numMatches;
                 // Set up to add numLinesStillNeeded
                 numLinesStillNeeded = linesAfter;
@@ -237,87 +751,90 @@ public class BuildLogRegexMacro extends DataBoundTokenMacro {
                 // The current line did not match.
                 if (numLinesStillNeeded > 0) {
                     // Append this line as a line after.
-                    appendContextLine(matchResults, line, escapeHtml);
+                    appendContextLine(matchResults, line.toString(), escapeHtml);
                     --numLinesStillNeeded;
                 } else {
                     // Store this line as a possible line before.
-                    linesBeforeList.offer(line);
+                    StringBuilder copy = spareLines.isEmpty() ? new StringBuilder() : spareLines.pop();
+                    copy.setLength(0);
+                    linesBeforeList.offer(copy.append(line));
                 }
             }
             if (maxMatches != 0 && numMatches >= maxMatches && numLinesStillNeeded == 0) {
-                break;
+                done = true;
+                // the rest of the lines are only needed to count them
+                return showTruncatedLines;
             }
+            return true;
         }
-        if (showTruncatedLines == true) {
-            // Count the rest of the lines.
-            // Include any lines in linesBefore.
-            while (linesBeforeList.size() > 0) {
-                linesBeforeList.remove();
-                ++numLinesTruncated;
-            }
-            if (line != null) {
-                // Include the rest of the lines that haven't been read in.
-                while ((line = reader.readLine()) != null) {
+
+        @Override
+        public String getResult() {
+            if (showTruncatedLines == true) {
+                // Count the rest of the lines.
+                // Include any lines in linesBefore.
+                while (linesBeforeList.size() > 0) {
+                    linesBeforeList.remove();
                     ++numLinesTruncated;
                 }
+                if (numLinesTruncated > 0) {
+                    preStartLoc = stopPre(matchResults, preStartLoc, preRanges);
+                    appendLinesTruncated(matchResults, numLinesTruncated, asHtml);
+                }
             }
-            if (numLinesTruncated > 0) {
-                preStartLoc = stopPre(matchResults, preStartLoc, preRanges);
-                appendLinesTruncated(matchResults, numLinesTruncated, asHtml);
+            preStartLoc = stopPre(matchResults, preStartLoc, preRanges);
+            if (matchResults.size() == 0) {
+                return defaultValue;
             }
-        }
-        preStartLoc = stopPre(matchResults, preStartLoc, preRanges);
-        if (matchResults.size() == 0) {
-            return defaultValue;
-        }
-        if (maxTailMatches > 0 && matchResults.size() > maxTailMatches) {
-            int tailStartLocation;
-            if (asHtml) {
-                // Here, we need to account for the existence of any <pre> tags while determining the tail.
-                // The fundamental assumption here is that between the pre blocks, there are only truncated lines.
-                tailStartLocation = matchResults.size() - 1;
-                int resultsNeeded = maxTailMatches;
-                while (!preRanges.empty()) {
-                    Pair<Integer, Integer> range = preRanges.pop();
-                    int preStart = range.getKey();
-                    int preEnd = range.getValue();
-                    int resultsInPreBlock = preEnd - preStart - 1;
-                    if (resultsNeeded > resultsInPreBlock) {
-                        resultsNeeded -= resultsInPreBlock;
-                        tailStartLocation = preStart;
-                    } else {
-                        tailStartLocation = preEnd - resultsNeeded;
-                        // If we stopped short of the <pre> start tag, then insert one into the range.
-                        if (preStart != tailStartLocation) {
-                            matchResults.add(tailStartLocation, "<pre>\n");
-                        }
-                        resultsNeeded = 0;
-                        break;
-                    }
-                }
-                // This means we went past all blocks and haven't found enough results.
-                if (resultsNeeded != 0) {
-                    tailStartLocation = 0;
-                }
-            } else {
-                if (showTruncatedLines) {
+            if (maxTailMatches > 0 && matchResults.size() > maxTailMatches) {
+                int tailStartLocation;
+                if (asHtml) {
+                    // Here, we need to account for the existence of any <pre> tags while determining the tail.
+                    // The fundamental assumption here is that between the pre blocks, there are only truncated lines.
+                    tailStartLocation = matchResults.size() - 1;
                     int resultsNeeded = maxTailMatches;
-                    for (tailStartLocation = matchResults.size(); resultsNeeded > 0 && tailStartLocation > 0; ) {
-                        --tailStartLocation;
-                        if (!matchResults.get(tailStartLocation).contains("...truncated ")) --resultsNeeded;
+                    while (!preRanges.empty()) {
+                        Pair<Integer, Integer> range = preRanges.pop();
+                        int preStart = range.getKey();
+                        int preEnd = range.getValue();
+                        int resultsInPreBlock = preEnd - preStart - 1;
+                        if (resultsNeeded > resultsInPreBlock) {
+                            resultsNeeded -= resultsInPreBlock;
+                            tailStartLocation = preStart;
+                        } else {
+                            tailStartLocation = preEnd - resultsNeeded;
+                            // If we stopped short of the <pre> start tag, then insert one into the range.
+                            if (preStart != tailStartLocation) {
+                                matchResults.add(tailStartLocation, "<pre>\n");
+                            }
+                            resultsNeeded = 0;
+                            break;
+                        }
                     }
-                    // This means we went past all lines and haven't found enough results.
+                    // This means we went past all blocks and haven't found enough results.
                     if (resultsNeeded != 0) {
                         tailStartLocation = 0;
                     }
                 } else {
-                    // This is the simplest case, with no extraneous lines in the results.
-                    tailStartLocation = matchResults.size() - maxTailMatches;
+                    if (showTruncatedLines) {
+                        int resultsNeeded = maxTailMatches;
+                        for (tailStartLocation = matchResults.size(); resultsNeeded > 0 && tailStartLocation > 0; ) {
+                            --tailStartLocation;
+                            if (!matchResults.get(tailStartLocation).contains("...truncated ")) --resultsNeeded;
+                        }
+                        // This means we went past all lines and haven't found enough results.
+                        if (resultsNeeded != 0) {
+                            tailStartLocation = 0;
+                        }
+                    } else {
+                        // This is the simplest case, with no extraneous lines in the results.
+                        tailStartLocation = matchResults.size() - maxTailMatches;
+                    }
                 }
+                matchResults = matchResults.subList(tailStartLocation, matchResults.size());
             }
-            matchResults = matchResults.subList(tailStartLocation, matchResults.size());
+            return String.join("", matchResults);
         }
-        return String.join("", matchResults);
     }
 
     // Poor man's substitution of the Apache Common's Pair.
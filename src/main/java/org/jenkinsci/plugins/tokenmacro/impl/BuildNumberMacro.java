@@ -53,6 +53,11 @@ public class BuildNumberMacro extends TokenMacro {
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String evaluate(
             AbstractBuild<?, ?> context,
@@ -54,6 +54,11 @@ public class BuildUrlMacro extends TokenMacro {
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String evaluate(
             AbstractBuild<?, ?> context,
@@ -28,6 +28,11 @@ public class BuildUserMacro extends TokenMacro {
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String evaluate(
             AbstractBuild<?, ?> context,
@@ -79,6 +79,16 @@ public class ChangesSinceLastBuildMacro extends DataBoundTokenMacro {
         return macroNames;
     }
 
+    @Override
+    public boolean supportsConcurrentEvaluation() {
+        return true;
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
@@ -89,6 +99,7 @@ public class ChangesSinceLastBuildMacro extends DataBoundTokenMacro {
     public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
 
+        String format = this.format;
         if (StringUtils.isEmpty(format)) {
             format = showPaths ? FORMAT_DEFAULT_VALUE_WITH_PATHS : FORMAT_DEFAULT_VALUE;
         }
@@ -102,6 +113,7 @@ public class ChangesSinceLastBuildMacro extends DataBoundTokenMacro {
 
         format = TokenMacro.expandAll(run, workspace, listener, format);
 
+        String pathFormat = this.pathFormat;
         if (StringUtils.isNotEmpty(pathFormat)) {
             pathFormat = TokenMacro.expandAll(run, workspace, listener, pathFormat);
         }
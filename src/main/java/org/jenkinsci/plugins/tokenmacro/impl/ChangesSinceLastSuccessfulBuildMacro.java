@@ -24,6 +24,16 @@ public class ChangesSinceLastSuccessfulBuildMacro extends AbstractChangesSinceMa
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean supportsConcurrentEvaluation() {
+        return true;
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String getDefaultFormatValue() {
         return FORMAT_DEFAULT_VALUE;
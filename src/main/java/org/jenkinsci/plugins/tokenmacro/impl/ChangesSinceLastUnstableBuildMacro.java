@@ -25,6 +25,16 @@ public class ChangesSinceLastUnstableBuildMacro extends AbstractChangesSinceMacr
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean supportsConcurrentEvaluation() {
+        return true;
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String getDefaultFormatValue() {
         return FORMAT_DEFAULT_VALUE;
@@ -15,6 +15,7 @@ import jenkins.model.Jenkins;
 import org.apache.commons.lang3.StringUtils;
 import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.MacroParameters;
 import org.jenkinsci.plugins.workflow.flow.FlowExecution;
 import org.jenkinsci.plugins.workflow.job.WorkflowRun;
 import org.jenkinsci.plugins.workflow.steps.StepContext;
@@ -39,6 +40,11 @@ public class EnvironmentVariableMacro extends DataBoundTokenMacro {
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
@@ -52,7 +58,7 @@ public class EnvironmentVariableMacro extends DataBoundTokenMacro {
      * @returns The environment variable value or empty string on error
      */
     @SuppressFBWarnings("REC_CATCH_EXCEPTION")
-    private String getEnvVarFromWorkflowRun(Run<?, ?> run) {
+    private static String getEnvVarFromWorkflowRun(Run<?, ?> run, String var) {
         try {
             WorkflowRun workflowRun = (WorkflowRun) run;
 
@@ -73,13 +79,24 @@ public class EnvironmentVariableMacro extends DataBoundTokenMacro {
         return "";
     }
 
+    @Override
+    public String evaluate(
+            Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName, MacroParameters parameters)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        return evaluate(run, listener, parameters.getString("var"), parameters.getString("default"));
+    }
+
     @Override
     public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
+        return evaluate(run, listener, var, def);
+    }
 
+    private static String evaluate(Run<?, ?> run, TaskListener listener, String var, String def)
+            throws IOException, InterruptedException {
         String res = "";
         if (Jenkins.get().getPlugin("workflow-job") != null) {
-            res = getEnvVarFromWorkflowRun(run);
+            res = getEnvVarFromWorkflowRun(run, var);
         }
 
         if (StringUtils.isBlank(res)) {
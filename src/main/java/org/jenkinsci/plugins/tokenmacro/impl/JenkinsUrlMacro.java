@@ -32,6 +32,11 @@ public class JenkinsUrlMacro extends DataBoundTokenMacro {
         return macroNames;
     }
 
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
@@ -10,6 +10,7 @@ import java.util.Collections;
 import java.util.List;
 import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.MacroParameters;
 
 @Extension
 public class JobDescriptionMacro extends DataBoundTokenMacro {
@@ -29,15 +30,31 @@ public class JobDescriptionMacro extends DataBoundTokenMacro {
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
         return evaluate(build, null, listener, macroName);
     }
 
+    @Override
+    public String evaluate(
+            Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName, MacroParameters parameters)
+            throws MacroEvaluationException, IOException, InterruptedException {
+        return getDescription(run, parameters.getBoolean("removeNewlines"));
+    }
+
     @Override
     public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
+        return getDescription(run, removeNewlines);
+    }
+
+    private static String getDescription(Run<?, ?> run, boolean removeNewlines) {
         String val = run.getParent().getDescription();
         if (val != null) {
             if (removeNewlines) {
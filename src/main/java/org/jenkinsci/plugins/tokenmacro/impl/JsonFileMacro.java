@@ -51,12 +51,20 @@ public class JsonFileMacro extends WorkspaceDependentMacro {
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean supportsConcurrentEvaluation() {
+        return true;
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public Callable<String, IOException> getCallable(Run<?, ?> run, String root, TaskListener listener) {
         // jsonPath takes precedence
-        if (path != null && expr != null) {
-            path = null;
-        }
+        String path = expr != null ? null : this.path;
         return new ReadJSON(root, file, path, expr, run.getCharset());
     }
 
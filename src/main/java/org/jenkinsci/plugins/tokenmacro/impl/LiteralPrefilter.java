@@ -0,0 +1,528 @@
+package org.jenkinsci.plugins.tokenmacro.impl;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Tells apart the text that can't possibly match a regular expression, because it doesn't contain any of the literal
+ * strings each match of the expression contains. Looking for a few literals is much cheaper than running the
+ * {@link java.util.regex.Matcher}, and most lines of a log don't match the expressions the log macros are given.
+ *
+ * <p>
+ * The literals are found by going through the expression: a run of plain characters must be part of the match, an
+ * alternation needs one of the literals of each of its branches, and anything optional or not understood requires
+ * nothing. When no literal is required, e.g. for {@code \d+}, all text might match.
+ */
+final class LiteralPrefilter {
+
+    /**
+     * Beyond that many literals, looking for them isn't worth it.
+     */
+    private static final int MAX_LITERALS = 64;
+
+    private static final LiteralPrefilter NONE = new LiteralPrefilter(null, false);
+
+    /**
+     * Null if all text might match, folded to lower case if {@link #ignoreCase}.
+     */
+    private final String[] literals;
+
+    private final boolean ignoreCase;
+    private final int minLength;
+    /**
+     * The first two characters of the literals, as bits indexed by {@link #pair(char, char)}, so that most positions
+     * in the text are ruled out by a single lookup. A literal of a single character sets the bits of its character
+     * followed by any other.
+     */
+    private final long[] prefixes = new long[1024];
+
+    private LiteralPrefilter(Set<String> literals, boolean ignoreCase) {
+        this.ignoreCase = ignoreCase;
+        if (literals == null) {
+            this.literals = null;
+            this.minLength = 0;
+            return;
+        }
+        Set<String> folded = new LinkedHashSet<>();
+        int min = Integer.MAX_VALUE;
+        for (String literal : literals) {
+            if (ignoreCase) {
+                StringBuilder sb = new StringBuilder(literal.length());
+                for (int i = 0; i < literal.length(); i++) {
+                    sb.append(fold(literal.charAt(i)));
+                }
+                literal = sb.toString();
+            }
+            if (literal.length() == 1) {
+                for (char c = 0; c < 256; c++) {
+                    setPrefix(pair(literal.charAt(0), c));
+                }
+            } else {
+                setPrefix(pair(literal.charAt(0), literal.charAt(1)));
+            }
+            folded.add(literal);
+            min = Math.min(min, literal.length());
+        }
+        this.literals = folded.toArray(new String[0]);
+        this.minLength = min;
+    }
+
+    private static int pair(char first, char second) {
+        return (first & 0xff) << 8 | (second & 0xff);
+    }
+
+    private void setPrefix(int pair) {
+        prefixes[pair >>> 6] |= 1L << pair;
+    }
+
+    /**
+     * Analyzes the expression, which is meant to be compiled without flags, i.e. with
+     * {@link Pattern#compile(String)}. Never fails: an expression that isn't understood gets a prefilter letting
+     * everything through.
+     */
+    static LiteralPrefilter of(String regex) {
+        try {
+            Analyzer analyzer = new Analyzer(regex);
+            Set<String> required = analyzer.alternation();
+            if (analyzer.pos != regex.length()) {
+                return NONE;
+            }
+            return create(required, analyzer.ignoreCase);
+        } catch (UnsupportedOperationException | IndexOutOfBoundsException e) {
+            return NONE;
+        }
+    }
+
+    private static LiteralPrefilter create(Set<String> literals, boolean ignoreCase) {
+        if (literals == null || literals.size() > MAX_LITERALS) {
+            return NONE;
+        }
+        return new LiteralPrefilter(literals, ignoreCase);
+    }
+
+    /**
+     * Whether all text might match, i.e. {@link #mightMatch(CharSequence)} is always true.
+     */
+    boolean isEmpty() {
+        return literals == null;
+    }
+
+    /**
+     * The literals one of which each match contains, folded to lower case if {@link #isIgnoreCase()}, null if there
+     * are none.
+     */
+    String[] getLiterals() {
+        return literals;
+    }
+
+    boolean isIgnoreCase() {
+        return ignoreCase;
+    }
+
+    /**
+     * Whether the expression might find a match in the text. If not, running the matcher on it is pointless.
+     */
+    boolean mightMatch(CharSequence text) {
+        if (literals == null) {
+            return true;
+        }
+        int length = text.length();
+        char first = length > 0 ? key(text.charAt(0)) : 0;
+        for (int i = 0, end = length - minLength; i <= end; i++) {
+            char second = i + 1 < length ? key(text.charAt(i + 1)) : 0;
+            int pair = pair(first, second);
+            if ((prefixes[pair >>> 6] & (1L << pair)) != 0) {
+                for (String literal : literals) {
+                    if (startsWith(text, i, literal)) {
+                        return true;
+                    }
+                }
+            }
+            first = second;
+        }
+        return false;
+    }
+
+    private boolean startsWith(CharSequence text, int offset, String literal) {
+        if (text.length() - offset < literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (key(text.charAt(offset + i)) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private char key(char c) {
+        return ignoreCase ? fold(c) : c;
+    }
+
+    /**
+     * Folds the case the way {@link Pattern#CASE_INSENSITIVE} does without {@link Pattern#UNICODE_CASE}, for US-ASCII
+     * letters only.
+     */
+    static char fold(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * A recursive descent through the expression, following the syntax of {@link Pattern}. Each method returns the
+     * literals one of which the text matched by what it went through contains, or null if there are none. Constructs
+     * that aren't handled throw {@link UnsupportedOperationException}.
+     */
+    private static final class Analyzer {
+        private final String regex;
+        private int pos;
+        /**
+         * Set as soon as any part of the expression is case insensitive, so all of it is looked for ignoring case.
+         */
+        private boolean ignoreCase;
+
+        Analyzer(String regex) {
+            this.regex = regex;
+        }
+
+        /**
+         * Branches separated by {@code |}, up to the end of the expression or of the enclosing group.
+         */
+        Set<String> alternation() {
+            Set<String> result = concatenation();
+            boolean any = result == null;
+            while (pos < regex.length() && regex.charAt(pos) == '|') {
+                pos++;
+                Set<String> branch = concatenation();
+                if (branch == null) {
+                    any = true;
+                } else if (!any) {
+                    result.addAll(branch);
+                }
+            }
+            return any ? null : result;
+        }
+
+        Set<String> concatenation() {
+            Set<String> best = null;
+            StringBuilder run = new StringBuilder();
+            while (pos < regex.length() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')') {
+                char c = regex.charAt(pos);
+                // the literal text of the atom, null if it isn't a literal
+                String literal = null;
+                Set<String> required = null;
+                boolean canRepeat = true;
+                switch (c) {
+                    case '\\':
+                        literal = escape();
+                        if (literal != null && literal.length() > 1) {
+                            // a quantifier after \Q...\E only applies to its last character
+                            run.append(literal, 0, literal.length() - 1);
+                            literal = literal.substring(literal.length() - 1);
+                        } else if (literal != null && literal.isEmpty()) {
+                            continue;
+                        }
+                        break;
+                    case '[':
+                        skipCharacterClass();
+                        break;
+                    case '(':
+                        pos++;
+                        if (startsFlagsOnly()) {
+                            canRepeat = false;
+                        } else {
+                            required = group();
+                        }
+                        break;
+                    case '.':
+                    case '^':
+                    case '$':
+                        pos++;
+                        break;
+                    case '*':
+                    case '+':
+                    case '?':
+                    case '{':
+                        throw new UnsupportedOperationException("dangling quantifier");
+                    default:
+                        int length = Character.charCount(regex.codePointAt(pos));
+                        literal = regex.substring(pos, pos + length);
+                        pos += length;
+                }
+                int min = canRepeat ? quantifier() : -1;
+                if (literal != null && min == -1) {
+                    run.append(literal);
+                    continue;
+                }
+                // the run of literal characters ends here
+                best = better(best, run.length() > 0 ? newSet(run.toString()) : null);
+                run.setLength(0);
+                if (literal != null) {
+                    required = min >= 1 ? newSet(literal) : null;
+                } else if (min == 0) {
+                    required = null;
+                }
+                best = better(best, required);
+            }
+            return better(best, run.length() > 0 ? newSet(run.toString()) : null);
+        }
+
+        /**
+         * The literals any match must contain one of: the longest ones, so that they are less likely to be found
+         * by chance, or the fewer ones.
+         */
+        private static Set<String> better(Set<String> a, Set<String> b) {
+            if (a == null) {
+                return b;
+            }
+            if (b == null) {
+                return a;
+            }
+            int minA = minLength(a);
+            int minB = minLength(b);
+            if (minA != minB) {
+                return minA > minB ? a : b;
+            }
+            return a.size() <= b.size() ? a : b;
+        }
+
+        private static int minLength(Set<String> literals) {
+            int min = Integer.MAX_VALUE;
+            for (String literal : literals) {
+                min = Math.min(min, literal.length());
+            }
+            return min;
+        }
+
+        private static Set<String> newSet(String literal) {
+            Set<String> set = new HashSet<>();
+            set.add(literal);
+            return set;
+        }
+
+        /**
+         * @return the literal text the escape stands for, null if it isn't a literal
+         */
+        private String escape() {
+            char e = regex.charAt(pos + 1);
+            pos += 2;
+            if (e == 'Q') {
+                int end = regex.indexOf("\\E", pos);
+                String quoted = regex.substring(pos, end < 0 ? regex.length() : end);
+                pos = end < 0 ? regex.length() : end + 2;
+                return quoted;
+            }
+            if (!Character.isLetterOrDigit(e)) {
+                if (Character.isSurrogate(e)) {
+                    throw new UnsupportedOperationException("escaped surrogate");
+                }
+                return String.valueOf(e);
+            }
+            switch (e) {
+                case 't':
+                    return "\t";
+                case 'n':
+                    return "\n";
+                case 'r':
+                    return "\r";
+                case 'f':
+                    return "\f";
+                case 'a':
+                    return "\u0007";
+                case 'e':
+                    return "\u001B";
+                case 'b':
+                    if (pos < regex.length() && regex.charAt(pos) == '{') {
+                        // \b{g}
+                        skipPast('}');
+                    }
+                    return null;
+                case 'p':
+                case 'P':
+                    if (regex.charAt(pos) == '{') {
+                        skipPast('}');
+                    } else {
+                        pos++;
+                    }
+                    return null;
+                case 'd':
+                case 'D':
+                case 'w':
+                case 'W':
+                case 's':
+                case 'S':
+                case 'h':
+                case 'H':
+                case 'v':
+                case 'V':
+                case 'R':
+                case 'X':
+                case 'B':
+                case 'A':
+                case 'z':
+                case 'Z':
+                case 'G':
+                    return null;
+                default:
+                    // code points, back references etc.
+                    throw new UnsupportedOperationException("\\" + e);
+            }
+        }
+
+        private void skipPast(char c) {
+            int end = regex.indexOf(c, pos);
+            if (end < 0) {
+                throw new UnsupportedOperationException("unterminated");
+            }
+            pos = end + 1;
+        }
+
+        private void skipCharacterClass() {
+            pos++;
+            if (regex.charAt(pos) == '^') {
+                pos++;
+            }
+            if (regex.charAt(pos) == ']') {
+                // a ']' right at the start is a literal
+                pos++;
+            }
+            int depth = 1;
+            while (depth > 0) {
+                char c = regex.charAt(pos++);
+                if (c == '\\') {
+                    if (regex.charAt(pos) == 'Q') {
+                        throw new UnsupportedOperationException("quote in character class");
+                    }
+                    pos++;
+                } else if (c == '[') {
+                    depth++;
+                } else if (c == ']') {
+                    depth--;
+                }
+            }
+        }
+
+        /**
+         * Handles {@code (?flags)}, which only sets flags, positioned right after the opening parenthesis.
+         *
+         * @return whether it was one, and went past it
+         */
+        private boolean startsFlagsOnly() {
+            if (regex.charAt(pos) != '?') {
+                return false;
+            }
+            int end = pos + 1;
+            while (Character.isLetter(regex.charAt(end)) || regex.charAt(end) == '-') {
+                end++;
+            }
+            if (end == pos + 1 || regex.charAt(end) != ')') {
+                return false;
+            }
+            flags(regex.substring(pos + 1, end));
+            pos = end + 1;
+            return true;
+        }
+
+        /**
+         * A group, positioned right after its opening parenthesis.
+         */
+        private Set<String> group() {
+            boolean lookaround = false;
+            if (regex.charAt(pos) == '?') {
+                pos++;
+                char c = regex.charAt(pos);
+                if (c == ':' || c == '>') {
+                    pos++;
+                } else if (c == '=' || c == '!') {
+                    lookaround = true;
+                    pos++;
+                } else if (c == '<') {
+                    char next = regex.charAt(pos + 1);
+                    if (next == '=' || next == '!') {
+                        lookaround = true;
+                        pos += 2;
+                    } else {
+                        // a named group
+                        skipPast('>');
+                    }
+                } else {
+                    int end = pos;
+                    while (Character.isLetter(regex.charAt(end)) || regex.charAt(end) == '-') {
+                        end++;
+                    }
+                    if (regex.charAt(end) != ':') {
+                        throw new UnsupportedOperationException("group");
+                    }
+                    flags(regex.substring(pos, end));
+                    pos = end + 1;
+                }
+            }
+            Set<String> required = alternation();
+            if (regex.charAt(pos) != ')') {
+                throw new UnsupportedOperationException("unterminated group");
+            }
+            pos++;
+            return lookaround ? null : required;
+        }
+
+        private void flags(String flags) {
+            int off = flags.indexOf('-');
+            String on = off < 0 ? flags : flags.substring(0, off);
+            for (int i = 0; i < on.length(); i++) {
+                switch (on.charAt(i)) {
+                    case 'i':
+                        ignoreCase = true;
+                        break;
+                    case 'd':
+                    case 'm':
+                    case 's':
+                        break;
+                    default:
+                        // comments, Unicode case folding etc.
+                        throw new UnsupportedOperationException("flag " + on.charAt(i));
+                }
+            }
+        }
+
+        /**
+         * @return the minimum number of repetitions of the quantifier at the current position, -1 if there is none
+         */
+        private int quantifier() {
+            if (pos >= regex.length()) {
+                return -1;
+            }
+            int min;
+            switch (regex.charAt(pos)) {
+                case '?':
+                case '*':
+                    min = 0;
+                    pos++;
+                    break;
+                case '+':
+                    min = 1;
+                    pos++;
+                    break;
+                case '{':
+                    int end = pos + 1;
+                    while (Character.isDigit(regex.charAt(end))) {
+                        end++;
+                    }
+                    // only whether it is zero matters
+                    min = regex.substring(pos + 1, end).matches("0+") ? 0 : 1;
+                    if (end == pos + 1) {
+                        throw new UnsupportedOperationException("repetition");
+                    }
+                    skipPast('}');
+                    break;
+                default:
+                    return -1;
+            }
+            if (pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')) {
+                // reluctant or possessive
+                pos++;
+            }
+            return min;
+        }
+    }
+}
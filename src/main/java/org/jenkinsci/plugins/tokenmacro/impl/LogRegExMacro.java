@@ -5,14 +5,15 @@ import hudson.FilePath;
 import hudson.model.AbstractBuild;
 import hudson.model.Run;
 import hudson.model.TaskListener;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.jenkinsci.plugins.tokenmacro.DataBoundTokenMacro;
+import org.jenkinsci.plugins.tokenmacro.LogScanner;
 import org.jenkinsci.plugins.tokenmacro.MacroEvaluationException;
+import org.jenkinsci.plugins.tokenmacro.MappedLogCharSequence;
 
 /**
  * Uses a regular expression to find a single log entry and generates
@@ -41,6 +42,21 @@ public final class LogRegExMacro extends DataBoundTokenMacro {
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean supportsConcurrentEvaluation() {
+        return true;
+    }
+
+    @Override
+    public boolean isStableOnceCompleted() {
+        return true;
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
@@ -50,29 +66,116 @@ public final class LogRegExMacro extends DataBoundTokenMacro {
     @Override
     public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
-        return readLogFile(run);
-    }
-
-    private String readLogFile(Run<?, ?> run) throws IOException {
         if (regex == null) {
             return "";
         }
+        MappedLogCharSequence log = MappedLogCharSequence.open(run, false);
+        if (log != null) {
+            return new Scan().find(log);
+        }
+        return LogScanner.scan(run, new Scan());
+    }
+
+    @Override
+    public LogScanner.Consumer createLogConsumer(Run<?, ?> run, TaskListener listener, String macroName) {
+        return regex != null ? new Scan() : null;
+    }
+
+    /**
+     * Looks for the first line matching {@link #regex}.
+     */
+    private class Scan implements LogScanner.Consumer {
+        private final Pattern pattern = Pattern.compile(regex);
+        private final LiteralPrefilter prefilter = LiteralPrefilter.of(regex);
+        private String result = "";
 
-        // Prepare patterns and encodings
-        String line;
-        Pattern pattern = Pattern.compile(regex);
+        @Override
+        public boolean accept(LogScanner.Line line) {
+            CharSequence text = line.getRawChars();
+            if (!prefilter.mightMatch(text)) {
+                return true;
+            }
+            Matcher matcher = pattern.matcher(text);
+            if (matcher.find()) {
+                // Match only the top-most line
+                result = getTranslatedDescription(matcher);
+                return false;
+            }
+            return true;
+        }
 
-        try (BufferedReader reader = new BufferedReader(run.getLogReader())) {
-            while ((line = reader.readLine()) != null) {
-                Matcher matcher = pattern.matcher(line);
-                if (matcher.find()) {
+        @Override
+        public String getResult() {
+            return result;
+        }
+
+        /**
+         * Looks for the first matching line of a mapped log, splitting it into lines the way {@link LogScanner} does.
+         */
+        String find(MappedLogCharSequence log) {
+            Line line = new Line(log);
+            Matcher matcher = pattern.matcher("");
+            int start = 0;
+            while (log.hasCharAt(start)) {
+                int end = start;
+                char c = 0;
+                while (log.hasCharAt(end) && (c = log.charAt(end)) != '\n' && c != '\r') {
+                    end++;
+                }
+                line.set(start, end);
+                if (prefilter.mightMatch(line) && matcher.reset(line).find()) {
                     // Match only the top-most line
                     return getTranslatedDescription(matcher);
                 }
+                start = end + (c == '\r' && log.hasCharAt(end + 1) && log.charAt(end + 1) == '\n' ? 2 : 1);
             }
+            return "";
+        }
+    }
+
+    /**
+     * A line of a mapped log, moved from one line to the next.
+     */
+    private static final class Line implements CharSequence {
+        private final CharSequence log;
+        private int start;
+        private int end;
+
+        Line(CharSequence log) {
+            this.log = log;
+        }
+
+        void set(int start, int end) {
+            this.start = start;
+            this.end = end;
         }
 
-        return "";
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException("index " + index + ", length " + (end - start));
+            }
+            return log.charAt(start + index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > this.end - this.start || start > end) {
+                throw new IndexOutOfBoundsException(
+                        "start " + start + ", end " + end + ", length " + (this.end - this.start));
+            }
+            return log.subSequence(this.start + start, this.start + end);
+        }
+
+        @Override
+        public String toString() {
+            return log.subSequence(start, end).toString();
+        }
     }
 
     private String getTranslatedDescription(Matcher matcher) {
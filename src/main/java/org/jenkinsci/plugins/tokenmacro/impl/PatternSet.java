@@ -0,0 +1,179 @@
+package org.jenkinsci.plugins.tokenmacro.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Several regular expressions looked for in the same lines, with a single pass over each line whatever their number.
+ *
+ * <p>
+ * The literals each expression requires, see {@link LiteralPrefilter}, all go into one Aho-Corasick automaton, which
+ * finds which of them a line contains in a single pass over it. Only the expressions with one of their literals in the
+ * line, or without any literal, are then run on it.
+ */
+final class PatternSet {
+
+    /**
+     * The expressions found in a line are kept as the bits of a long.
+     */
+    static final int MAX_PATTERNS = 64;
+
+    private static final int ASCII = 128;
+
+    private final Pattern[] patterns;
+    /**
+     * For a single expression, which needs no automaton.
+     */
+    private final LiteralPrefilter prefilter;
+    /**
+     * The expressions that have no literal, and must be run on every line.
+     */
+    private final long always;
+
+    /**
+     * The state the automaton moves to from a state on a US-ASCII character, by state and character.
+     */
+    private final int[][] next;
+    /**
+     * The edges of the trie of the literals for the other characters, by state.
+     */
+    private final List<Map<Character, Integer>> edges;
+    /**
+     * The state for the longest proper suffix of the text of a state that is also in the trie, by state.
+     */
+    private final int[] fail;
+    /**
+     * The expressions whose literals end at a state, by state.
+     */
+    private final long[] found;
+
+    /**
+     * @throws IllegalArgumentException if there are more than {@link #MAX_PATTERNS} expressions, or one is invalid
+     */
+    PatternSet(List<String> regexes) {
+        if (regexes.size() > MAX_PATTERNS) {
+            throw new IllegalArgumentException("At most " + MAX_PATTERNS + " regular expressions can be given");
+        }
+        patterns = new Pattern[regexes.size()];
+        LiteralPrefilter[] prefilters = new LiteralPrefilter[regexes.size()];
+        for (int i = 0; i < patterns.length; i++) {
+            patterns[i] = Pattern.compile(regexes.get(i));
+            prefilters[i] = LiteralPrefilter.of(regexes.get(i));
+        }
+        if (patterns.length == 1) {
+            prefilter = prefilters[0];
+            always = 0;
+            next = null;
+            edges = null;
+            fail = null;
+            found = null;
+            return;
+        }
+        prefilter = null;
+
+        // the trie of the literals, the case folded, as a literal found ignoring case only makes a candidate
+        edges = new ArrayList<>();
+        edges.add(new HashMap<>());
+        List<Long> foundAt = new ArrayList<>();
+        foundAt.add(0L);
+        long noLiterals = 0;
+        for (int i = 0; i < patterns.length; i++) {
+            String[] literals = prefilters[i].getLiterals();
+            if (literals == null) {
+                noLiterals |= 1L << i;
+                continue;
+            }
+            for (String literal : literals) {
+                int state = 0;
+                for (int j = 0; j < literal.length(); j++) {
+                    char c = LiteralPrefilter.fold(literal.charAt(j));
+                    Integer to = edges.get(state).get(c);
+                    if (to == null) {
+                        to = edges.size();
+                        edges.get(state).put(c, to);
+                        edges.add(new HashMap<>());
+                        foundAt.add(0L);
+                    }
+                    state = to;
+                }
+                foundAt.set(state, foundAt.get(state) | 1L << i);
+            }
+        }
+        always = noLiterals;
+
+        // the failure links and the transitions on US-ASCII characters, breadth first so the ones of shorter texts
+        // are known first
+        int states = edges.size();
+        next = new int[states][ASCII];
+        fail = new int[states];
+        found = new long[states];
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            int state = queue.remove();
+            found[state] = foundAt.get(state) | (state == 0 ? 0 : found[fail[state]]);
+            for (char c = 0; c < ASCII; c++) {
+                Integer to = edges.get(state).get(c);
+                next[state][c] = to != null ? to : (state == 0 ? 0 : next[fail[state]][c]);
+            }
+            for (Map.Entry<Character, Integer> e : edges.get(state).entrySet()) {
+                int to = e.getValue();
+                fail[to] = state == 0 ? 0 : step(fail[state], e.getKey());
+                queue.add(to);
+            }
+        }
+    }
+
+    private int step(int state, char c) {
+        if (c < ASCII) {
+            return next[state][c];
+        }
+        while (true) {
+            Integer to = edges.get(state).get(c);
+            if (to != null) {
+                return to;
+            }
+            if (state == 0) {
+                return 0;
+            }
+            state = fail[state];
+        }
+    }
+
+    int size() {
+        return patterns.length;
+    }
+
+    Pattern get(int index) {
+        return patterns[index];
+    }
+
+    /**
+     * Finds the first of the expressions, in the order they were given, that finds a match in the line.
+     *
+     * @return its index, -1 if none of them does
+     */
+    int find(CharSequence line) {
+        if (prefilter != null) {
+            return prefilter.mightMatch(line) && patterns[0].matcher(line).find() ? 0 : -1;
+        }
+        long candidates = always;
+        int state = 0;
+        for (int i = 0, length = line.length(); i < length; i++) {
+            state = step(state, LiteralPrefilter.fold(line.charAt(i)));
+            candidates |= found[state];
+        }
+        for (; candidates != 0; candidates &= candidates - 1) {
+            int index = Long.numberOfTrailingZeros(candidates);
+            if (patterns[index].matcher(line).find()) {
+                return index;
+            }
+        }
+        return -1;
+    }
+}
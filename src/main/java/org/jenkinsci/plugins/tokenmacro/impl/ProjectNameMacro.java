@@ -30,6 +30,11 @@ public class ProjectNameMacro extends DataBoundTokenMacro {
         return macroNames;
     }
 
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
@@ -69,6 +69,16 @@ public class WorkspaceFileMacro extends WorkspaceDependentMacro {
         return Collections.singletonList(MACRO_NAME);
     }
 
+    @Override
+    public boolean supportsConcurrentEvaluation() {
+        return true;
+    }
+
+    @Override
+    public boolean isDeterministic() {
+        return true;
+    }
+
     @Override
     public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName)
             throws MacroEvaluationException, IOException, InterruptedException {
@@ -78,6 +88,7 @@ public class WorkspaceFileMacro extends WorkspaceDependentMacro {
     @Override
     public MasterToSlaveCallable<String, IOException> getCallable(Run<?, ?> run, String root, TaskListener listener) {
         // do some environment variable substitution
+        String path = this.path;
         try {
             EnvVars env = run.getEnvironment(listener);
             path = env.expand(path);
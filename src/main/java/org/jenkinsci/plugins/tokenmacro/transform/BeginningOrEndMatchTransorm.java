@@ -2,10 +2,13 @@ package org.jenkinsci.plugins.tokenmacro.transform;
 
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import org.jenkinsci.plugins.tokenmacro.Transform;
 
 public class BeginningOrEndMatchTransorm extends Transform {
-    private String pattern;
+    private final String regex;
+    private final Pattern pattern;
+    private final boolean lengthOnly;
 
     public BeginningOrEndMatchTransorm(String pattern, boolean beginning) {
         if (beginning && !pattern.startsWith("^")) {
@@ -13,16 +16,47 @@ public class BeginningOrEndMatchTransorm extends Transform {
         } else if (!beginning && !pattern.endsWith("$")) {
             pattern += "$";
         }
+        this.regex = pattern;
+        this.pattern = compile(pattern);
+        this.lengthOnly = false;
+    }
+
+    private BeginningOrEndMatchTransorm(String regex, Pattern pattern, boolean lengthOnly) {
+        this.regex = regex;
         this.pattern = pattern;
+        this.lengthOnly = lengthOnly;
+    }
+
+    private static Pattern compile(String regex) {
+        try {
+            return Pattern.compile(regex);
+        } catch (PatternSyntaxException e) {
+            // reported when the transform is applied, as it always was
+            return null;
+        }
     }
 
     @Override
     public String transform(String input) {
-        Pattern p = Pattern.compile(pattern);
-        Matcher m = p.matcher(input);
+        Matcher m = (pattern != null ? pattern : Pattern.compile(regex)).matcher(input);
+        if (lengthOnly) {
+            int length = input.length();
+            if (m.find()) {
+                length -= m.end() - m.start();
+            }
+            return String.valueOf(length);
+        }
         if (m.find()) {
             input = m.replaceFirst("");
         }
         return input;
     }
+
+    @Override
+    public Transform fuse(Transform next) {
+        if (!lengthOnly && next instanceof ContentLengthTransform) {
+            return new BeginningOrEndMatchTransorm(regex, pattern, true);
+        }
+        return null;
+    }
 }
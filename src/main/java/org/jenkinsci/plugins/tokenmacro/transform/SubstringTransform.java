@@ -9,12 +9,18 @@ import org.jenkinsci.plugins.tokenmacro.Transform;
  */
 public class SubstringTransform extends Transform {
 
-    private int offset;
-    private int length;
+    private final int offset;
+    private final int length;
+    private final boolean lengthOnly;
 
     public SubstringTransform(int offset, int length) {
+        this(offset, length, false);
+    }
+
+    private SubstringTransform(int offset, int length, boolean lengthOnly) {
         this.offset = offset;
         this.length = length;
+        this.lengthOnly = lengthOnly;
     }
 
     @Override
@@ -23,26 +29,43 @@ public class SubstringTransform extends Transform {
             throw new MacroEvaluationException(String.format("Offset given (%d) is larger than the string", offset));
         }
 
-        if (offset < 0) {
-            offset = input.length() + offset;
+        int begin = offset;
+        if (begin < 0) {
+            begin = input.length() + begin;
         }
 
+        int end;
         if (length == Integer.MAX_VALUE) {
-            input = input.substring(offset);
+            end = input.length();
         } else {
+            int length = this.length;
             if (length < 0) {
-                length = input.length() + length - offset;
+                length = input.length() + length - begin;
             }
 
-            if (offset + length > input.length()) {
+            end = begin + length;
+            if (end > input.length()) {
                 throw new MacroEvaluationException(String.format(
-                        "Incorrect offset or length: input length is %d and offset end is %d",
-                        input.length(), offset + length));
+                        "Incorrect offset or length: input length is %d and offset end is %d", input.length(), end));
             }
+        }
 
-            input = input.substring(offset, offset + length);
+        if (lengthOnly) {
+            // same failures as String.substring
+            if (begin < 0 || begin > end) {
+                throw new StringIndexOutOfBoundsException(
+                        "begin " + begin + ", end " + end + ", length " + input.length());
+            }
+            return String.valueOf(end - begin);
         }
+        return input.substring(begin, end);
+    }
 
-        return input;
+    @Override
+    public Transform fuse(Transform next) {
+        if (!lengthOnly && next instanceof ContentLengthTransform) {
+            return new SubstringTransform(offset, length, true);
+        }
+        return null;
     }
 }
@@ -10,6 +10,11 @@ dd() {
     dt("maxMatches")
     dd(_("The maximum number of matches to include. If 0, all matches will be included. Defaults to 0."))
   
+    dt("maxSegmentLength")
+    dd(_("If greater than 0, match the build log in a window sliding over it rather than all at once, so that large "
+        +"logs aren't held in memory. Segments up to this many characters long are matched as usual, longer ones "
+        +"may be cut short or missed. If 0, the whole log is matched at once. Defaults to 0."))
+  
     dt("showTruncatedLines")
     dd(_("If true, include [...truncated ### lines...] lines. Defaults to true."))
   
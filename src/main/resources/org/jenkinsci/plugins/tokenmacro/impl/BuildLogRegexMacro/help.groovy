@@ -5,7 +5,9 @@ dd() {
     dt("regex")
     dd(_("Lines that match this regular expression are included. " +
          "See also java.util.regex.Pattern." + 
-         "Defaults to \"(?i)\\\\b(error|exception|fatal|fail(ed|ure)|un(defined|resolved))\\\\b\""))
+         "Defaults to \"(?i)\\\\b(error|exception|fatal|fail(ed|ure)|un(defined|resolved))\\\\b\". " +
+         "Can be given several times, e.g. one expression for compiler errors and one for test failures, " +
+         "to look for all of them in a single pass over the log. A line matching any of them is included."))
     
     dt("linesBefore")
     dd(_("The number of lines to include before the matching line. " +
@@ -42,7 +44,15 @@ dd() {
   
     dt("matchedLineHtmlStyle")
     dd(_("If non-null, output HTML. Matched lines will become <b style=\"your-style-value\"> " +
-         "html escaped matched line</b>. Defaults to null."))
+         "html escaped matched line</b>. Defaults to null. " +
+         "When regex is given several times, the first style applies to the lines matching the first regex, " +
+         "the second one to the lines matching the second regex, and so on. " +
+         "Lines matching a regex without a style of its own get the first style."))
+    
+    dt("label")
+    dd(_("If non-null, this text is put before each matched line. " +
+         "Like matchedLineHtmlStyle, it can be given once for each regex, " +
+         "and lines matching a regex without a label of its own get the first label. Defaults to null."))
     
     dt("addNewline")
     dd(_("If true, adds a newline after subsText. Defaults to true."))
@@ -0,0 +1,75 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import static org.mockito.Mockito.mock;
+
+import hudson.FilePath;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stand-ins for the Jenkins objects the benchmarks need, so they run without starting Jenkins.
+ */
+public final class BenchmarkFixtures {
+
+    private BenchmarkFixtures() {}
+
+    /**
+     * A completed run that has no id, so nothing is kept in the {@link RunResultCache} between invocations.
+     */
+    public static Run<?, ?> run() {
+        return mock(Run.class);
+    }
+
+    public static TaskListener listener() {
+        return TaskListener.NULL;
+    }
+
+    /**
+     * The macros the benchmark templates use, passed as private macros.
+     */
+    public static List<TokenMacro> macros() {
+        return Collections.singletonList(new EchoMacro());
+    }
+
+    /**
+     * Returns its {@code arg} parameter, repeated {@code count} times.
+     */
+    public static class EchoMacro extends DataBoundTokenMacro {
+
+        @Parameter
+        public String arg = "";
+
+        @Parameter
+        public int count = 1;
+
+        @Parameter
+        public boolean upper;
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return macroName.equals("ECHO");
+        }
+
+        @Override
+        public List<String> getAcceptedMacroNames() {
+            return Collections.singletonList("ECHO");
+        }
+
+        @Override
+        public String evaluate(Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                sb.append(arg);
+            }
+            return upper ? sb.toString().toUpperCase() : sb.toString();
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> build, TaskListener listener, String macroName) {
+            return evaluate(build, null, listener, macroName);
+        }
+    }
+}
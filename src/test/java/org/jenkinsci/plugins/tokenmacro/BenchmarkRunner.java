@@ -0,0 +1,44 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import org.junit.jupiter.api.Test;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Runs the JMH benchmarks of this plugin, i.e. all classes named {@code *Benchmark}.
+ *
+ * <p>
+ * This isn't picked up by the regular test run. Use {@code mvn test -Dbenchmark}, optionally with
+ * {@code -Dbenchmark.include=<regexp>} to only run some of them, and {@code -Dbenchmark.param.<name>=<value>,...} to
+ * override the values of a {@code @Param}, e.g. {@code -Dbenchmark.param.size=10MB}. The results are written to
+ * {@code target/jmh-report.json}, so runs of different releases can be compared.
+ */
+class BenchmarkRunner {
+
+    private static final String PARAM_PREFIX = "benchmark.param.";
+
+    @Test
+    void runJmhBenchmarks() throws Exception {
+        ChainedOptionsBuilder options = new OptionsBuilder()
+                .include(System.getProperty("benchmark.include", "org\\.jenkinsci\\.plugins\\.tokenmacro\\..*Benchmark"))
+                .warmupIterations(3)
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(5)
+                .measurementTime(TimeValue.seconds(1))
+                .forks(1)
+                .shouldFailOnError(true)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/jmh-report.json");
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PARAM_PREFIX)) {
+                options.param(name.substring(PARAM_PREFIX.length()), System.getProperty(name).split(","));
+            }
+        }
+        new Runner(options.build()).run();
+    }
+}
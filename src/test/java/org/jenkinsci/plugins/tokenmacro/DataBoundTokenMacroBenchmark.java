@@ -0,0 +1,66 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Binding of the token arguments to the parameters of a {@link DataBoundTokenMacro}, for a macro that does next to
+ * nothing itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DataBoundTokenMacroBenchmark {
+
+    @Param({"0", "1", "3"})
+    public int arguments;
+
+    private final DataBoundTokenMacro macro = new BenchmarkFixtures.EchoMacro();
+    private Run<?, ?> run;
+    private TaskListener listener;
+    private Map<String, String> args;
+    private ListMultimap<String, String> argumentMultimap;
+    private MacroParameters parameters;
+
+    @Setup
+    public void setup() throws Exception {
+        run = BenchmarkFixtures.run();
+        listener = BenchmarkFixtures.listener();
+        argumentMultimap = ArrayListMultimap.create();
+        String[][] all = {{"arg", "value"}, {"count", "2"}, {"upper", "true"}};
+        for (int i = 0; i < arguments; i++) {
+            argumentMultimap.put(all[i][0], all[i][1]);
+        }
+        args = new HashMap<>();
+        for (Map.Entry<String, String> e : argumentMultimap.entries()) {
+            args.put(e.getKey(), e.getValue());
+        }
+        parameters = macro.prepare("ECHO", args, argumentMultimap);
+    }
+
+    @Benchmark
+    public String evaluate() throws Exception {
+        return macro.evaluate(run, null, listener, "ECHO", args, argumentMultimap);
+    }
+
+    /**
+     * The same evaluation for a token of a cached template, which keeps the checked and converted arguments.
+     */
+    @Benchmark
+    public String evaluatePrepared() throws Exception {
+        return macro.evaluatePrepared(run, null, listener, parameters);
+    }
+}
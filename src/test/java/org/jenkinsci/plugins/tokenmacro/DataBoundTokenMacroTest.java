@@ -9,10 +9,13 @@ package org.jenkinsci.plugins.tokenmacro;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import hudson.FilePath;
 import hudson.model.AbstractBuild;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Run;
 import hudson.model.TaskListener;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -79,6 +82,35 @@ class DataBoundTokenMacroTest {
         assertEquals("0 1 2 3 4 5 6 7 8 9 10 DONE!", TokenMacro.expand(b, TaskListener.NULL, "$RECURSIVE0"));
     }
 
+    @Test
+    void testStatelessDataBoundMacro(JenkinsRule j) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject("foo");
+        FreeStyleBuild b = p.scheduleBuild2(0).get();
+
+        int instances = StatelessDataBoundMacro.instances.get();
+        assertEquals("<x>,1,false", TokenMacro.expand(b, TaskListener.NULL, "${STATELESS_MACRO}"));
+        assertEquals(
+                "&lt;y&gt;,3,true",
+                TokenMacro.expand(b, TaskListener.NULL, "${STATELESS_MACRO, arg=\"<y>\", count=3, flag, escapeHtml}"));
+        assertEquals(instances, StatelessDataBoundMacro.instances.get());
+
+        assertThrows(
+                MacroEvaluationException.class,
+                () -> TokenMacro.expand(b, TaskListener.NULL, "${STATELESS_MACRO, other=1}"));
+    }
+
+    @Test
+    void testEscapeHtmlOnlyDataBoundMacro(JenkinsRule j) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject("foo");
+        FreeStyleBuild b = p.scheduleBuild2(0).get();
+
+        int instances = EscapeHtmlOnlyDataBoundMacro.instances.get();
+        assertEquals(
+                "<x> &lt;x&gt;",
+                TokenMacro.expand(b, TaskListener.NULL, "${ESCAPE_HTML_ONLY_MACRO} ${ESCAPE_HTML_ONLY_MACRO, escapeHtml}"));
+        assertEquals(instances, EscapeHtmlOnlyDataBoundMacro.instances.get());
+    }
+
     @TestExtension
     public static class SimpleDataBoundMacro extends DataBoundTokenMacro {
 
@@ -147,6 +179,59 @@ class DataBoundTokenMacroTest {
         }
     }
 
+    @TestExtension
+    public static class StatelessDataBoundMacro extends DataBoundTokenMacro {
+        static final AtomicInteger instances = new AtomicInteger();
+
+        @Parameter
+        public String arg = "<x>";
+
+        @Parameter
+        public int count = 1;
+
+        @Parameter
+        public boolean flag;
+
+        public StatelessDataBoundMacro() {
+            instances.incrementAndGet();
+        }
+
+        @Override
+        public String evaluate(
+                Run<?, ?> run, FilePath workspace, TaskListener listener, String macroName, MacroParameters parameters) {
+            return parameters.getString("arg") + "," + parameters.getInt("count") + "," + parameters.getBoolean("flag");
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName) {
+            throw new AssertionError("the parameters are not bound");
+        }
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return "STATELESS_MACRO".equals(macroName);
+        }
+    }
+
+    @TestExtension
+    public static class EscapeHtmlOnlyDataBoundMacro extends DataBoundTokenMacro {
+        static final AtomicInteger instances = new AtomicInteger();
+
+        public EscapeHtmlOnlyDataBoundMacro() {
+            instances.incrementAndGet();
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName) {
+            return "<x>";
+        }
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return "ESCAPE_HTML_ONLY_MACRO".equals(macroName);
+        }
+    }
+
     @TestExtension
     public static class RecursiveDataBoundMacro extends DataBoundTokenMacro {
         @Override
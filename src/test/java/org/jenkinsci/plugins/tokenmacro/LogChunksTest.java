@@ -0,0 +1,103 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.console.ConsoleNote;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LogChunksTest {
+
+    private static final String NOTE = ConsoleNote.PREAMBLE_STR + "AAAB" + ConsoleNote.POSTAMBLE_STR;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testChunksHoldTheLinesOfTheLog() throws Exception {
+        Run<?, ?> run = run("a\nbb\r\n" + NOTE + "é€\n\nccc\rd\r\n\nlast");
+        String expected = lines(run, Long.MAX_VALUE);
+        assertEquals("[a, bb, é€, , ccc, d, , last]", expected);
+
+        for (long chunkSize = 1; chunkSize <= 12; chunkSize++) {
+            try (LogChunks chunks = LogChunks.open(run, chunkSize)) {
+                assertNotNull(chunks);
+                List<String> lines = new ArrayList<>();
+                for (int i = 0; i < chunks.size(); i++) {
+                    lines.addAll(chunkLines(chunks, i));
+                }
+                assertEquals(expected, lines.toString(), "chunk size " + chunkSize);
+            }
+        }
+        try (LogChunks chunks = LogChunks.open(run, 1)) {
+            // a chunk after each line feed, the carriage returns on their own don't end a chunk
+            assertEquals(7, chunks.size());
+            assertEquals("[ccc, d]", chunkLines(chunks, 4).toString());
+        }
+    }
+
+    @Test
+    void testOpen() throws Exception {
+        Run<?, ?> run = run("");
+        try (LogChunks chunks = LogChunks.open(run, 1)) {
+            assertEquals(1, chunks.size());
+            assertEquals(Collections.emptyList(), chunkLines(chunks, 0));
+        }
+
+        when(run.isLogUpdated()).thenReturn(true);
+        assertNull(LogChunks.open(run, 1));
+
+        run = run("a\nb\n");
+        when(run.getCharset()).thenReturn(StandardCharsets.UTF_16);
+        assertNull(LogChunks.open(run, 1));
+
+        assertNull(LogChunks.open(mock(Run.class), 1));
+    }
+
+    private static String lines(Run<?, ?> run, long chunkSize) throws IOException {
+        try (LogChunks chunks = LogChunks.open(run, chunkSize)) {
+            assertEquals(1, chunks.size());
+            return chunkLines(chunks, 0).toString();
+        }
+    }
+
+    private static List<String> chunkLines(LogChunks chunks, int chunk) throws IOException {
+        List<String> lines = new ArrayList<>();
+        chunks.scan(chunk, Collections.singletonList(new LogScanner.Consumer() {
+            @Override
+            public boolean accept(LogScanner.Line line) {
+                lines.add(line.getChars().toString());
+                return true;
+            }
+
+            @Override
+            public String getResult() {
+                return null;
+            }
+        }));
+        return lines;
+    }
+
+    private Run<?, ?> run(String log) throws IOException {
+        File file = Files.createTempFile(dir, "log", null).toFile();
+        Files.write(file.toPath(), log.getBytes(StandardCharsets.UTF_8));
+        Run<?, ?> run = mock(AbstractBuild.class);
+        when(run.getLogFile()).thenReturn(file);
+        when(run.getCharset()).thenReturn(StandardCharsets.UTF_8);
+        return run;
+    }
+}
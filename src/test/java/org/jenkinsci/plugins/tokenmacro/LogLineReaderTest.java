@@ -0,0 +1,124 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.console.ConsoleNote;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class LogLineReaderTest {
+
+    private static final String NOTE = ConsoleNote.PREAMBLE_STR + "AAAB" + ConsoleNote.POSTAMBLE_STR;
+
+    @Test
+    void testLinesEndLikeReadLine() throws Exception {
+        byte[] log = "a\nb\r\nc\rd\r\r\ne".getBytes(StandardCharsets.UTF_8);
+        String expected = "[a|\\n, b|\\r\\n, c|\\r, d|\\r, |\\r\\n, e|]";
+        // a carriage return at the end of one read and a line feed at the start of the next are one terminator
+        for (int chunk = 1; chunk <= log.length; chunk++) {
+            assertEquals(expected, lines(new ChunkedInputStream(log, chunk), StandardCharsets.UTF_8));
+        }
+
+        assertEquals("[]", lines(new ByteArrayInputStream(new byte[0]), StandardCharsets.UTF_8));
+        assertEquals("[a|\\r]", lines(new ByteArrayInputStream(new byte[] {'a', '\r'}), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testNotesAreRemovedFromTheText() throws Exception {
+        String line = "é" + NOTE + "€ " + ConsoleNote.PREAMBLE_STR.substring(0, 3) + NOTE
+                + ConsoleNote.PREAMBLE_STR.substring(3) + "x" + ConsoleNote.POSTAMBLE_STR + "y";
+        LogLineReader reader = reader(line + "\nno note\n");
+
+        assertTrue(reader.readLine());
+        assertEquals(ConsoleNote.removeNotes(line), reader.getText().toString());
+        assertEquals("é€ y", reader.getText().toString(), "removing a note can complete another one");
+        assertEquals(line, reader.getRawText().toString());
+
+        assertTrue(reader.readLine());
+        assertEquals("no note", reader.getRawText().toString());
+        assertEquals("no note", reader.getText().toString());
+        assertFalse(reader.readLine());
+    }
+
+    @Test
+    void testBytesAroundANoteAreDecodedSeparately() throws Exception {
+        // the first two bytes of a euro sign before the note, and the last one after it
+        byte[] note = NOTE.getBytes(StandardCharsets.UTF_8);
+        byte[] log = new byte[note.length + 3];
+        log[0] = (byte) 0xe2;
+        log[1] = (byte) 0x82;
+        System.arraycopy(note, 0, log, 2, note.length);
+        log[log.length - 1] = (byte) 0xac;
+        LogLineReader reader = new LogLineReader(new ByteArrayInputStream(log), StandardCharsets.UTF_8);
+
+        assertTrue(reader.readLine());
+        assertEquals(ConsoleNote.removeNotes(new String(log, StandardCharsets.UTF_8)), reader.getText().toString());
+        assertEquals("\ufffd\ufffd", reader.getText().toString());
+    }
+
+    @Test
+    void testLongLines() throws Exception {
+        char[] chars = new char[200_000];
+        Arrays.fill(chars, 'x');
+        String line = new String(chars);
+        LogLineReader reader = reader(line + NOTE + "\r" + line);
+
+        assertTrue(reader.readLine());
+        assertEquals(line, reader.getText().toString());
+        assertEquals("\r", reader.getTerminator());
+        assertTrue(reader.readLine());
+        assertEquals(line, reader.getText().toString());
+        assertFalse(reader.readLine());
+    }
+
+    @Test
+    void testSupportedCharsets() {
+        assertTrue(LogLineReader.supports(StandardCharsets.UTF_8));
+        assertTrue(LogLineReader.supports(StandardCharsets.ISO_8859_1));
+        assertTrue(LogLineReader.supports(Charset.forName("windows-1252")));
+        assertFalse(LogLineReader.supports(StandardCharsets.UTF_16));
+        assertFalse(LogLineReader.supports(null));
+    }
+
+    private static LogLineReader reader(String log) {
+        return new LogLineReader(
+                new ByteArrayInputStream(log.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8);
+    }
+
+    private static String lines(InputStream in, Charset charset) throws IOException {
+        LogLineReader reader = new LogLineReader(in, charset);
+        List<String> lines = new ArrayList<>();
+        while (reader.readLine()) {
+            lines.add(reader.getRawText() + "|"
+                    + reader.getTerminator().replace("\r", "\\r").replace("\n", "\\n"));
+        }
+        return lines.toString();
+    }
+
+    /**
+     * Returns at most the given number of bytes from each read.
+     */
+    private static class ChunkedInputStream extends FilterInputStream {
+        private final int chunk;
+
+        ChunkedInputStream(byte[] bytes, int chunk) {
+            super(new ByteArrayInputStream(bytes));
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(len, chunk));
+        }
+    }
+}
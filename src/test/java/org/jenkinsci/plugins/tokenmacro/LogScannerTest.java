@@ -0,0 +1,89 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class LogScannerTest {
+
+    @Test
+    void testLinesEndLikeReadLine() throws Exception {
+        String log = "a\nb\r\nc\rd\r\r\ne";
+        String expected = "[a|\\n, b|\\r\\n, c|\\r, d|\\r, |\\r\\n, e|]";
+        assertEquals(expected, lines(new StringReader(log), Integer.MAX_VALUE));
+        // a carriage return at the end of one read and a line feed at the start of the next are one terminator
+        for (int chunk = 1; chunk < log.length(); chunk++) {
+            assertEquals(expected, lines(new ChunkedReader(log, chunk), Integer.MAX_VALUE));
+        }
+
+        assertEquals("[]", lines(new StringReader(""), Integer.MAX_VALUE));
+        assertEquals("[a|\\r]", lines(new StringReader("a\r"), Integer.MAX_VALUE));
+        assertEquals("[|\\n, |\\n]", lines(new StringReader("\n\n"), Integer.MAX_VALUE));
+    }
+
+    @Test
+    void testScanStopsWhenNoMoreLinesAreNeeded() throws Exception {
+        Collector first = new Collector(1);
+        Collector second = new Collector(3);
+        LogScanner.scan(new StringReader("1\n2\n3\n4\n5\n"), Arrays.asList(first, second));
+
+        assertEquals("[1|\\n]", first.getResult());
+        assertEquals("[1|\\n, 2|\\n, 3|\\n]", second.getResult());
+    }
+
+    private static String lines(Reader reader, int max) throws IOException {
+        Collector collector = new Collector(max);
+        LogScanner.scan(reader, Arrays.asList(collector));
+        return collector.getResult();
+    }
+
+    private static class Collector implements LogScanner.Consumer {
+        private final int max;
+        private final List<String> lines = new ArrayList<>();
+
+        Collector(int max) {
+            this.max = max;
+        }
+
+        @Override
+        public boolean accept(LogScanner.Line line) {
+            lines.add(line.getRawText() + "|"
+                    + line.getTerminator().replace("\r", "\\r").replace("\n", "\\n"));
+            return lines.size() < max;
+        }
+
+        @Override
+        public String getResult() {
+            return lines.toString();
+        }
+    }
+
+    /**
+     * Returns at most the given number of characters from each read.
+     */
+    private static class ChunkedReader extends Reader {
+        private final Reader in;
+        private final int chunk;
+
+        ChunkedReader(String s, int chunk) {
+            this.in = new StringReader(s);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            return in.read(cbuf, off, Math.min(len, chunk));
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
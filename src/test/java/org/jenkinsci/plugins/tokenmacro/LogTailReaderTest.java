@@ -0,0 +1,93 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LogTailReaderTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testReadLineSplitsLikeBufferedReader() throws Exception {
+        for (String log : Arrays.asList("", "a", "a\n", "a\r", "a\r\n", "\n\n", "a\nb\r\nc\rd\r\r\ne", "\r\n\ra\n\r")) {
+            List<String> expected = new ArrayList<>();
+            BufferedReader forward = new BufferedReader(new StringReader(log));
+            String line;
+            while ((line = forward.readLine()) != null) {
+                expected.add(line);
+            }
+            Collections.reverse(expected);
+
+            List<String> actual = new ArrayList<>();
+            try (LogTailReader reader = LogTailReader.open(run(log))) {
+                while ((line = reader.readLine()) != null) {
+                    actual.add(line);
+                }
+            }
+            assertEquals(expected, actual, log);
+        }
+    }
+
+    @Test
+    void testGetLogIsTheSameAsRunGetLog() throws Exception {
+        Run<?, ?> run = run("a\nb\r\nc\n");
+        assertEquals(Arrays.asList("a", "b", "c"), LogTailReader.getLog(run, 5));
+        assertEquals(Arrays.asList("[...truncated 0 B...]", "c"), LogTailReader.getLog(run, 2));
+        assertEquals(Collections.emptyList(), LogTailReader.getLog(run, 0));
+
+        run = run("été\nhiver");
+        assertEquals(Arrays.asList("été", "hiver"), LogTailReader.getLog(run, 2));
+    }
+
+    @Test
+    void testFallsBackToRunWithoutLogFile() throws Exception {
+        Run<?, ?> run = mock(Run.class);
+        when(run.getLog(2)).thenReturn(Arrays.asList("b", "c"));
+        assertFalse(LogTailReader.isSupported(run));
+        assertNull(LogTailReader.open(run));
+        assertEquals(Arrays.asList("b", "c"), LogTailReader.getLog(run, 2));
+    }
+
+    @Test
+    void testOnlyReadsTheLogFileOfAbstractBuilds() throws Exception {
+        // other runs, e.g. Pipeline ones, may keep their log elsewhere and copy it to a file when asked for one
+        Run<?, ?> run = mock(Run.class);
+        when(run.getLogFile()).thenReturn(Files.createTempFile(dir, "log", null).toFile());
+        when(run.getCharset()).thenReturn(StandardCharsets.UTF_8);
+        when(run.getLog(2)).thenReturn(Arrays.asList("b", "c"));
+        assertNull(LogTailReader.plainLogFile(run));
+        assertEquals(Arrays.asList("b", "c"), LogTailReader.getLog(run, 2));
+        verify(run, never()).getLogFile();
+    }
+
+    private Run<?, ?> run(String log) throws IOException {
+        File file = Files.createTempFile(dir, "log", null).toFile();
+        Files.write(file.toPath(), log.getBytes(StandardCharsets.UTF_8));
+        Run<?, ?> run = mock(AbstractBuild.class);
+        when(run.getLogFile()).thenReturn(file);
+        when(run.getCharset()).thenReturn(StandardCharsets.UTF_8);
+        return run;
+    }
+}
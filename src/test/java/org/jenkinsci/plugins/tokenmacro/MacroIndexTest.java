@@ -0,0 +1,173 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.google.common.collect.ListMultimap;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class MacroIndexTest {
+
+    @Test
+    void testLookupByAcceptedName() {
+        NamedMacro first = new NamedMacro("FIRST");
+        NamedMacro second = new NamedMacro("SECOND", "ALIAS");
+        MacroIndex index = MacroIndex.of(Arrays.asList(first, second));
+
+        assertSame(first, index.lookup("FIRST"));
+        assertSame(second, index.lookup("SECOND"));
+        assertSame(second, index.lookup("ALIAS"));
+        assertNull(index.lookup("THIRD"));
+    }
+
+    @Test
+    void testFirstRegisteredMacroWins() {
+        NamedMacro first = new NamedMacro("NAME");
+        NamedMacro second = new NamedMacro("NAME");
+        MacroIndex index = MacroIndex.of(Arrays.asList(first, second));
+
+        assertSame(first, index.lookup("NAME"));
+    }
+
+    @Test
+    void testDynamicMacros() {
+        DynamicMacro before = new DynamicMacro("DYN");
+        NamedMacro named = new NamedMacro("DYN_NAMED");
+        DynamicMacro after = new DynamicMacro("DYN_NAMED");
+        MacroIndex index = MacroIndex.of(Arrays.asList(before, named, after));
+
+        assertSame(before, index.lookup("DYN"));
+        assertSame(before, index.lookup("DYN_OTHER"));
+        assertSame(before, index.lookup("DYN_NAMED"));
+
+        index = MacroIndex.of(Arrays.asList(named, after));
+        assertSame(named, index.lookup("DYN_NAMED"));
+        assertSame(after, index.lookup("DYN_NAMED_OTHER"));
+    }
+
+    @Test
+    void testMacroAcceptingMoreThanAdvertised() {
+        NamedMacro named = new NamedMacro("ADVERTISED") {
+            @Override
+            public boolean acceptsMacroName(String macroName) {
+                return super.acceptsMacroName(macroName) || macroName.equals("HIDDEN");
+            }
+        };
+        MacroIndex index = MacroIndex.of(Collections.singletonList(named));
+
+        assertSame(named, index.lookup("HIDDEN"));
+    }
+
+    @Test
+    void testEarlierMacroAcceptingAnAdvertisedNameWins() {
+        NamedMacro first = new NamedMacro("FIRST") {
+            @Override
+            public boolean acceptsMacroName(String macroName) {
+                return super.acceptsMacroName(macroName) || macroName.equals("SECOND");
+            }
+        };
+        NamedMacro second = new NamedMacro("SECOND");
+        MacroIndex index = MacroIndex.of(Arrays.asList(first, second));
+
+        // the same as scanning the list
+        assertSame(first, index.lookup("SECOND"));
+        assertSame(first, index.lookup("FIRST"));
+
+        index = MacroIndex.of(Arrays.asList(second, first));
+        assertSame(second, index.lookup("SECOND"));
+    }
+
+    @Test
+    void testScanOfAllMacrosIsRemembered() {
+        int[] calls = new int[1];
+        NamedMacro named = new NamedMacro("ADVERTISED") {
+            @Override
+            public boolean acceptsMacroName(String macroName) {
+                calls[0]++;
+                return super.acceptsMacroName(macroName) || macroName.equals("HIDDEN");
+            }
+        };
+        MacroIndex index = MacroIndex.of(Collections.singletonList(named));
+
+        assertSame(named, index.lookup("HIDDEN"));
+        assertNull(index.lookup("UNKNOWN"));
+        int scanned = calls[0];
+        assertSame(named, index.lookup("HIDDEN"));
+        assertNull(index.lookup("UNKNOWN"));
+        // neither name makes the macros be asked again
+        assertEquals(scanned, calls[0]);
+
+        for (int i = 0; i < MacroIndex.MAX_SCANNED_NAMES + 10; i++) {
+            assertNull(index.lookup("UNKNOWN_" + i));
+        }
+        assertSame(named, index.lookup("HIDDEN"));
+        assertNull(index.lookup("UNKNOWN"));
+    }
+
+    @Test
+    void testNullsAreIgnored() {
+        NamedMacro named = new NamedMacro("NAME");
+        MacroIndex index = MacroIndex.of(Arrays.asList(null, named, null));
+
+        assertSame(named, index.lookup("NAME"));
+        assertNull(MacroIndex.of(null).lookup("NAME"));
+    }
+
+    private static class NamedMacro extends TokenMacro {
+        private final List<String> names;
+
+        NamedMacro(String... names) {
+            this.names = Arrays.asList(names);
+        }
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return names.contains(macroName);
+        }
+
+        @Override
+        public List<String> getAcceptedMacroNames() {
+            return names;
+        }
+
+        @Override
+        public String evaluate(
+                AbstractBuild<?, ?> context,
+                TaskListener listener,
+                String macroName,
+                Map<String, String> arguments,
+                ListMultimap<String, String> argumentMultimap) {
+            return macroName;
+        }
+    }
+
+    private static class DynamicMacro extends TokenMacro {
+        private final String prefix;
+
+        DynamicMacro(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return macroName.startsWith(prefix);
+        }
+
+        @Override
+        public String evaluate(
+                AbstractBuild<?, ?> context,
+                TaskListener listener,
+                String macroName,
+                Map<String, String> arguments,
+                ListMultimap<String, String> argumentMultimap) {
+            return macroName;
+        }
+    }
+}
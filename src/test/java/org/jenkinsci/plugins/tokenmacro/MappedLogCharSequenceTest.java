@@ -0,0 +1,124 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.console.ConsoleNote;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedLogCharSequenceTest {
+
+    private static final String NOTE = ConsoleNote.PREAMBLE_STR + "AAAB" + ConsoleNote.POSTAMBLE_STR;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void testTextIsTheSameAsTheLines() throws Exception {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        log.write(("ascii\r\néé€€𝄞𝄞\n" + NOTE + "x\r\r\n").getBytes(StandardCharsets.UTF_8));
+        // removing a note can complete another one
+        log.write(("é" + NOTE + "€ " + ConsoleNote.PREAMBLE_STR.substring(0, 3) + NOTE
+                        + ConsoleNote.PREAMBLE_STR.substring(3) + "x" + ConsoleNote.POSTAMBLE_STR + "y\n")
+                .getBytes(StandardCharsets.UTF_8));
+        // the first two bytes of a euro sign before a note, and a run of bytes that can't start a character
+        log.write(new byte[] {(byte) 0xe2, (byte) 0x82});
+        log.write(NOTE.getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < 40; i++) {
+            log.write(0xac);
+        }
+        log.write("€\rend".getBytes(StandardCharsets.UTF_8));
+        byte[] bytes = log.toByteArray();
+
+        for (Charset charset : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.US_ASCII}) {
+            for (boolean removeNotes : new boolean[] {false, true}) {
+                String expected = lines(bytes, charset, removeNotes);
+                for (int pageSize : new int[] {4, 5, 16, 1024}) {
+                    MappedLogCharSequence text =
+                            new MappedLogCharSequence(ByteBuffer.wrap(bytes), charset, removeNotes, pageSize);
+                    assertEquals(expected, text.toString(), charset + " " + removeNotes + " " + pageSize);
+
+                    // going back and forth between the pages
+                    text = new MappedLogCharSequence(ByteBuffer.wrap(bytes), charset, removeNotes, pageSize);
+                    for (int i = expected.length() - 1; i >= 0; i -= 3) {
+                        assertEquals(expected.charAt(i), text.charAt(i));
+                        assertEquals(expected.charAt(i / 2), text.charAt(i / 2));
+                    }
+                    assertEquals(expected.substring(5, 20), text.subSequence(5, 20).toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testHasCharAt() {
+        MappedLogCharSequence text = new MappedLogCharSequence(
+                ByteBuffer.wrap(("a\n" + NOTE + "b").getBytes(StandardCharsets.UTF_8)),
+                StandardCharsets.UTF_8,
+                true,
+                4);
+        assertTrue(text.hasCharAt(0));
+        assertTrue(text.hasCharAt(2));
+        assertFalse(text.hasCharAt(3));
+        assertFalse(text.hasCharAt(-1));
+        assertEquals(3, text.length());
+        assertThrows(IndexOutOfBoundsException.class, () -> text.charAt(3));
+    }
+
+    @Test
+    void testOpen() throws Exception {
+        assumeTrue(MappedLogCharSequence.ENABLED);
+        Run<?, ?> run = run("a\n" + NOTE + "b");
+        MappedLogCharSequence text = MappedLogCharSequence.open(run, true);
+        assertNotNull(text);
+        assertEquals("a\nb", text.toString());
+        assertEquals("a\n" + NOTE + "b", MappedLogCharSequence.open(run, false).toString());
+
+        when(run.isLogUpdated()).thenReturn(true);
+        assertFalse(MappedLogCharSequence.isSupported(run));
+        assertNull(MappedLogCharSequence.open(run, true));
+
+        run = run("a");
+        when(run.getCharset()).thenReturn(StandardCharsets.UTF_16);
+        assertNull(MappedLogCharSequence.open(run, true));
+
+        assertNull(MappedLogCharSequence.open(mock(Run.class), true));
+    }
+
+    private static String lines(byte[] log, Charset charset, boolean removeNotes) throws IOException {
+        LogLineReader reader = new LogLineReader(new ByteArrayInputStream(log), charset);
+        StringBuilder text = new StringBuilder();
+        while (reader.readLine()) {
+            text.append(removeNotes ? reader.getText() : reader.getRawText()).append(reader.getTerminator());
+        }
+        return text.toString();
+    }
+
+    private Run<?, ?> run(String log) throws IOException {
+        File file = Files.createTempFile(dir, "log", null).toFile();
+        Files.write(file.toPath(), log.getBytes(StandardCharsets.UTF_8));
+        Run<?, ?> run = mock(AbstractBuild.class);
+        when(run.getLogFile()).thenReturn(file);
+        when(run.getCharset()).thenReturn(StandardCharsets.UTF_8);
+        return run;
+    }
+}
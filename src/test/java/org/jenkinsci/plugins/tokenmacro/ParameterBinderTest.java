@@ -0,0 +1,293 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.beanutils.ConvertUtils;
+import org.junit.jupiter.api.Test;
+
+class ParameterBinderTest {
+
+    private static final String[] VALUES = {
+        null, "", " ", "0", "1", "-1", "+7", " 42 ", "2147483647", "2147483648", "1.5", "0x10", "abc", "true", "TRUE",
+        " true", "yes", "Y", "on", "On", "1 ", "false", "no", "off", "n"
+    };
+
+    @Test
+    void testConversionsMatchConvertUtils() {
+        for (String value : VALUES) {
+            assertEquals(ConvertUtils.convert(value, int.class), ParameterBinder.toInt(value), "int: " + value);
+            if (value != null) {
+                assertEquals(
+                        ConvertUtils.convert(value, boolean.class), ParameterBinder.toBoolean(value), "boolean: " + value);
+            }
+        }
+    }
+
+    @Test
+    void testBind() throws Exception {
+        ParameterBinder binder = ParameterBinder.of(BoundMacro.class);
+        BoundMacro macro = (BoundMacro) bind(binder, "count", "12", "flag", null, "alias", "text", "method", "m");
+
+        assertEquals(12, macro.count);
+        assertTrue(macro.flag);
+        assertEquals("text", macro.aliased);
+        assertEquals("m", macro.fromMethod);
+        assertEquals(7L, macro.other);
+
+        macro = (BoundMacro) bind(binder, "count", "nope", "flag", "off", "other", "3", "escapeHtml", "true");
+        assertEquals(0, macro.count);
+        assertFalse(macro.flag);
+        assertNull(macro.aliased);
+        assertEquals(3L, macro.other);
+        assertTrue(macro.escapeHtml);
+    }
+
+    @Test
+    void testBindCreatesNewInstances() throws Exception {
+        ParameterBinder binder = ParameterBinder.of(BoundMacro.class);
+        assertNotSame(bind(binder), bind(binder));
+    }
+
+    @Test
+    void testUndefinedParameter() {
+        MacroEvaluationException e =
+                assertThrows(MacroEvaluationException.class, () -> bind(ParameterBinder.of(BoundMacro.class), "x", "1"));
+        assertEquals("Undefined parameter x in token TEST", e.getMessage());
+    }
+
+    @Test
+    void testRequiredParameter() throws Exception {
+        ParameterBinder binder = ParameterBinder.of(RequiredMacro.class);
+        MacroEvaluationException e = assertThrows(MacroEvaluationException.class, () -> bind(binder));
+        assertEquals("Parameter value in token TEST is required but was not specfified", e.getMessage());
+
+        assertEquals("v", ((RequiredMacro) bind(binder, "value", "v")).value);
+    }
+
+    @Test
+    void testParameters() throws Exception {
+        ParameterBinder binder = ParameterBinder.of(BoundMacro.class);
+        MacroParameters parameters = parameters(binder, "count", " 12 ", "flag", null, "alias", "text");
+
+        assertEquals(12, parameters.getInt("count"));
+        assertTrue(parameters.getBoolean("flag"));
+        assertEquals("text", parameters.getString("alias"));
+        assertTrue(parameters.isSet("alias"));
+        assertFalse(parameters.isSet("other"));
+        assertEquals(7L, parameters.get("other"));
+        assertNull(parameters.get("method"));
+        assertFalse(parameters.getBoolean("escapeHtml"));
+        assertEquals(" 12 ", parameters.getArguments().get("count"));
+        assertThrows(IllegalArgumentException.class, () -> parameters.get("aliased"));
+
+        MacroParameters last = parameters(binder, "count", "1", "count", "2");
+        assertEquals(2, last.getInt("count"));
+        assertEquals(2, last.getArgumentMultimap().get("count").size());
+    }
+
+    @Test
+    void testParametersAreChecked() {
+        MacroEvaluationException e = assertThrows(
+                MacroEvaluationException.class, () -> parameters(ParameterBinder.of(BoundMacro.class), "x", "1"));
+        assertEquals("Undefined parameter x in token TEST", e.getMessage());
+
+        e = assertThrows(MacroEvaluationException.class, () -> parameters(ParameterBinder.of(RequiredMacro.class)));
+        assertEquals("Parameter value in token TEST is required but was not specfified", e.getMessage());
+    }
+
+    @Test
+    void testCheck() {
+        ListMultimap<String, String> args = ArrayListMultimap.create();
+        args.put("x", "1");
+        args.put("y", "2");
+        args.put("x", "3");
+        Map<String, String> map = new HashMap<>();
+        map.put("x", "3");
+        map.put("y", "2");
+
+        assertEquals(
+                "[Undefined parameter x in token TEST, Undefined parameter y in token TEST, "
+                        + "Parameter value in token TEST is required but was not specfified]",
+                ParameterBinder.of(RequiredMacro.class).check("TEST", map, args).toString());
+        assertTrue(ParameterBinder.of(RequiredMacro.class)
+                .check("TEST", Collections.singletonMap("value", "v"), ArrayListMultimap.create())
+                .isEmpty());
+    }
+
+    @Test
+    void testBindParameters() throws Exception {
+        ParameterBinder binder = ParameterBinder.of(BoundMacro.class);
+        BoundMacro macro = (BoundMacro) binder.bind(parameters(binder, "count", "12", "method", "m", "other", "3"));
+
+        assertEquals(12, macro.count);
+        assertEquals("m", macro.fromMethod);
+        assertEquals(3L, macro.other);
+    }
+
+    @Test
+    void testBindParametersConvertsOnce() throws Exception {
+        ParameterBinder binder = ParameterBinder.of(BoundMacro.class);
+        MacroParameters parameters = parameters(binder, "alias", "text", "method", "a", "method", "b");
+
+        BoundMacro first = (BoundMacro) binder.bind(parameters);
+        BoundMacro second = (BoundMacro) binder.bind(parameters);
+        assertNotSame(first, second);
+        assertSame(first.aliased, second.aliased);
+        // setters still see every value given
+        assertEquals("b", second.fromMethod);
+        assertEquals("[a, b]", second.methodValues.toString());
+    }
+
+    @Test
+    void testGetParameters() {
+        List<MacroParameter> parameters = new BoundMacro().getParameters();
+        assertEquals("[alias:String, count:int, escapeHtml:boolean, flag:boolean, method:String, other:long]",
+                parameters.toString());
+        assertSame(parameters, new BoundMacro().getParameters());
+
+        MacroParameter alias = parameters.get(0);
+        assertEquals("aliased", alias.getMemberName());
+        assertEquals("alias", alias.getAlias());
+        assertEquals(String.class, alias.getType());
+        assertNull(alias.getDefaultValue());
+
+        MacroParameter other = parameters.get(5);
+        assertNull(other.getAlias());
+        assertEquals(7L, other.getDefaultValue());
+        assertFalse(other.isRequired());
+
+        assertNull(parameters.get(4).getDefaultValue());
+
+        MacroParameter value = new RequiredMacro().getParameters().get(1);
+        assertEquals("value", value.getName());
+        assertTrue(value.isRequired());
+    }
+
+    @Test
+    void testHasParameters() {
+        assertTrue(ParameterBinder.of(BoundMacro.class).hasParameters());
+        assertTrue(ParameterBinder.of(RequiredMacro.class).hasParameters());
+        // escapeHtml is applied by the caller
+        assertFalse(ParameterBinder.of(EscapeHtmlOnlyMacro.class).hasParameters());
+    }
+
+    @Test
+    void testParametersAreLookedUpOnFirstUse() {
+        // creating the instance doesn't reflect over the class yet
+        InvalidMacro macro = new InvalidMacro();
+        assertThrows(IllegalArgumentException.class, macro::getParameters);
+    }
+
+    private static DataBoundTokenMacro bind(ParameterBinder binder, String... keyValues)
+            throws MacroEvaluationException {
+        ListMultimap<String, String> args = ArrayListMultimap.create();
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            args.put(keyValues[i], keyValues[i + 1]);
+            map.put(keyValues[i], keyValues[i + 1]);
+        }
+        return binder.bind("TEST", map, args);
+    }
+
+    private static MacroParameters parameters(ParameterBinder binder, String... keyValues)
+            throws MacroEvaluationException {
+        ListMultimap<String, String> args = ArrayListMultimap.create();
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            args.put(keyValues[i], keyValues[i + 1]);
+            map.put(keyValues[i], keyValues[i + 1]);
+        }
+        return binder.parameters("TEST", map, args);
+    }
+
+    public static class BoundMacro extends DataBoundTokenMacro {
+        @Parameter
+        public int count;
+
+        @Parameter
+        public boolean flag;
+
+        @Parameter(alias = "alias")
+        public String aliased;
+
+        @Parameter
+        public long other = 7;
+
+        private String fromMethod;
+
+        private final List<String> methodValues = new ArrayList<>();
+
+        @Parameter
+        public void setMethod(String value) {
+            fromMethod = value;
+            methodValues.add(value);
+        }
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return macroName.equals("TEST");
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName) {
+            return macroName;
+        }
+    }
+
+    public static class RequiredMacro extends DataBoundTokenMacro {
+        @Parameter(required = true)
+        public String value;
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return macroName.equals("TEST");
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName) {
+            return macroName;
+        }
+    }
+
+    public static class EscapeHtmlOnlyMacro extends DataBoundTokenMacro {
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return macroName.equals("TEST");
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName) {
+            return macroName;
+        }
+    }
+
+    public static class InvalidMacro extends DataBoundTokenMacro {
+        @Parameter
+        public void setValues(String first, String second) {}
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return macroName.equals("TEST");
+        }
+
+        @Override
+        public String evaluate(AbstractBuild<?, ?> context, TaskListener listener, String macroName) {
+            return macroName;
+        }
+    }
+}
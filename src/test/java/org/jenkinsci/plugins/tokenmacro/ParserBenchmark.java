@@ -0,0 +1,64 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Expansion of whole templates through {@link Parser#process}, from mostly text to mostly tokens.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParserBenchmark {
+
+    @Param({"literal", "mixed", "tokens"})
+    public String template;
+
+    private String text;
+    private Run<?, ?> run;
+    private TaskListener listener;
+    private List<TokenMacro> macros;
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            switch (template) {
+                case "literal":
+                    sb.append("Build of the project finished with some result, see the console for details. ");
+                    break;
+                case "mixed":
+                    sb.append("Build ${ECHO, arg=\"result\"} after $ECHO seconds, see ${ECHO, arg=\"url\"}. ");
+                    break;
+                default:
+                    sb.append("${ECHO, arg=\"a\", count=2}${#ECHO:1:2, arg=\"abc\"}${ECHO, arg=\"b\", upper=true}");
+                    break;
+            }
+        }
+        text = sb.toString();
+        run = BenchmarkFixtures.run();
+        listener = BenchmarkFixtures.listener();
+        macros = BenchmarkFixtures.macros();
+    }
+
+    @Benchmark
+    public String process() throws Exception {
+        return Parser.process(run, null, listener, text, true, macros);
+    }
+
+    @Benchmark
+    public Object compile() throws Exception {
+        // Template isn't visible to the generated benchmark code
+        return Parser.compile(text);
+    }
+}
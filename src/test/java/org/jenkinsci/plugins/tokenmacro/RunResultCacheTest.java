@@ -0,0 +1,149 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class RunResultCacheTest {
+
+    @Test
+    void testOnlyStableMacrosOfCompletedRunsAreCacheable() {
+        Run<?, ?> run = run("job#1");
+        assertTrue(RunResultCache.isCacheable(run, new StableMacro()));
+        assertFalse(RunResultCache.isCacheable(run, new StableMacro() {
+            @Override
+            public boolean isStableOnceCompleted() {
+                return false;
+            }
+        }));
+        assertFalse(RunResultCache.isCacheable(run, new StableMacro() {
+            @Override
+            public boolean hasNestedContent() {
+                return true;
+            }
+        }));
+        assertFalse(RunResultCache.isCacheable(null, new StableMacro()));
+
+        when(run.isBuilding()).thenReturn(true);
+        when(run.isLogUpdated()).thenReturn(true);
+        assertFalse(RunResultCache.isCacheable(run, new StableMacro()));
+
+        // post production, notifiers may still write to the log
+        when(run.isBuilding()).thenReturn(false);
+        assertFalse(RunResultCache.isCacheable(run, new StableMacro()));
+    }
+
+    @Test
+    void testLookup() {
+        RunResultCache cache = new RunResultCache(1024 * 1024);
+        Run<?, ?> run = run("job#1");
+        List<Object> key = RunResultCache.key(run, new StableMacro(), "STABLE", args("lines", "10"));
+
+        assertNull(cache.lookup(key));
+        cache.put(key, "result");
+        assertEquals("result", cache.lookup(key));
+        assertNull(cache.lookup(RunResultCache.key(run, new StableMacro(), "STABLE", args("lines", "20"))));
+        assertNull(cache.lookup(RunResultCache.key(run("job#2"), new StableMacro(), "STABLE", args("lines", "10"))));
+
+        assertEquals(1, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.getSize());
+    }
+
+    @Test
+    void testLeastRecentlyUsedIsEvicted() {
+        RunResultCache cache = new RunResultCache(1000);
+        List<Object> first = RunResultCache.key(run("job#1"), new StableMacro(), "STABLE", args());
+        List<Object> second = RunResultCache.key(run("job#2"), new StableMacro(), "STABLE", args());
+        List<Object> third = RunResultCache.key(run("job#3"), new StableMacro(), "STABLE", args());
+
+        cache.put(first, "first");
+        cache.put(second, "second");
+        cache.lookup(first);
+        cache.put(third, repeat('x', 100));
+
+        assertEquals("first", cache.lookup(first));
+        assertNull(cache.lookup(second));
+        assertEquals(repeat('x', 100), cache.lookup(third));
+        assertTrue(cache.getBytes() <= 1000);
+
+        cache.put(second, repeat('x', 1000));
+        assertNull(cache.lookup(second));
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    void testInvalidate() {
+        RunResultCache cache = new RunResultCache(1024 * 1024);
+        Run<?, ?> run = run("job#1");
+        List<Object> key = RunResultCache.key(run, new StableMacro(), "STABLE", args());
+        List<Object> other = RunResultCache.key(run("job#2"), new StableMacro(), "STABLE", args());
+        cache.put(key, "result");
+        cache.put(other, "other");
+
+        cache.invalidate(run);
+        assertNull(cache.lookup(key));
+        assertEquals("other", cache.lookup(other));
+
+        cache.clear();
+        assertEquals(0, cache.getSize());
+        assertEquals(0, cache.getBytes());
+    }
+
+    private static Run<?, ?> run(String id) {
+        Run<?, ?> run = mock(Run.class);
+        when(run.getExternalizableId()).thenReturn(id);
+        when(run.getTimeInMillis()).thenReturn(1000L);
+        return run;
+    }
+
+    private static ListMultimap<String, String> args(String... keyValues) {
+        ListMultimap<String, String> args = ArrayListMultimap.create();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            args.put(keyValues[i], keyValues[i + 1]);
+        }
+        return args;
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    private static class StableMacro extends TokenMacro {
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return macroName.equals("STABLE");
+        }
+
+        @Override
+        public boolean isStableOnceCompleted() {
+            return true;
+        }
+
+        @Override
+        public String evaluate(
+                AbstractBuild<?, ?> context,
+                TaskListener listener,
+                String macroName,
+                Map<String, String> arguments,
+                ListMultimap<String, String> argumentMultimap) {
+            return macroName;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class TemplateCacheTest {
+
+    @Test
+    void testCompile() throws Exception {
+        Template template = Parser.compile("Build ${#BUILD_URL:1:2, abc=\"def\", abc=\"ghi\", jkl=true} is $STATUS!");
+        List<Template.Segment> segments = template.getSegments();
+        assertEquals(5, segments.size());
+
+        assertEquals("Build ", ((Template.Literal) segments.get(0)).getText());
+
+        Template.Token token = (Template.Token) segments.get(1);
+        assertEquals("BUILD_URL", token.getName());
+        assertEquals("{abc=[def, ghi], jkl=[true]}", token.getArgumentMultimap().toString());
+        assertEquals("ghi", token.getArguments().get("abc"));
+        // substring and length are fused into a single step
+        assertEquals(1, token.getTransforms().size());
+        assertEquals("${#BUILD_URL:1:2, abc=\"def\", abc=\"ghi\", jkl=true}", token.getText());
+
+        assertEquals(" is ", ((Template.Literal) segments.get(2)).getText());
+        assertEquals("$STATUS", ((Template.Token) segments.get(3)).getText());
+        assertEquals("!", ((Template.Literal) segments.get(4)).getText());
+    }
+
+    @Test
+    void testCompileEscaped() throws Exception {
+        Template template = Parser.compile("$${TEST} $$TEST");
+        assertEquals(1, template.getSegments().size());
+        assertEquals("${TEST} $TEST", ((Template.Literal) template.getSegments().get(0)).getText());
+    }
+
+    @Test
+    void testCompileInvalid() {
+        assertThrows(MacroEvaluationException.class, () -> Parser.compile("${TEST, arg = \"a \n b\"}"));
+    }
+
+    @Test
+    void testCompileUnterminated() throws Exception {
+        assertThrows(MacroEvaluationException.class, () -> Parser.compile("${TEST#abc"));
+        assertThrows(MacroEvaluationException.class, () -> Parser.compile("${TEST%abc\\"));
+        assertThrows(MacroEvaluationException.class, () -> Parser.compile("${TEST, arg=\"abc"));
+
+        assertEquals("${TEST", ((Template.Literal) Parser.compile("$${TEST").getSegments().get(0)).getText());
+        assertEquals("abc${", ((Template.Literal) Parser.compile("abc${").getSegments().get(0)).getText());
+    }
+
+    @Test
+    void testCompileNonAscii() throws Exception {
+        Template template = Parser.compile("<p>\u00e9t\u00e9 ${\u00c9T\u00c9_1, arg=\"\u00e0\"}</p>");
+        assertEquals(3, template.getSegments().size());
+        Template.Token token = (Template.Token) template.getSegments().get(1);
+        assertEquals("\u00c9T\u00c9_1", token.getName());
+        assertEquals("\u00e0", token.getArguments().get("arg"));
+    }
+
+    @Test
+    void testReusesCompiledTemplate() throws Exception {
+        TemplateCache cache = new TemplateCache(10, 1000);
+        Template template = cache.compile("${TEST}");
+        assertSame(template, cache.compile("${TEST}"));
+        assertNotSame(template, cache.compile("${TEST2}"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsed() throws Exception {
+        TemplateCache cache = new TemplateCache(2, 1000);
+        Template first = cache.compile("${FIRST}");
+        Template second = cache.compile("${SECOND}");
+        cache.compile("${FIRST}");
+        cache.compile("${THIRD}");
+
+        assertEquals(2, cache.size());
+        assertSame(first, cache.compile("${FIRST}"));
+        assertNotSame(second, cache.compile("${SECOND}"));
+    }
+
+    @Test
+    void testBoundedByLength() throws Exception {
+        TemplateCache cache = new TemplateCache(10, 20);
+        cache.compile("${ABCDEFGHIJ}");
+        cache.compile("${KLMNOPQRST}");
+        assertEquals(1, cache.size());
+
+        // too big to be cached at all
+        Template template = cache.compile("${ABCDEFGHIJKLMNOPQRST}");
+        assertInstanceOf(Template.Token.class, template.getSegments().get(0));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    void testTokenKeepsPreparedParameters() throws Exception {
+        Template.Token token = (Template.Token) Parser.compile("${TEST, count=\"12\", alias=\"a\"}")
+                .getSegments()
+                .get(0);
+        MacroParameters parameters = token.getParameters(new ParameterBinderTest.BoundMacro());
+        assertEquals(12, parameters.getInt("count"));
+        assertSame(parameters, token.getParameters(new ParameterBinderTest.BoundMacro()));
+
+        // prepared again for a different class
+        assertThrows(
+                MacroEvaluationException.class, () -> token.getParameters(new ParameterBinderTest.RequiredMacro()));
+        assertNotSame(parameters, token.getParameters(new ParameterBinderTest.BoundMacro() {}));
+    }
+}
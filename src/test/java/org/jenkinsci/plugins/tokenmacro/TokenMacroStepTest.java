@@ -1,5 +1,9 @@
 package org.jenkinsci.plugins.tokenmacro;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.util.FormValidation;
 import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
 import org.jenkinsci.plugins.workflow.job.WorkflowJob;
 import org.junit.jupiter.api.Test;
@@ -18,4 +22,17 @@ class TokenMacroStepTest {
         p.setDefinition(new CpsFlowDefinition("node { def val = tm('${BUILD_NUMBER}') ; echo val }", true));
         j.assertLogContains("1", j.assertBuildStatusSuccess(p.scheduleBuild2(0)));
     }
+
+    @Test
+    void checkStringWithMacro(JenkinsRule j) {
+        TokenMacroStep.DescriptorImpl descriptor = j.jenkins.getDescriptorByType(TokenMacroStep.DescriptorImpl.class);
+        assertEquals(FormValidation.Kind.OK, descriptor.doCheckStringWithMacro("${BUILD_NUMBER}").kind);
+
+        FormValidation validation = descriptor.doCheckStringWithMacro("${UNKNOWN_A} ${UNKNOWN_B}");
+        assertEquals(FormValidation.Kind.WARNING, validation.kind);
+        // one list item per problem
+        String html = validation.renderHtml();
+        assertTrue(html.contains("<li>"), html);
+        assertTrue(html.contains("UNKNOWN_A") && html.contains("UNKNOWN_B"), html);
+    }
 }
@@ -1,18 +1,28 @@
 package org.jenkinsci.plugins.tokenmacro;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import com.google.common.collect.ListMultimap;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.*;
+import hudson.model.listeners.RunListener;
 import hudson.util.StreamTaskListener;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.*;
@@ -160,6 +170,196 @@ class TokenMacroTest {
         assertEquals("TEST_PRIVATE" + j.jenkins.getRootUrl() + "job/foo/1/TEST2_PRIVATE", TokenMacro.expand(b, listener, "${TEST_PRIVATE}${BUILD_URL}${TEST2_PRIVATE}", true, privateMacros));
     }
 
+    @Test
+    void testExpandTo(JenkinsRule j) throws Exception {
+        List<TokenMacro> privateMacros = new ArrayList<>();
+        privateMacros.add(new PrivateTestMacro());
+
+        FreeStyleProject p = j.createFreeStyleProject("foo");
+        FreeStyleBuild b = p.scheduleBuild2(0).get();
+
+        listener = StreamTaskListener.fromStdout();
+        StringWriter out = new StringWriter();
+        TokenMacro.expandTo(
+                b,
+                b.getWorkspace(),
+                listener,
+                new StringReader("${TEST_PRIVATE} ${#BUILD_URL} ${BUILD_LOG, maxLines=0} ${TEST_NESTEDX}"),
+                out,
+                false,
+                privateMacros);
+        assertEquals(
+                "TEST_PRIVATE " + (j.jenkins.getRootUrl() + "job/foo/1/").length()
+                        + " [Error replacing 'BUILD_LOG' - Invalid maxLines value: 0] ${TEST_NESTEDX}",
+                out.toString());
+
+        assertThrows(
+                MacroEvaluationException.class,
+                () -> TokenMacro.expandTo(
+                        b, b.getWorkspace(), listener, new StringReader("${TEST_NESTEDX}"), new StringWriter()));
+    }
+
+    @Test
+    void testParallelEvaluation(JenkinsRule j) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject("foo");
+        FreeStyleBuild b = p.scheduleBuild2(0).get();
+
+        // each evaluation waits for the other one, so they only succeed if evaluated at the same time
+        CountDownLatch latch = new CountDownLatch(2);
+        List<TokenMacro> privateMacros = new ArrayList<>();
+        privateMacros.add(new ConcurrentTestMacro("FIRST", latch));
+        privateMacros.add(new ConcurrentTestMacro("SECOND", latch));
+        privateMacros.add(new ConcurrentTestMacro("BROKEN", latch));
+
+        listener = StreamTaskListener.fromStdout();
+        boolean enabled = ParallelEvaluation.ENABLED;
+        ParallelEvaluation.ENABLED = true;
+        try {
+            assertEquals(
+                    "FIRST 6 [Error replacing 'BROKEN' - broken] ${UNKNOWN}",
+                    TokenMacro.expand(
+                            b, listener, "${FIRST} ${#SECOND} ${BROKEN} ${UNKNOWN}", false, privateMacros));
+            assertThrows(
+                    MacroEvaluationException.class,
+                    () -> TokenMacro.expand(b, listener, "${FIRST} ${BROKEN} ${SECOND}", true, privateMacros));
+        } finally {
+            ParallelEvaluation.ENABLED = enabled;
+        }
+    }
+
+    @Test
+    void testIdenticalTokensAreEvaluatedOnce(JenkinsRule j) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject("foo");
+        FreeStyleBuild b = p.scheduleBuild2(0).get();
+
+        listener = StreamTaskListener.fromStdout();
+        assertEquals(
+                "call1 call1 5 call2",
+                TokenMacro.expand(
+                        b,
+                        listener,
+                        "${COUNTER, a=\"x\", b=1} ${COUNTER, b=1, a=\"x\"} ${#COUNTER, a=\"x\", b=1} ${COUNTER}",
+                        true,
+                        Collections.singletonList(new CountingMacro(true))));
+        assertEquals(
+                "call1 call2",
+                TokenMacro.expand(
+                        b,
+                        listener,
+                        "${COUNTER} ${COUNTER}",
+                        true,
+                        Collections.singletonList(new CountingMacro(false))));
+    }
+
+    @Test
+    void testIdenticalStreamedTokensAreEvaluatedOnce(JenkinsRule j) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject("foo");
+        FreeStyleBuild b = p.scheduleBuild2(0).get();
+
+        listener = StreamTaskListener.fromStdout();
+        // only written straight to an output given by the caller
+        assertEquals(
+                "call1 call1",
+                TokenMacro.expand(
+                        b,
+                        listener,
+                        "${COUNTER} ${COUNTER}",
+                        true,
+                        Collections.singletonList(new StreamingCountingMacro(true))));
+
+        StringWriter out = new StringWriter();
+        TokenMacro.expandTo(
+                b,
+                b.getWorkspace(),
+                listener,
+                new StringReader("${COUNTER} ${COUNTER}"),
+                out,
+                true,
+                Collections.singletonList(new StreamingCountingMacro(true)));
+        assertEquals("stream1 stream1", out.toString());
+
+        out = new StringWriter();
+        TokenMacro.expandTo(
+                b,
+                b.getWorkspace(),
+                listener,
+                new StringReader("${COUNTER} ${COUNTER}"),
+                out,
+                true,
+                Collections.singletonList(new StreamingCountingMacro(false)));
+        assertEquals("stream1 stream2", out.toString());
+    }
+
+    @Test
+    void testInvalidTemplateFailsBeforeEvaluation(JenkinsRule j) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject("foo");
+        FreeStyleBuild b = p.scheduleBuild2(0).get();
+
+        listener = StreamTaskListener.fromStdout();
+        CountingMacro counter = new CountingMacro(false);
+        List<TokenMacro> privateMacros = Collections.singletonList(counter);
+        assertThrows(
+                MacroEvaluationException.class,
+                () -> TokenMacro.expand(b, listener, "${COUNTER} ${ENV, Var=\"HOME\"}", true, privateMacros));
+        assertThrows(
+                MacroEvaluationException.class,
+                () -> TokenMacro.expand(b, listener, "${COUNTER} ${UNKNOWN}", true, privateMacros));
+        assertEquals(0, counter.calls);
+
+        assertEquals("call1 ${UNKNOWN}", TokenMacro.expand(b, listener, "${COUNTER} ${UNKNOWN}", false, privateMacros));
+    }
+
+    @Test
+    void testLogIsReadOnceForAllLogMacros(JenkinsRule j) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject("foo");
+        FreeStyleBuild b = p.scheduleBuild2(0).get();
+
+        listener = StreamTaskListener.fromStdout();
+        LogLinesMacro macro = new LogLinesMacro();
+        List<TokenMacro> privateMacros = Collections.singletonList(macro);
+        assertEquals(
+                "1 1 1",
+                TokenMacro.expand(
+                        b,
+                        listener,
+                        "${LOG_LINES, text=\"Finished\"} ${LOG_LINES, text=\"SUCCESS\"} "
+                                + "${LOG_LINES, text=\"Finished\"}",
+                        false,
+                        privateMacros));
+        assertEquals(0, macro.evaluations);
+
+        assertEquals("1", TokenMacro.expand(b, listener, "${LOG_LINES, text=\"Finished\"}", false, privateMacros));
+        assertEquals(1, macro.evaluations);
+    }
+
+    @Test
+    void testLogMacrosAreNotCachedWhileTheLogIsWritten(JenkinsRule j) throws Exception {
+        FreeStyleProject p = j.createFreeStyleProject("foo");
+        FreeStyleBuild b = j.buildAndAssertSuccess(p);
+
+        PostProductionExpansion expansion = j.jenkins.getExtensionList(RunListener.class).get(PostProductionExpansion.class);
+        assertEquals(Arrays.asList("", "Email was triggered for: Success\n"), expansion.results);
+        listener = StreamTaskListener.fromStdout();
+        assertEquals("Email was triggered for: Success\n", TokenMacro.expand(b, listener, PostProductionExpansion.TEMPLATE));
+    }
+
+    @Test
+    void testValidate(JenkinsRule j) {
+        List<TokenMacro> privateMacros = Collections.singletonList(new PrivateTestMacro());
+        assertEquals(
+                Collections.emptyList(),
+                TokenMacro.validate("${BUILD_NUMBER} ${ENV, var=\"HOME\", default=\"x\"} ${TEST_PRIVATE}", privateMacros));
+        assertEquals(
+                Arrays.asList(
+                        "Unrecognized macro 'TEST_PRIVATE'",
+                        "Undefined parameter Var in token ENV",
+                        "Parameter var in token ENV is required but was not specfified",
+                        "Unrecognized macro 'UNKNOWN'"),
+                TokenMacro.validate("${TEST_PRIVATE} ${ENV, Var=\"HOME\"} ${UNKNOWN} ${UNKNOWN}"));
+        assertEquals(1, TokenMacro.validate("${ENV, var=\"HOME").size());
+        assertEquals(Collections.emptyList(), TokenMacro.validate(""));
+    }
+
     @Test
     void testException(JenkinsRule j) throws Exception {
         FreeStyleProject p = j.createFreeStyleProject("foo");
@@ -288,6 +488,151 @@ class TokenMacroTest {
         }
     }
 
+    private static class LogLinesMacro extends TokenMacro {
+        private int evaluations;
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return macroName.equals("LOG_LINES");
+        }
+
+        @Override
+        public boolean isDeterministic() {
+            return true;
+        }
+
+        @Override
+        public String evaluate(
+                AbstractBuild<?, ?> context,
+                TaskListener listener,
+                String macroName,
+                Map<String, String> arguments,
+                ListMultimap<String, String> argumentMultimap)
+                throws IOException {
+            evaluations++;
+            return LogScanner.scan(
+                    context, createLogConsumer(context, listener, macroName, arguments, argumentMultimap));
+        }
+
+        @Override
+        public LogScanner.Consumer createLogConsumer(
+                Run<?, ?> run,
+                TaskListener listener,
+                String macroName,
+                Map<String, String> arguments,
+                ListMultimap<String, String> argumentMultimap) {
+            String text = arguments.get("text");
+            return new LogScanner.Consumer() {
+                private int count;
+
+                @Override
+                public boolean accept(LogScanner.Line line) {
+                    if (line.getText().contains(text)) {
+                        count++;
+                    }
+                    return true;
+                }
+
+                @Override
+                public String getResult() {
+                    return String.valueOf(count);
+                }
+            };
+        }
+    }
+
+    private static class CountingMacro extends TokenMacro {
+        private final boolean deterministic;
+        private int calls;
+
+        CountingMacro(boolean deterministic) {
+            this.deterministic = deterministic;
+        }
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return macroName.equals("COUNTER");
+        }
+
+        @Override
+        public boolean isDeterministic() {
+            return deterministic;
+        }
+
+        @Override
+        public String evaluate(
+                AbstractBuild<?, ?> context,
+                TaskListener listener,
+                String macroName,
+                Map<String, String> arguments,
+                ListMultimap<String, String> argumentMultimap) {
+            return "call" + ++calls;
+        }
+    }
+
+    private static class StreamingCountingMacro extends CountingMacro {
+
+        StreamingCountingMacro(boolean deterministic) {
+            super(deterministic);
+        }
+
+        @Override
+        public void evaluate(
+                Run<?, ?> run,
+                FilePath workspace,
+                TaskListener listener,
+                String macroName,
+                Map<String, String> arguments,
+                ListMultimap<String, String> argumentMultimap,
+                Appendable out)
+                throws IOException {
+            out.append("stream").append(String.valueOf(++super.calls));
+        }
+    }
+
+    private static class ConcurrentTestMacro extends TokenMacro {
+        private final String name;
+        private final CountDownLatch latch;
+
+        ConcurrentTestMacro(String name, CountDownLatch latch) {
+            this.name = name;
+            this.latch = latch;
+        }
+
+        @Override
+        public boolean acceptsMacroName(String macroName) {
+            return macroName.equals(name);
+        }
+
+        @Override
+        public List<String> getAcceptedMacroNames() {
+            return Collections.singletonList(name);
+        }
+
+        @Override
+        public boolean supportsConcurrentEvaluation() {
+            return true;
+        }
+
+        @Override
+        public String evaluate(
+                AbstractBuild<?, ?> context,
+                TaskListener listener,
+                String macroName,
+                Map<String, String> arguments,
+                ListMultimap<String, String> argumentMultimap)
+                throws MacroEvaluationException, InterruptedException {
+            if (macroName.equals("BROKEN")) {
+                throw new MacroEvaluationException("broken");
+            }
+            latch.countDown();
+            if (!latch.await(10, TimeUnit.SECONDS)) {
+                throw new MacroEvaluationException("not evaluated concurrently");
+            }
+            return macroName;
+        }
+    }
+
     @TestExtension
     public static class TestMacro extends TokenMacro {
         private static final String MACRO_NAME = "TEST";
@@ -367,4 +712,30 @@ class TokenMacroTest {
             return argumentMultimap.toString();
         }
     }
+
+    /**
+     * Expands a log macro before and after writing to the log once the build finished, the way e-mail notifiers
+     * running after the build is finalized do.
+     */
+    @TestExtension("testLogMacrosAreNotCachedWhileTheLogIsWritten")
+    public static class PostProductionExpansion extends RunListener<FreeStyleBuild> {
+        static final String TEMPLATE = "${BUILD_LOG_REGEX, regex=\"^Email was triggered\", showTruncatedLines=false}";
+
+        final List<String> results = new ArrayList<>();
+
+        @Override
+        public void onCompleted(FreeStyleBuild build, TaskListener listener) {
+            try {
+                // post production: no longer building, but the log is still open
+                assertFalse(build.isBuilding());
+                assertTrue(build.isLogUpdated());
+                results.add(TokenMacro.expand(build, listener, TEMPLATE));
+                listener.getLogger().println("Email was triggered for: Success");
+                listener.getLogger().flush();
+                results.add(TokenMacro.expand(build, listener, TEMPLATE));
+            } catch (MacroEvaluationException | IOException | InterruptedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
 }
@@ -0,0 +1,69 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.tokenmacro.transform.BeginningOrEndMatchTransorm;
+import org.jenkinsci.plugins.tokenmacro.transform.ContentLengthTransform;
+import org.jenkinsci.plugins.tokenmacro.transform.SubstringTransform;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Each of the {@link Transform}s on its own, plus a fused substring and length.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TransformBenchmark {
+
+    @Param({"16", "4096"})
+    public int length;
+
+    private String input;
+
+    private final Transform contentLength = new ContentLengthTransform();
+    private final Transform substring = new SubstringTransform(2, -2);
+    private final Transform substringLength = substring.fuse(contentLength);
+    private final Transform beginningMatch = new BeginningOrEndMatchTransorm("origin/", true);
+    private final Transform endMatch = new BeginningOrEndMatchTransorm("/[a-z]+", false);
+
+    @Setup
+    public void setup() {
+        StringBuilder sb = new StringBuilder("origin/");
+        while (sb.length() < length) {
+            sb.append("feature-");
+        }
+        sb.setLength(length);
+        input = sb.append("/master").toString();
+    }
+
+    @Benchmark
+    public String contentLength() throws Exception {
+        return contentLength.transform(input);
+    }
+
+    @Benchmark
+    public String substring() throws Exception {
+        return substring.transform(input);
+    }
+
+    @Benchmark
+    public String substringLength() throws Exception {
+        return substringLength.transform(input);
+    }
+
+    @Benchmark
+    public String beginningMatch() throws Exception {
+        return beginningMatch.transform(input);
+    }
+
+    @Benchmark
+    public String endMatch() throws Exception {
+        return endMatch.transform(input);
+    }
+}
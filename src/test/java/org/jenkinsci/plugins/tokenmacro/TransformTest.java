@@ -4,6 +4,9 @@ import hudson.Launcher;
 import hudson.model.*;
 import hudson.util.StreamTaskListener;
 import java.io.IOException;
+import org.jenkinsci.plugins.tokenmacro.transform.BeginningOrEndMatchTransorm;
+import org.jenkinsci.plugins.tokenmacro.transform.ContentLengthTransform;
+import org.jenkinsci.plugins.tokenmacro.transform.SubstringTransform;
 
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.JenkinsRule;
@@ -12,6 +15,9 @@ import org.jvnet.hudson.test.TestExtension;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 /**
  * Created by acearl on 2/24/2016.
@@ -92,6 +98,18 @@ class TransformTest {
                 "${PROPFILE: -7:-2,file=\"test.properties\",property=\"test.property\"}"));
     }
 
+    @Test
+    void testSubstringExpansionTransformIsReusable(JenkinsRule j) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("foo");
+        FreeStyleBuild b = project.scheduleBuild2(0).get();
+
+        // the compiled template is cached, so the second expansion runs the very same transform instances
+        for (int i = 0; i < 2; i++) {
+            assertEquals("bcdef", TokenMacro.expand(
+                    b, StreamTaskListener.fromStdout(), "${DUMMY: -7:-2, arg=\"01234567890abcdefgh\"}"));
+        }
+    }
+
     @Test
     void testBeginningOrEndingMatch(JenkinsRule j) throws Exception {
         FreeStyleProject project = j.createFreeStyleProject("foo");
@@ -105,6 +123,49 @@ class TransformTest {
                 b, StreamTaskListener.fromStdout(), "${DUMMY%/master\\,foo, arg=\"origin/master,foo\"}"));
     }
 
+    @Test
+    void testLengthOfTransformedContent(JenkinsRule j) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject("foo");
+        FreeStyleBuild b = project.scheduleBuild2(0).get();
+
+        assertEquals("2", TokenMacro.expand(b, StreamTaskListener.fromStdout(), "${#DUMMY:7:2, arg=\"01234567890abcdefgh\"}"));
+        assertEquals("5", TokenMacro.expand(b, StreamTaskListener.fromStdout(), "${#DUMMY: -7:-2, arg=\"01234567890abcdefgh\"}"));
+        assertEquals("6", TokenMacro.expand(b, StreamTaskListener.fromStdout(), "${#DUMMY#origin/, arg=\"origin/master\"}"));
+        assertEquals("6", TokenMacro.expand(b, StreamTaskListener.fromStdout(), "${#DUMMY%/master, arg=\"origin/master\"}"));
+    }
+
+    @Test
+    void testFusedTransformsMatchSequentialOnes() throws Exception {
+        String input = "01234567890abcdefgh";
+        Transform length = new ContentLengthTransform();
+        for (int offset = -25; offset <= 25; offset++) {
+            for (int len : new int[] {Integer.MAX_VALUE, -25, -5, -1, 0, 1, 5, 25}) {
+                Transform substring = new SubstringTransform(offset, len);
+                Transform fused = substring.fuse(length);
+                assertNotNull(fused);
+
+                String expected;
+                try {
+                    expected = length.transform(substring.transform(input));
+                } catch (MacroEvaluationException | StringIndexOutOfBoundsException e) {
+                    assertThrows(e.getClass(), () -> fused.transform(input));
+                    continue;
+                }
+                assertEquals(expected, fused.transform(input), offset + ":" + len);
+            }
+        }
+
+        for (boolean beginning : new boolean[] {true, false}) {
+            for (String pattern : new String[] {"0123", "[a-z]+", "x", ""}) {
+                Transform match = new BeginningOrEndMatchTransorm(pattern, beginning);
+                Transform fused = match.fuse(length);
+                assertNotNull(fused);
+                assertEquals(length.transform(match.transform(input)), fused.transform(input));
+            }
+        }
+        assertNull(length.fuse(length));
+    }
+
     @TestExtension
     public static class DummyMacro extends DataBoundTokenMacro {
         private static final String MACRO_NAME = "DUMMY";
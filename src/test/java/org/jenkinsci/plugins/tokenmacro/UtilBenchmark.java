@@ -0,0 +1,40 @@
+package org.jenkinsci.plugins.tokenmacro;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * {@link Util#printf} with a format as used for the matched lines of the log macros.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UtilBenchmark {
+
+    private static final String FORMAT = "[%s] line %n matched\\t%%%x\\n";
+
+    private static final Util.PrintfSpec SPEC = (buf, formatChar) -> {
+        switch (formatChar) {
+            case 's':
+                buf.append("ERROR: compilation failed in module core");
+                return true;
+            case 'n':
+                buf.append(1234);
+                return true;
+            default:
+                return false;
+        }
+    };
+
+    @Benchmark
+    public String printf() {
+        StringBuffer buf = new StringBuffer();
+        Util.printf(buf, FORMAT, SPEC);
+        return buf.toString();
+    }
+}
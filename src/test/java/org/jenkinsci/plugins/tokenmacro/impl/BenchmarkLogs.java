@@ -0,0 +1,176 @@
+package org.jenkinsci.plugins.tokenmacro.impl;
+
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.console.ConsoleNote;
+import hudson.model.AbstractBuild;
+import hudson.model.Run;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Generates build logs for the log macro benchmarks.
+ *
+ * <p>
+ * The content only depends on the parameters, so a log is generated once and kept in {@code target/benchmark-logs}
+ * for later runs. Lines look like the output of a typical build. A fraction of them are errors followed by a short
+ * stack trace, which the macros in the benchmarks look for, and a fraction start with an encoded console note, as
+ * left by e.g. hyperlinks or timestamps. A single start/end pair of markers surrounds a section in the middle of the
+ * log.
+ */
+public final class BenchmarkLogs {
+
+    static final String ERROR_PREFIX = "ERROR: ";
+    static final String START_MARKER = "=== excerpt start ===";
+    static final String END_MARKER = "=== excerpt end ===";
+
+    private static final long SEED = 4711;
+
+    private static final String[] WORDS = {
+        "compiling", "module", "core", "downloading", "from", "central", "artifact", "resolved", "tests", "run",
+        "build", "target", "classes", "copying", "resources", "plugin", "version", "jar", "skipped", "warning"
+    };
+
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private BenchmarkLogs() {}
+
+    /**
+     * Parses sizes like {@code 10MB} or {@code 2GB}.
+     */
+    static long parseSize(String size) {
+        String s = size.trim().toUpperCase(Locale.ENGLISH);
+        long unit = 1;
+        if (s.endsWith("GB")) {
+            unit = 1024L * 1024 * 1024;
+        } else if (s.endsWith("MB")) {
+            unit = 1024L * 1024;
+        } else if (s.endsWith("KB")) {
+            unit = 1024;
+        }
+        return Long.parseLong(s.replaceAll("[^0-9]", "")) * unit;
+    }
+
+    /**
+     * Returns a log with the given properties, generating it if needed.
+     *
+     * @param size approximate size, e.g. {@code 500MB}
+     * @param matchDensity fraction of the lines that are errors
+     * @param lineLengths {@code short} (20-60 chars), {@code long} (200-2000 chars) or {@code mixed} (mostly 40-120
+     *     chars, with an occasional line of several kB)
+     * @param noteDensity fraction of the lines starting with a console note
+     */
+    public static Path get(String size, double matchDensity, String lineLengths, double noteDensity)
+            throws IOException {
+        Path dir = Paths.get("target", "benchmark-logs");
+        Path log = dir.resolve(String.format(
+                Locale.ENGLISH, "%s-%s-%s-%s-%d.log", size, matchDensity, lineLengths, noteDensity, SEED));
+        if (Files.exists(log)) {
+            return log;
+        }
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, "log", ".tmp");
+        try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            write(w, parseSize(size), matchDensity, lineLengths, noteDensity);
+        }
+        Files.move(tmp, log, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return log;
+    }
+
+    private static void write(
+            BufferedWriter w, long size, double matchDensity, String lineLengths, double noteDensity)
+            throws IOException {
+        Random random = new Random(SEED);
+        StringBuilder line = new StringBuilder();
+        long written = 0;
+        boolean excerptStarted = false;
+        boolean excerptEnded = false;
+        while (written < size) {
+            line.setLength(0);
+            if (!excerptStarted && written >= size / 2) {
+                line.append(START_MARKER);
+                excerptStarted = true;
+            } else if (excerptStarted && !excerptEnded && written >= size / 2 + size / 100) {
+                line.append(END_MARKER);
+                excerptEnded = true;
+            } else {
+                if (random.nextDouble() < noteDensity) {
+                    appendNote(line, random);
+                }
+                if (random.nextDouble() < matchDensity) {
+                    line.append(ERROR_PREFIX);
+                    appendWords(line, random, 40 + random.nextInt(80));
+                    for (int i = random.nextInt(4); i > 0; i--) {
+                        line.append("\n\tat org.example.Module").append(random.nextInt(100)).append(".run(Module.java:")
+                                .append(random.nextInt(1000)).append(')');
+                    }
+                } else {
+                    appendWords(line, random, lineLength(random, lineLengths));
+                }
+            }
+            line.append('\n');
+            w.append(line);
+            written += line.length();
+        }
+    }
+
+    private static int lineLength(Random random, String lineLengths) {
+        switch (lineLengths) {
+            case "short":
+                return 20 + random.nextInt(40);
+            case "long":
+                return 200 + random.nextInt(1800);
+            case "mixed":
+                return random.nextInt(100) == 0 ? 1000 + random.nextInt(4000) : 40 + random.nextInt(80);
+            default:
+                throw new IllegalArgumentException("Unknown line lengths: " + lineLengths);
+        }
+    }
+
+    private static void appendWords(StringBuilder line, Random random, int length) {
+        int end = line.length() + length;
+        while (line.length() < end) {
+            line.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        line.setLength(end);
+    }
+
+    /**
+     * Appends something shaped like a serialized note: the preamble, a base64 payload and the postamble.
+     */
+    private static void appendNote(StringBuilder line, Random random) {
+        line.append(ConsoleNote.PREAMBLE_STR);
+        for (int i = 100 + random.nextInt(150); i > 0; i--) {
+            line.append(BASE64[random.nextInt(BASE64.length)]);
+        }
+        line.append("==").append(ConsoleNote.POSTAMBLE_STR);
+    }
+
+    /**
+     * A completed run with the given log, for the macros that read it through the run.
+     */
+    public static Run<?, ?> run(Path log) throws IOException {
+        File file = log.toFile();
+        Run<?, ?> run = mock(AbstractBuild.class);
+        when(run.getLogFile()).thenReturn(file);
+        when(run.getCharset()).thenReturn(StandardCharsets.UTF_8);
+        when(run.getLogInputStream()).thenAnswer(invocation -> Files.newInputStream(log));
+        when(run.getLogReader())
+                .thenAnswer(invocation -> new InputStreamReader(Files.newInputStream(log), StandardCharsets.UTF_8));
+        // the tail of the log is read by core, as it would be for a real run
+        when(run.getLog(anyInt())).thenCallRealMethod();
+        return run;
+    }
+}
@@ -45,6 +45,17 @@ class BuildLogMacroTest {
         assertEquals(String.join("\n", testLog) + "\n", content);
     }
 
+    @Test
+    void testGetContent_shouldWriteToOutput() throws Exception {
+        when(build.getLog(anyInt())).thenReturn(testLog);
+        buildLogMacro.truncTailLines = 1;
+
+        StringBuilder out = new StringBuilder("before\n");
+        buildLogMacro.evaluate(build, null, listener, BuildLogMacro.MACRO_NAME, out);
+
+        assertEquals("before\nline 1\nline 2\n", out.toString());
+    }
+
     @Test
     void testGetContent_shouldTruncateWhenLineLimitIsHit() throws Exception {
         buildLogMacro.maxLines = 2;
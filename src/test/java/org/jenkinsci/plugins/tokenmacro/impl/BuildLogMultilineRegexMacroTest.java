@@ -1,6 +1,7 @@
 package org.jenkinsci.plugins.tokenmacro.impl;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.*;
 
 import hudson.console.ConsoleNote;
@@ -9,8 +10,13 @@ import hudson.model.TaskListener;
 import hudson.util.StreamTaskListener;
 import java.io.BufferedReader;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.jenkinsci.plugins.tokenmacro.MappedLogCharSequence;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 class BuildLogMultilineRegexMacroTest {
 
@@ -193,6 +199,62 @@ class BuildLogMultilineRegexMacroTest {
         assertEquals("<pre>\n<b style=\"color: red\">error</b>\n</pre>\n", result);
     }
 
+    @Test
+    void testGetContent_maxSegmentLength() throws Exception {
+        StringBuilder log = new StringBuilder();
+        for (int i = 0; i < 30000; i++) {
+            log.append("line #").append(i).append('\n');
+            if (i % 7000 == 0) {
+                log.append("start:\na\nb\nend.\n");
+            }
+        }
+        buildLogMultilineRegexMacro.regex = "(?s)start:.*?end\\.";
+        final String whole =
+                buildLogMultilineRegexMacro.getContent(new BufferedReader(new StringReader(log.toString())));
+        assertEquals(5, whole.split("start:", -1).length - 1);
+
+        // the log is several times the least window matched at once, so the matches are taken from the window
+        buildLogMultilineRegexMacro.maxSegmentLength = 100;
+        assertEquals(
+                whole, buildLogMultilineRegexMacro.getContent(new BufferedReader(new StringReader(log.toString()))));
+    }
+
+    @Test
+    void testGetContent_mappedLog(@TempDir Path dir) throws Exception {
+        final String log = "line #1\r\nline #2\r\nstart:\r\n" + ConsoleNote.PREAMBLE_STR + "AAAB"
+                + ConsoleNote.POSTAMBLE_STR + "é\r\n€\r\nend.\r\nd\r\n";
+        Path logFile = dir.resolve("log");
+        Files.write(logFile, log.getBytes(StandardCharsets.UTF_8));
+        when(build.getLogFile()).thenReturn(logFile.toFile());
+        when(build.getCharset()).thenReturn(StandardCharsets.UTF_8);
+        buildLogMultilineRegexMacro.regex = "(?s)start:.*end\\.";
+
+        final String result =
+                buildLogMultilineRegexMacro.evaluate(build, listener, BuildLogMultilineRegexMacro.MACRO_NAME);
+        assertEquals("[...truncated 2 lines...]\nstart:\r\né\r\n€\r\nend.\n[...truncated 1 lines...]\n", result);
+        if (MappedLogCharSequence.isSupported(build)) {
+            verify(build, never()).getLogReader();
+            verify(build, never()).getLogInputStream();
+        }
+    }
+
+    @Test
+    void testGetContent_maxSegmentLengthCutsLongerSegments() throws Exception {
+        StringBuilder log = new StringBuilder("start:\n");
+        for (int i = 0; i < 30000; i++) {
+            log.append("line #").append(i).append('\n');
+        }
+        buildLogMultilineRegexMacro.regex = "(?s)start:.*";
+        buildLogMultilineRegexMacro.showTruncatedLines = false;
+        buildLogMultilineRegexMacro.maxSegmentLength = 100;
+
+        final String result =
+                buildLogMultilineRegexMacro.getContent(new BufferedReader(new StringReader(log.toString())));
+        final String segment = result.substring(0, result.length() - 1);
+        assertTrue(segment.length() < log.length(), "the segment is cut short");
+        assertTrue(log.toString().startsWith(segment));
+    }
+
     @Test
     void testGetContent_shouldStripOutConsoleNotes() throws Exception {
         // See HUDSON-7402
@@ -8,14 +8,19 @@ import hudson.console.ConsoleNote;
 import hudson.model.AbstractBuild;
 import hudson.model.TaskListener;
 import hudson.util.StreamTaskListener;
+import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
 import org.apache.commons.io.IOUtils;
+import org.jenkinsci.plugins.tokenmacro.LogChunks;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.jvnet.hudson.test.Issue;
 
 class BuildLogRegexMacroTest {
@@ -269,6 +274,65 @@ class BuildLogRegexMacroTest {
                         + TRUNC_1_LINE_HTML + "<pre>\n<b>3</b>\n</pre>\n");
     }
 
+    @Test
+    void testGetContent_maxTailMatches_readsLogBackwards(@TempDir Path dir) throws Exception {
+        Path log = dir.resolve("log");
+        Files.write(log, "a\n1\nb\n2\nc\n3\n".getBytes(StandardCharsets.UTF_8));
+        when(build.getLogFile()).thenReturn(log.toFile());
+        when(build.getCharset()).thenReturn(StandardCharsets.UTF_8);
+        buildLogRegexMacro.regex = "\\d";
+        buildLogRegexMacro.showTruncatedLines = true;
+        buildLogRegexMacro.maxTailMatches = 2;
+
+        assertEquals(
+                "2\n" + TRUNC_1_LINE_TEXT + "3\n",
+                buildLogRegexMacro.evaluate(build, listener, BuildLogRegexMacro.MACRO_NAME));
+
+        buildLogRegexMacro.linesBefore = 1;
+        buildLogRegexMacro.maxTailMatches = 3;
+        assertEquals("2\nc\n3\n", buildLogRegexMacro.evaluate(build, listener, BuildLogRegexMacro.MACRO_NAME));
+        verify(build, never()).getLogReader();
+    }
+
+    @Test
+    void testGetContent_parallelChunks(@TempDir Path dir) throws Exception {
+        final String log =
+                "1\n2\n3\n4\n5\n6 ERROR\n7\n8\n9 ERROR\n10\n11\n12\n13\n14\n15\n16\n17\n18 ERROR\n19\n20\n21\n22\n23\n";
+        Path logFile = dir.resolve("log");
+        Files.write(logFile, log.getBytes(StandardCharsets.UTF_8));
+        when(build.getLogFile()).thenReturn(logFile.toFile());
+        when(build.getCharset()).thenReturn(StandardCharsets.UTF_8);
+        buildLogRegexMacro.linesBefore = 3;
+        buildLogRegexMacro.linesAfter = 2;
+        buildLogRegexMacro.maxMatches = 2;
+
+        try (LogChunks chunks = LogChunks.open(build, 5)) {
+            assertEquals(
+                    TRUNC_2_LINE_TEXT + "3\n4\n5\n6 ERROR\n7\n8\n9 ERROR\n10\n11\n[...truncated 12 lines...]\n",
+                    buildLogRegexMacro.getParallelContent(chunks));
+        }
+
+        // the context lines and the matches counted across the borders of the chunks
+        for (int maxMatches = 0; maxMatches <= 3; maxMatches++) {
+            for (boolean greedy : new boolean[] {false, true}) {
+                for (boolean showTruncatedLines : new boolean[] {false, true}) {
+                    buildLogRegexMacro.maxMatches = maxMatches;
+                    buildLogRegexMacro.greedy = greedy;
+                    buildLogRegexMacro.showTruncatedLines = showTruncatedLines;
+                    final String expected = buildLogRegexMacro.getContent(new BufferedReader(new StringReader(log)));
+                    for (long chunkSize : new long[] {1, 4, 20, 1000}) {
+                        try (LogChunks chunks = LogChunks.open(build, chunkSize)) {
+                            assertEquals(
+                                    expected,
+                                    buildLogRegexMacro.getParallelContent(chunks),
+                                    maxMatches + " " + greedy + " " + showTruncatedLines + " " + chunkSize);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
     public void testGetContent_matchedBlocks_as_html_showing_truncated_lines_with_maxTailMatches(
             int maxTailMatches, String expectedResult) throws Exception {
         when(build.getLogReader()).thenReturn(new StringReader("a\nb\n1\n2\nc\nd\n3\n4\ne\nf\n5\n6\n"));
@@ -437,6 +501,38 @@ class BuildLogRegexMacroTest {
         assertEquals("<pre>\n<b style=\"color: red\">&lt;error&gt;</b>\n</pre>\n", result);
     }
 
+    @Test
+    void testGetContent_severalRegexes() throws Exception {
+        when(build.getLogReader())
+                .thenReturn(new StringReader("ok\nFoo.java:3: error: x\nTests run: 2, Failures: 1\nok\n"
+                        + "java.lang.OutOfMemoryError\nFoo.java:9: error: y\n"));
+        final Map<String, String> arguments = new HashMap<>();
+        arguments.put("showTruncatedLines", "false");
+        final ArrayListMultimap<String, String> listMultimap = ArrayListMultimap.create();
+        listMultimap.put("showTruncatedLines", "false");
+        listMultimap.put("regex", "\\.java:\\d+: error:");
+        listMultimap.put("regex", "Failures: [1-9]");
+        listMultimap.put("regex", "OutOfMemoryError");
+        listMultimap.put("matchedLineHtmlStyle", "color: red");
+        listMultimap.put("matchedLineHtmlStyle", "color: blue");
+        listMultimap.put("label", "[javac] ");
+        listMultimap.put("label", "[tests] ");
+        for (String key : listMultimap.keySet()) {
+            arguments.put(key, listMultimap.get(key).get(0));
+        }
+
+        final String result = buildLogRegexMacro.evaluate(
+                build, null, listener, BuildLogRegexMacro.MACRO_NAME, arguments, listMultimap);
+
+        // the third expression has no style nor label of its own, it gets the first ones
+        assertEquals(
+                "<pre>\n<b style=\"color: red\">[javac] Foo.java:3: error: x</b>\n"
+                        + "<b style=\"color: blue\">[tests] Tests run: 2, Failures: 1</b>\n"
+                        + "<b style=\"color: red\">[javac] java.lang.OutOfMemoryError</b>\n"
+                        + "<b style=\"color: red\">[javac] Foo.java:9: error: y</b>\n</pre>\n",
+                result);
+    }
+
     @Test
     void testGetContent_shouldStripOutConsoleNotes() throws Exception {
         // See HUDSON-7402
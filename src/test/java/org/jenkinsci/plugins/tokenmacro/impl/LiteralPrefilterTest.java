@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.tokenmacro.impl;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+class LiteralPrefilterTest {
+
+    @Test
+    void testDefaultBuildLogRegex() {
+        LiteralPrefilter prefilter = LiteralPrefilter.of(new BuildLogRegexMacro().regex);
+        assertFalse(prefilter.isEmpty());
+        assertTrue(prefilter.mightMatch("BUILD FAILED"));
+        assertTrue(prefilter.mightMatch("[ERROR] Tests run: 3"));
+        assertTrue(prefilter.mightMatch("Unresolved dependency"));
+        assertFalse(prefilter.mightMatch("[INFO] Compiling 12 source files"));
+        assertFalse(prefilter.mightMatch(""));
+    }
+
+    @Test
+    void testLiterals() {
+        assertTrue(LiteralPrefilter.of("Error").mightMatch("Error: x"));
+        assertFalse(LiteralPrefilter.of("Error").mightMatch("error: x"));
+        assertTrue(LiteralPrefilter.of("(?i:err)or").mightMatch("ERROR: x"));
+        assertTrue(LiteralPrefilter.of("\\Qa.b\\E").mightMatch("xa.by"));
+        assertFalse(LiteralPrefilter.of("\\Qa.b\\E").mightMatch("axb"));
+        assertFalse(LiteralPrefilter.of("a\\.b").mightMatch("axb"));
+        assertFalse(LiteralPrefilter.of("warn(ing)?s? [0-9]+").mightMatch("no problem"));
+        assertFalse(LiteralPrefilter.of("^(BUILD|TEST) FAILURE$").mightMatch("BUILD SUCCESS"));
+        assertTrue(LiteralPrefilter.of("^(BUILD|TEST) FAILURE$").mightMatch("TEST FAILURE"));
+    }
+
+    @Test
+    void testNothingRequired() {
+        for (String regex : Arrays.asList(
+                "\\d+", "a|\\d", "(foo)?", "x*", "a{0,3}", "(?=abc)", ".", "[a-z]+", "(?x) foo", "(?u)foo", "\\x41")) {
+            assertTrue(LiteralPrefilter.of(regex).isEmpty(), regex);
+        }
+    }
+
+    @Test
+    void testNeverFiltersOutAMatch() {
+        List<String> regexes = Arrays.asList(
+                new BuildLogRegexMacro().regex,
+                "ab?c",
+                "(?i)x+y",
+                "a(b|c)+d",
+                "(?<name>fo+)bar",
+                "[]a]b",
+                "[a[bc]]d",
+                "a\\b{g}b",
+                "\\p{Lu}rror|warn",
+                "(?:a|b)(?-i)C");
+        List<String> lines = Arrays.asList(
+                "", "ac", "abc", "XXY", "xy", "abbcd", "acd", "foobar", "fooobar", "]b", "cd", "ab", "Error", "warning",
+                "aC", "bC", "BUILD FAILED", "failure");
+        for (String regex : regexes) {
+            LiteralPrefilter prefilter = LiteralPrefilter.of(regex);
+            for (String line : lines) {
+                if (Pattern.compile(regex).matcher(line).find()) {
+                    assertTrue(prefilter.mightMatch(line), regex + " matches " + line);
+                }
+            }
+        }
+    }
+}
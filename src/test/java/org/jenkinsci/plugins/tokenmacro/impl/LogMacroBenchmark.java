@@ -0,0 +1,263 @@
+package org.jenkinsci.plugins.tokenmacro.impl;
+
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import com.google.common.io.CountingInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jenkinsci.plugins.tokenmacro.LogChunks;
+import org.jenkinsci.plugins.tokenmacro.LogScanner;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The log macros scanning a whole generated log, see {@link BenchmarkLogs}.
+ *
+ * <p>
+ * Each operation is one evaluation of the macro. Next to the operations per second, the {@code megabytes} counter
+ * gives the throughput in MB/s, counting the bytes of the log actually read, and the GC profiler of
+ * {@code BenchmarkRunner} gives the allocation rate. Where the macros have a {@code getContent(BufferedReader)} entry
+ * point it is used directly, the others read the log through the run.
+ *
+ * <p>
+ * Only 10 MB logs are generated by default. Each size adds 12 logs, so run the larger ones explicitly, e.g. with
+ * {@code mvn test -Dbenchmark -Dbenchmark.param.size=500MB,2GB}, the same as JMH's {@code -p size=500MB,2GB}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LogMacroBenchmark {
+
+    @Param({"10MB"})
+    public String size;
+
+    @Param({"0.001", "0.05"})
+    public double matchDensity;
+
+    @Param({"short", "mixed", "long"})
+    public String lineLengths;
+
+    @Param({"0", "0.2"})
+    public double noteDensity;
+
+    private static final double MEGABYTE = 1024.0 * 1024.0;
+
+    private Path log;
+    private double megabytes;
+    private Run<?, ?> run;
+
+    @Setup
+    public void setup() throws IOException {
+        log = BenchmarkLogs.get(size, matchDensity, lineLengths, noteDensity);
+        megabytes = Files.size(log) / MEGABYTE;
+        run = BenchmarkLogs.run(log);
+    }
+
+    /**
+     * Counts the megabytes of log scanned, reported by JMH per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Throughput {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    /**
+     * Opens the log, adding the bytes read from it to the throughput once it is closed. Macros that are done before
+     * the end of the log only count what they read.
+     */
+    private BufferedReader reader(Throughput throughput) throws IOException {
+        CountingInputStream in = new CountingInputStream(Files.newInputStream(log));
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                throughput.megabytes += in.getCount() / MEGABYTE;
+            }
+        };
+    }
+
+    @Benchmark
+    public String buildLogRegex(Throughput throughput) throws IOException {
+        BuildLogRegexMacro macro = new BuildLogRegexMacro();
+        try (BufferedReader reader = reader(throughput)) {
+            return macro.getContent(reader);
+        }
+    }
+
+    @Benchmark
+    public String buildLogRegexWithContext(Throughput throughput) throws IOException {
+        BuildLogRegexMacro macro = new BuildLogRegexMacro();
+        macro.regex = "^" + BenchmarkLogs.ERROR_PREFIX;
+        macro.linesBefore = 5;
+        macro.linesAfter = 5;
+        macro.maxMatches = 100;
+        macro.matchedLineHtmlStyle = "color: red";
+        try (BufferedReader reader = reader(throughput)) {
+            return macro.getContent(reader);
+        }
+    }
+
+    @Benchmark
+    public String buildLogRegexWithContextInParallel(Throughput throughput) throws Exception {
+        // the same as buildLogRegexWithContext, with chunks of the run's log matched on the parallel scan pool
+        BuildLogRegexMacro macro = new BuildLogRegexMacro();
+        macro.regex = "^" + BenchmarkLogs.ERROR_PREFIX;
+        macro.linesBefore = 5;
+        macro.linesAfter = 5;
+        macro.maxMatches = 100;
+        macro.matchedLineHtmlStyle = "color: red";
+        throughput.megabytes += megabytes;
+        try (LogChunks chunks = LogChunks.open(run, 8 * 1024 * 1024)) {
+            return macro.getParallelContent(chunks);
+        }
+    }
+
+    @Benchmark
+    public String buildLogSeveralRegexes(Throughput throughput) throws IOException {
+        BuildLogRegexMacro macro = new BuildLogRegexMacro();
+        macro.setRegex("^" + BenchmarkLogs.ERROR_PREFIX);
+        macro.setRegex(BenchmarkLogs.START_MARKER);
+        macro.setRegex(BenchmarkLogs.END_MARKER);
+        macro.maxMatches = 100;
+        try (BufferedReader reader = reader(throughput)) {
+            return macro.getContent(reader);
+        }
+    }
+
+    @Benchmark
+    public String buildLogRegexTail() throws Exception {
+        // the run's log is a plain file, so it is read backwards from its end until the last matches are found, and
+        // that isn't counted as throughput
+        BuildLogRegexMacro macro = new BuildLogRegexMacro();
+        macro.regex = "^" + BenchmarkLogs.ERROR_PREFIX;
+        macro.maxTailMatches = 10;
+        return macro.evaluate(run, null, TaskListener.NULL, BuildLogRegexMacro.MACRO_NAME);
+    }
+
+    @Benchmark
+    public String buildLogMultilineRegex(Throughput throughput) throws IOException {
+        BuildLogMultilineRegexMacro macro = new BuildLogMultilineRegexMacro();
+        macro.regex = "(?m)^" + BenchmarkLogs.ERROR_PREFIX + ".*(?:\\n\\tat .*)*";
+        try (BufferedReader reader = reader(throughput)) {
+            return macro.getContent(reader);
+        }
+    }
+
+    @Benchmark
+    public String buildLogMultilineRegexWindowed(Throughput throughput) throws IOException {
+        BuildLogMultilineRegexMacro macro = new BuildLogMultilineRegexMacro();
+        macro.regex = "(?m)^" + BenchmarkLogs.ERROR_PREFIX + ".*(?:\\n\\tat .*)*";
+        macro.maxSegmentLength = 16 * 1024;
+        try (BufferedReader reader = reader(throughput)) {
+            return macro.getContent(reader);
+        }
+    }
+
+    @Benchmark
+    public String buildLogMultilineRegexMapped(Throughput throughput) throws Exception {
+        // the run's log is a plain file, so it is matched through a MappedLogCharSequence
+        BuildLogMultilineRegexMacro macro = new BuildLogMultilineRegexMacro();
+        macro.regex = "(?m)^" + BenchmarkLogs.ERROR_PREFIX + ".*(?:\\n\\tat .*)*";
+        throughput.megabytes += megabytes;
+        return macro.evaluate(run, null, TaskListener.NULL, BuildLogMultilineRegexMacro.MACRO_NAME);
+    }
+
+    @Benchmark
+    public String buildLogExcerpt(Throughput throughput) throws IOException {
+        BuildLogExcerptMacro macro = new BuildLogExcerptMacro();
+        macro.start = BenchmarkLogs.START_MARKER;
+        macro.end = BenchmarkLogs.END_MARKER;
+        try (BufferedReader reader = reader(throughput)) {
+            return macro.getContent(reader);
+        }
+    }
+
+    @Benchmark
+    public String logRegex() throws Exception {
+        // finds the first match only, so only the part of the log up to it is read, and it isn't counted as throughput
+        LogRegExMacro macro = new LogRegExMacro();
+        macro.regex = "^" + BenchmarkLogs.ERROR_PREFIX + "(\\w+)";
+        macro.replacement = "\\1";
+        return macro.evaluate(run, null, TaskListener.NULL, "LOG_REGEX");
+    }
+
+    @Benchmark
+    public String buildLog() throws Exception {
+        // reads the tail of the log only, so it isn't counted as throughput
+        BuildLogMacro macro = new BuildLogMacro();
+        return macro.evaluate(run, null, TaskListener.NULL, BuildLogMacro.MACRO_NAME);
+    }
+
+    private List<LogScanner.Consumer> failureEmailConsumers() {
+        BuildLogRegexMacro regex = new BuildLogRegexMacro();
+        regex.linesBefore = 5;
+        regex.linesAfter = 5;
+        BuildLogMultilineRegexMacro multiline = new BuildLogMultilineRegexMacro();
+        multiline.regex = "(?m)^" + BenchmarkLogs.ERROR_PREFIX + ".*(?:\\n\\tat .*)*";
+        BuildLogExcerptMacro excerpt = new BuildLogExcerptMacro();
+        excerpt.start = BenchmarkLogs.START_MARKER;
+        excerpt.end = BenchmarkLogs.END_MARKER;
+        LogRegExMacro logRegex = new LogRegExMacro();
+        logRegex.regex = "^" + BenchmarkLogs.ERROR_PREFIX + "(\\w+)";
+        logRegex.replacement = "\\1";
+        return Arrays.asList(
+                regex.createLogConsumer(run, TaskListener.NULL, BuildLogRegexMacro.MACRO_NAME),
+                multiline.createLogConsumer(run, TaskListener.NULL, BuildLogMultilineRegexMacro.MACRO_NAME),
+                excerpt.createLogConsumer(run, TaskListener.NULL, BuildLogExcerptMacro.MACRO_NAME),
+                logRegex.createLogConsumer(run, TaskListener.NULL, "LOG_REGEX"));
+    }
+
+    /**
+     * Four log macros of a failure e-mail, each reading the log on its own.
+     */
+    @Benchmark
+    public List<String> failureEmailSeparately(Throughput throughput) throws IOException {
+        List<String> results = new ArrayList<>();
+        for (LogScanner.Consumer consumer : failureEmailConsumers()) {
+            try (BufferedReader reader = reader(throughput)) {
+                LogScanner.scan(reader, Collections.singletonList(consumer));
+            }
+            results.add(consumer.getResult());
+        }
+        return results;
+    }
+
+    /**
+     * The same four log macros reading the log once, as they do when they are in the same template.
+     */
+    @Benchmark
+    public List<String> failureEmailShared(Throughput throughput) throws IOException {
+        List<LogScanner.Consumer> consumers = failureEmailConsumers();
+        try (BufferedReader reader = reader(throughput)) {
+            LogScanner.scan(reader, consumers);
+        }
+        List<String> results = new ArrayList<>();
+        for (LogScanner.Consumer consumer : consumers) {
+            results.add(consumer.getResult());
+        }
+        return results;
+    }
+}
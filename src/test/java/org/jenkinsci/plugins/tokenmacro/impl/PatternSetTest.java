@@ -0,0 +1,56 @@
+package org.jenkinsci.plugins.tokenmacro.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+class PatternSetTest {
+
+    @Test
+    void testFindsTheFirstMatchingExpression() {
+        PatternSet patterns = new PatternSet(Arrays.asList(
+                "\\.java:\\d+: error:", "(?i)fail(ed|ure)", "OutOfMemoryError", "\\d{3} ms", "error"));
+
+        assertEquals(-1, patterns.find("[INFO] Compiling 12 source files"));
+        assertEquals(0, patterns.find("Foo.java:3: error: cannot find symbol"));
+        assertEquals(1, patterns.find("BUILD FAILED"));
+        assertEquals(2, patterns.find("java.lang.OutOfMemoryError: Java heap space"));
+        // the expression without literals is run on every line
+        assertEquals(3, patterns.find("took 250 ms"));
+        // a literal found doesn't make a match
+        assertEquals(-1, patterns.find("Foo.java:3: warning"));
+        assertEquals(4, patterns.find("Foo.java: error, OutOfMemory"));
+    }
+
+    @Test
+    void testSameAsMatchingEachExpression() {
+        List<String> regexes = Arrays.asList(
+                "he", "she", "his", "hers", "(?i)HERS", "é+t", "\\Q*\\E", "x|y", "[0-9]+", "中文");
+        List<String> lines = Arrays.asList(
+                "", "ushers", "uHErs", "this", "sh", "été", "a*b", "xy", "12", "中文字", "中");
+        PatternSet patterns = new PatternSet(regexes);
+        for (String line : lines) {
+            int expected = -1;
+            for (int i = regexes.size() - 1; i >= 0; i--) {
+                if (Pattern.compile(regexes.get(i)).matcher(line).find()) {
+                    expected = i;
+                }
+            }
+            assertEquals(expected, patterns.find(line), line);
+        }
+    }
+
+    @Test
+    void testTooManyExpressions() {
+        List<String> regexes = new ArrayList<>(Collections.nCopies(PatternSet.MAX_PATTERNS, "a"));
+        assertEquals(PatternSet.MAX_PATTERNS, new PatternSet(regexes).size());
+        regexes.add("b");
+        assertThrows(IllegalArgumentException.class, () -> new PatternSet(regexes));
+    }
+}